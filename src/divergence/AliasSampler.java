@@ -0,0 +1,126 @@
+package divergence;
+
+import java.util.Random;
+
+/**
+ * Samples from a fixed discrete distribution in constant time, using Walker's
+ * alias method.
+ * 
+ * The tables are built once per distribution; sampling takes a single random
+ * number from the given source and allocates nothing.
+ * 
+ */
+public class AliasSampler {
+	/** The probability of each outcome, as given. */
+	private final double[] probabilities;
+	/** The probability of keeping each column's own outcome. */
+	private final double[] keep;
+	/** The outcome each column falls back to. */
+	private final int[] alias;
+	/** True iff no outcome has any probability. */
+	private final boolean empty;
+
+	/**
+	 * Builds a sampler for the given distribution. Probabilities that do not
+	 * sum to 1 are normalised.
+	 * 
+	 * @param probabilities
+	 *            the probability of each outcome; the array is kept, and must
+	 *            not be modified afterwards.
+	 */
+	public AliasSampler(double[] probabilities) {
+		this.probabilities = probabilities;
+		int n = probabilities.length;
+		keep = new double[n];
+		alias = new int[n];
+
+		double total = 0;
+		for (int i = 0; i < n; i++) {
+			total += probabilities[i];
+		}
+		empty = total <= 0;
+		if (empty) {
+			return;
+		}
+
+		// Split the columns into those below and above the average height.
+		int[] small = new int[n];
+		int[] large = new int[n];
+		int numSmall = 0;
+		int numLarge = 0;
+		for (int i = 0; i < n; i++) {
+			keep[i] = probabilities[i] * n / total;
+			if (keep[i] < 1) {
+				small[numSmall++] = i;
+			} else {
+				large[numLarge++] = i;
+			}
+		}
+
+		// Top up each small column from a large one.
+		while (numSmall > 0 && numLarge > 0) {
+			int less = small[--numSmall];
+			int more = large[--numLarge];
+			alias[less] = more;
+			keep[more] = (keep[more] + keep[less]) - 1;
+			if (keep[more] < 1) {
+				small[numSmall++] = more;
+			} else {
+				large[numLarge++] = more;
+			}
+		}
+
+		// Whatever is left is full, up to rounding error.
+		while (numLarge > 0) {
+			keep[large[--numLarge]] = 1;
+		}
+		while (numSmall > 0) {
+			keep[small[--numSmall]] = 1;
+		}
+	}
+
+	/**
+	 * Draws an outcome.
+	 * 
+	 * @param random
+	 *            the source of randomness.
+	 * @return the index of the outcome drawn, or -1 if the distribution is
+	 *         empty.
+	 */
+	public int sample(Random random) {
+		if (empty) {
+			return -1;
+		}
+		int n = keep.length;
+		double u = random.nextDouble() * n;
+		int column = (int) u;
+		if (column >= n) {
+			column = n - 1;
+		}
+		if (u - column < keep[column]) {
+			return column;
+		}
+		return alias[column];
+	}
+
+	/**
+	 * Returns the probability of the given outcome, as given.
+	 * 
+	 * @param outcome
+	 *            the index of the outcome.
+	 * @return the probability of the outcome.
+	 */
+	public double getProbability(int outcome) {
+		return probabilities[outcome];
+	}
+
+	/**
+	 * Returns the probability of each outcome, as given. The array is shared
+	 * and must not be modified.
+	 * 
+	 * @return the probability of each outcome.
+	 */
+	public double[] getProbabilities() {
+		return probabilities;
+	}
+}
@@ -0,0 +1,140 @@
+package divergence;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.InputMismatchException;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+
+/**
+ * A divergence distribution loaded from a file, compiled into a sampler for
+ * each desired action code.
+ *
+ * Tables never change once built, so one table is shared by every divergence
+ * drawing from the same file, each with its own source of randomness. Each
+ * file is parsed once, and again only if it is modified.
+ *
+ */
+public class DivergenceTable {
+	/** The tables loaded so far, by the absolute path of their file. */
+	private static final Map<String, DivergenceTable> tables = new HashMap<String, DivergenceTable>();
+
+	/** The time the file was last modified when it was loaded. */
+	private final long lastModified;
+	/** A sampler for each desired action code, indexed by that code. */
+	private final AliasSampler[] samplers;
+
+	/**
+	 * Constructs a table with the given samplers.
+	 */
+	private DivergenceTable(long lastModified, AliasSampler[] samplers) {
+		this.lastModified = lastModified;
+		this.samplers = samplers;
+	}
+
+	/**
+	 * Returns the table for the given file, loading it if it hasn't been
+	 * loaded yet or has been modified since.
+	 *
+	 * @param filename
+	 *            the file to load the distribution from.
+	 * @return the table.
+	 * @throws IOException
+	 *             if there is an error loading the distribution file.
+	 */
+	public static DivergenceTable forFile(String filename) throws IOException {
+		File file = new File(filename).getAbsoluteFile();
+		String key = file.getPath();
+		long lastModified = file.lastModified();
+		synchronized (tables) {
+			DivergenceTable table = tables.get(key);
+			if (table == null || table.lastModified != lastModified) {
+				table = load(filename, lastModified);
+				tables.put(key, table);
+			}
+			return table;
+		}
+	}
+
+	/**
+	 * Parses the given file and compiles its distribution.
+	 */
+	private static DivergenceTable load(String filename, long lastModified)
+			throws IOException {
+		HashMap<Integer, HashMap<Integer, Double>> distribution = new HashMap<Integer, HashMap<Integer, Double>>();
+		BufferedReader input = new BufferedReader(new FileReader(filename));
+		String line;
+		int lineNo = 0;
+		Scanner s;
+		try {
+			lineNo++;
+			while ((line = input.readLine()) != null) {
+				s = new Scanner(line);
+				int desiredState = s.nextInt();
+				int resultingState = s.nextInt();
+				double probability = s.nextDouble();
+				HashMap<Integer, Double> dist = distribution.get(desiredState);
+				if (dist == null) {
+					dist = new HashMap<Integer, Double>();
+					distribution.put(desiredState, dist);
+				}
+				dist.put(resultingState, probability);
+				lineNo++;
+			}
+		} catch (InputMismatchException e) {
+			throw new IOException(String.format(
+					"Invalid number format on line %d of %s: %s", lineNo,
+					filename, e.getMessage()));
+		} catch (NoSuchElementException e) {
+			throw new IOException(String.format(
+					"Not enough tokens on line %d of %s", lineNo, filename));
+		} catch (NullPointerException e) {
+			throw new IOException(String.format(
+					"Line %d expected, but file %s ended.", lineNo, filename));
+		} finally {
+			input.close();
+		}
+		return new DivergenceTable(lastModified, compileSamplers(distribution));
+	}
+
+	/**
+	 * Builds a sampler for the distribution of each desired action code.
+	 */
+	private static AliasSampler[] compileSamplers(
+			HashMap<Integer, HashMap<Integer, Double>> distribution) {
+		int maxCode = -1;
+		for (Map.Entry<Integer, HashMap<Integer, Double>> entry : distribution
+				.entrySet()) {
+			maxCode = Math.max(maxCode, entry.getKey());
+			for (int resultCode : entry.getValue().keySet()) {
+				maxCode = Math.max(maxCode, resultCode);
+			}
+		}
+		AliasSampler[] samplers = new AliasSampler[maxCode + 1];
+		for (Map.Entry<Integer, HashMap<Integer, Double>> entry : distribution
+				.entrySet()) {
+			double[] probabilities = new double[maxCode + 1];
+			for (Map.Entry<Integer, Double> result : entry.getValue()
+					.entrySet()) {
+				probabilities[result.getKey()] = result.getValue();
+			}
+			samplers[entry.getKey()] = new AliasSampler(probabilities);
+		}
+		return samplers;
+	}
+
+	/**
+	 * Returns the sampler for the given desired action code.
+	 *
+	 * @param desiredCode
+	 *            the desired action code.
+	 * @return the sampler of diverged action codes.
+	 */
+	public AliasSampler getSampler(int desiredCode) {
+		return samplers[desiredCode];
+	}
+}
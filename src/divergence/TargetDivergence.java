@@ -33,6 +33,19 @@ public class TargetDivergence extends DivergenceFromFile {
 		this.grid = grid;
 	}
 
+	/**
+	 * Creates a divergence with the given distribution.
+	 * 
+	 * @param grid
+	 *            the grid over which the target moves.
+	 * @param table
+	 *            the distribution.
+	 */
+	public TargetDivergence(TargetGrid grid, DivergenceTable table) {
+		super(table);
+		this.grid = grid;
+	}
+
 	@Override
 	public Action divergeAction(Action action) {
 		AgentState currentState = action.getStartState();
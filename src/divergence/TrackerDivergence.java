@@ -34,6 +34,19 @@ public class TrackerDivergence extends DivergenceFromFile {
 		this.grid = new TrackerGrid(stepDistance / 2);
 	}
 
+	/**
+	 * Creates a tracker divergence with the given distribution.
+	 * 
+	 * @param stepDistance
+	 *            the amount this tracker moves per turn.
+	 * @param table
+	 *            the distribution.
+	 */
+	public TrackerDivergence(double stepDistance, DivergenceTable table) {
+		super(table);
+		this.grid = new TrackerGrid(stepDistance / 2);
+	}
+
 	@Override
 	public TrackerAction divergeAction(Action action) {
 		TrackerAction trackerAction = (TrackerAction) action;
@@ -0,0 +1,401 @@
+package game;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Plays many games of the same setup headless, spread over a pool of threads,
+ * and sums up how the tracker did; each game's results may also be written to
+ * a file of its own.
+ *
+ * The setup is loaded once into a {@link World} shared by every game, and
+ * each game is played by its own {@link GameRunner}, seeded with a seed
+ * derived from the batch seed and the game's index, from which the tracker's
+ * planning seed is derived in turn. A batch is thus reproducible however its
+ * games end up scheduled, as long as the tracker isn't limited by wall-clock
+ * budgets, which concurrent games stretch. The games are played headless, and the processors are split
+ * between them, so each tracker plans on its share of them.
+ */
+public class BatchRunner {
+	/** The path of the setup file. */
+	private final String setupFile;
+	/** The path of the target's divergence distribution. */
+	private final String targetDistributionFile;
+	/** The path of the tracker's divergence distribution. */
+	private final String trackerDistributionFile;
+	/** The number of games played at once. */
+	private final int numThreads;
+	/** The most turns a game may last, or 0 for no limit. */
+	private int maxTurns = 0;
+	/** The path each game's output file is named after, or null for none. */
+	private String outputPath = null;
+
+	/**
+	 * The outcome of a single game.
+	 */
+	private static class GameResult {
+		/** The result, as in {@link GameRunner.GameState#getResult()}. */
+		int result;
+		/** The score of the tracker. */
+		double trackerScore;
+		/** The total score of the target(s). */
+		double targetScore;
+		/** The number of turns played. */
+		int turns;
+		/** True iff the game was stopped at the turn limit. */
+		boolean stopped;
+		/** The time taken by each of the tracker's turns, in nanoseconds. */
+		long[] trackerTurnNanos;
+	}
+
+	/**
+	 * The aggregated results of a batch of games.
+	 */
+	public static class Summary {
+		private int numGames;
+		private int numFailed;
+		private int numWins;
+		private int numDraws;
+		private int numLosses;
+		private int numStopped;
+		private double totalTrackerScore;
+		private double totalTargetScore;
+		private long totalTurns;
+		/** The time taken by every tracker turn, in nanoseconds, sorted. */
+		private long[] turnNanos;
+		/** The wall-clock time of the whole batch, in nanoseconds. */
+		private long elapsedNanos;
+		private int numThreads;
+
+		/**
+		 * Returns the number of games that were played to the end.
+		 *
+		 * @return the number of games played.
+		 */
+		public int getNumGames() {
+			return numGames;
+		}
+
+		/**
+		 * Returns the number of games that failed with an exception.
+		 *
+		 * @return the number of failed games.
+		 */
+		public int getNumFailed() {
+			return numFailed;
+		}
+
+		/**
+		 * Returns the number of games the tracker won.
+		 *
+		 * @return the number of wins.
+		 */
+		public int getNumWins() {
+			return numWins;
+		}
+
+		/**
+		 * Returns the number of games that were drawn.
+		 *
+		 * @return the number of draws.
+		 */
+		public int getNumDraws() {
+			return numDraws;
+		}
+
+		/**
+		 * Returns the number of games the tracker lost.
+		 *
+		 * @return the number of losses.
+		 */
+		public int getNumLosses() {
+			return numLosses;
+		}
+
+		/**
+		 * Returns the number of games stopped at the turn limit; these are
+		 * scored as they stood.
+		 *
+		 * @return the number of stopped games.
+		 */
+		public int getNumStopped() {
+			return numStopped;
+		}
+
+		/**
+		 * Returns the given percentile of the tracker's turn times, in
+		 * milliseconds.
+		 *
+		 * @param percentile
+		 *            the percentile, from 0 to 100.
+		 * @return the turn time at that percentile.
+		 */
+		public double getTurnMillis(double percentile) {
+			if (turnNanos.length == 0) {
+				return 0;
+			}
+			int index = (int) Math.ceil(percentile / 100 * turnNanos.length) - 1;
+			return turnNanos[Math.max(0, Math.min(turnNanos.length - 1, index))] / 1e6;
+		}
+
+		@Override
+		public String toString() {
+			String lineSep = System.getProperty("line.separator");
+			int n = Math.max(1, numGames);
+			double seconds = elapsedNanos / 1e9;
+			double meanTurnMillis = 0;
+			for (long nanos : turnNanos) {
+				meanTurnMillis += nanos / 1e6;
+			}
+			meanTurnMillis /= Math.max(1, turnNanos.length);
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("Games: %d (won %d, drew %d, lost %d)",
+					numGames, numWins, numDraws, numLosses));
+			if (numStopped > 0) {
+				sb.append(String.format(", %d stopped at the turn limit",
+						numStopped));
+			}
+			if (numFailed > 0) {
+				sb.append(String.format(", %d failed", numFailed));
+			}
+			sb.append(lineSep);
+			sb.append(String.format(
+					"Mean scores: tracker %.2f, target %.2f; mean turns %.1f",
+					totalTrackerScore / n, totalTargetScore / n,
+					(double) totalTurns / n));
+			sb.append(lineSep);
+			sb.append(String.format(
+					"Tracker turn time: mean %.2fms, p50 %.2fms, p95 %.2fms, max %.2fms",
+					meanTurnMillis, getTurnMillis(50), getTurnMillis(95),
+					getTurnMillis(100)));
+			sb.append(lineSep);
+			sb.append(String.format(
+					"Throughput: %.2f games/s (%.1fs on %d threads)",
+					numGames / Math.max(seconds, 1e-9), seconds, numThreads));
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Constructs a batch runner for the given setup.
+	 *
+	 * @param setupFile
+	 *            the path of the setup file.
+	 * @param targetDistributionFile
+	 *            the path of the target's divergence distribution.
+	 * @param trackerDistributionFile
+	 *            the path of the tracker's divergence distribution.
+	 * @param numThreads
+	 *            the number of games to play at once.
+	 */
+	public BatchRunner(String setupFile, String targetDistributionFile,
+			String trackerDistributionFile, int numThreads) {
+		this.setupFile = setupFile;
+		this.targetDistributionFile = targetDistributionFile;
+		this.trackerDistributionFile = trackerDistributionFile;
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	/**
+	 * Sets the most turns a game may last; a game still going at that point
+	 * is stopped and scored as it stands.
+	 *
+	 * @param maxTurns
+	 *            the turn limit, or 0 for no limit.
+	 */
+	public void setMaxTurns(int maxTurns) {
+		this.maxTurns = Math.max(0, maxTurns);
+	}
+
+	/**
+	 * Sets the path the games' results are written to; each game writes its
+	 * own file, named after this path with the game's index before the
+	 * extension, so "output.txt" gives "output-0.txt", "output-1.txt"...
+	 * 
+	 * @param outputPath
+	 *            the path, or null to write no results.
+	 */
+	public void setOutputPath(String outputPath) {
+		this.outputPath = outputPath;
+	}
+
+	/**
+	 * Returns the path of the output file of the game with the given index.
+	 * 
+	 * @param gameNo
+	 *            the index of the game.
+	 * @return the path of its output file.
+	 */
+	public String getGameOutputPath(int gameNo) {
+		int sep = Math.max(outputPath.lastIndexOf('/'),
+				outputPath.lastIndexOf(File.separatorChar));
+		int dot = outputPath.lastIndexOf('.');
+		if (dot <= sep + 1) {
+			return outputPath + "-" + gameNo;
+		}
+		return outputPath.substring(0, dot) + "-" + gameNo
+				+ outputPath.substring(dot);
+	}
+
+	/**
+	 * Returns the seed of the game with the given index; distinct indices give
+	 * well-mixed, distinct seeds.
+	 *
+	 * @param batchSeed
+	 *            the seed of the batch.
+	 * @param gameNo
+	 *            the index of the game.
+	 * @return the seed of the game.
+	 */
+	public static long deriveSeed(long batchSeed, int gameNo) {
+		long z = batchSeed + (gameNo + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Plays a single game with the given seed, writing its results to the
+	 * given path unless it is null.
+	 */
+	private GameResult playGame(World world, long seed, String gameOutputPath)
+			throws IOException {
+		GameRunner runner = new GameRunner(world);
+		runner.setTargetDistribution(targetDistributionFile);
+		runner.setTrackerDistribution(trackerDistributionFile);
+		runner.setSeed(seed);
+		runner.setTrackerSeed(deriveSeed(seed, 0));
+		runner.setHeadless(true);
+		runner.setMaxTrackerThreads(Runtime.getRuntime()
+				.availableProcessors() / numThreads);
+		ResultWriter writer = null;
+		long[] turnNanos = new long[16];
+		int numTrackerTurns = 0;
+		try {
+			runner.initialise();
+			if (gameOutputPath != null) {
+				writer = new ResultWriter(gameOutputPath, world);
+			}
+			while (!runner.gameComplete()
+					&& (maxTurns == 0 || runner.getTurnNo() < maxTurns)) {
+				boolean isTrackerTurn = runner.getCurrentState()
+						.isTrackerTurn();
+				long start = System.nanoTime();
+				runner.simulateTurn();
+				if (isTrackerTurn) {
+					if (numTrackerTurns == turnNanos.length) {
+						turnNanos = Arrays.copyOf(turnNanos,
+								numTrackerTurns * 2);
+					}
+					turnNanos[numTrackerTurns++] = System.nanoTime() - start;
+				}
+				if (writer != null) {
+					writer.write(runner.getActionResultSequence().peek());
+				}
+			}
+			if (writer != null) {
+				writer.close();
+			}
+		} finally {
+			if (writer != null) {
+				// Does nothing if the results were written.
+				writer.abort();
+			}
+			runner.close();
+		}
+
+		GameRunner.GameState state = runner.getCurrentState();
+		GameResult result = new GameResult();
+		result.result = state.getResult();
+		result.trackerScore = state.getTrackerScore();
+		result.targetScore = state.getTargetScore();
+		result.turns = state.getTurnNo();
+		result.stopped = !state.isGameComplete();
+		result.trackerTurnNanos = Arrays.copyOf(turnNanos, numTrackerTurns);
+		return result;
+	}
+
+	/**
+	 * Plays the given number of games and sums up their results. Games that
+	 * fail are reported on System.err and counted, but don't stop the batch.
+	 *
+	 * @param numGames
+	 *            the number of games to play.
+	 * @param batchSeed
+	 *            the seed the seed of each game is derived from.
+	 * @return the summary of the results.
+	 * @throws IOException
+	 *             if the setup can't be loaded.
+	 */
+	public Summary run(int numGames, long batchSeed) throws IOException {
+		long startTime = System.nanoTime();
+		final World world = World.load(setupFile);
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		List<Future<GameResult>> futures = new ArrayList<Future<GameResult>>();
+		for (int i = 0; i < numGames; i++) {
+			final long seed = deriveSeed(batchSeed, i);
+			final String gameOutputPath = outputPath == null ? null
+					: getGameOutputPath(i);
+			futures.add(executor.submit(new Callable<GameResult>() {
+				@Override
+				public GameResult call() throws IOException {
+					return playGame(world, seed, gameOutputPath);
+				}
+			}));
+		}
+		executor.shutdown();
+
+		Summary summary = new Summary();
+		summary.numThreads = numThreads;
+		List<long[]> turnNanos = new ArrayList<long[]>();
+		int numTurnNanos = 0;
+		for (int i = 0; i < numGames; i++) {
+			GameResult result;
+			try {
+				result = futures.get(i).get();
+			} catch (ExecutionException e) {
+				System.err.println("Game " + i + " failed: " + e.getCause());
+				summary.numFailed++;
+				continue;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				executor.shutdownNow();
+				break;
+			}
+			summary.numGames++;
+			if (result.result > 0) {
+				summary.numWins++;
+			} else if (result.result == 0) {
+				summary.numDraws++;
+			} else {
+				summary.numLosses++;
+			}
+			if (result.stopped) {
+				summary.numStopped++;
+			}
+			summary.totalTrackerScore += result.trackerScore;
+			summary.totalTargetScore += result.targetScore;
+			summary.totalTurns += result.turns;
+			turnNanos.add(result.trackerTurnNanos);
+			numTurnNanos += result.trackerTurnNanos.length;
+		}
+
+		summary.turnNanos = new long[numTurnNanos];
+		int offset = 0;
+		for (long[] nanos : turnNanos) {
+			System.arraycopy(nanos, 0, summary.turnNanos, offset, nanos.length);
+			offset += nanos.length;
+		}
+		Arrays.sort(summary.turnNanos);
+		summary.elapsedNanos = System.nanoTime() - startTime;
+		return summary;
+	}
+}
@@ -0,0 +1,217 @@
+package game;
+
+import java.awt.geom.Point2D;
+import java.io.IOException;
+import java.util.Random;
+
+import tracker.ForwardModel;
+
+/**
+ * Checks that {@link ForwardModel} plays out movements, camera adjustments and
+ * rewards exactly as {@link GameRunner#simulateMovement},
+ * {@link GameRunner#simulateCameraAdjustment} and
+ * {@link GameRunner#simulateAction} do, from random states of a setup.
+ *
+ * Run as <code>java game.ForwardModelCheck [setupFile [numSamples [seed]]]</code>
+ * from the directory holding the setup and divergence files; it prints the
+ * number of mismatches of each kind and exits with status 1 if there are any.
+ * The game is initialised once to get a current state to play from, so it
+ * starts up faster with -Dtracker.offline=false.
+ */
+public class ForwardModelCheck {
+	/** The number of points the game checks along camera arms. */
+	private static final int NUM_CAMERA_ARM_STEPS = 1000;
+	/** The largest difference in a coordinate counted as a match. */
+	private static final double TOLERANCE = 1e-9;
+
+	/** The game to compare against. */
+	private final GameRunner runner;
+	/** The model being checked. */
+	private final ForwardModel model;
+	/** The source of the random states. */
+	private final Random random;
+
+	private int movements = 0;
+	private int movementMismatches = 0;
+	private int blockedMovements = 0;
+	private int adjustments = 0;
+	private int adjustmentMismatches = 0;
+	private int rewards = 0;
+	private int rewardMismatches = 0;
+
+	/**
+	 * Sets up a check against the given initialised game.
+	 */
+	public ForwardModelCheck(GameRunner runner, long seed) {
+		this.runner = runner;
+		this.model = new ForwardModel(runner.getTargetPolicy(),
+				runner.getTargetSensingParams(),
+				runner.getTrackerSensingParams(), runner.getObstacles(),
+				runner.getGoalRegion(), NUM_CAMERA_ARM_STEPS);
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Compares the model with the game from one random pair of states.
+	 */
+	public void checkSample() {
+		AgentState tracker = randomState(runner.getTrackerSensingParams());
+		AgentState target = randomState(runner.getTargetSensingParams());
+
+		// A movement, which may turn on the spot or run into an obstacle.
+		double heading = (random.nextDouble() * 2 - 1) * Math.PI;
+		double distance = random.nextInt(4) == 0 ? 0 : random.nextDouble()
+				* runner.getWorld().getTrackerMoveDistance() * 2;
+		setStates(tracker, target);
+		runner.simulateMovement(0, 0, new Action(tracker, heading, distance));
+		ForwardModel.AgentBuffer moved = buffer(tracker);
+		if (!model.simulateMovement(moved, heading, distance)) {
+			blockedMovements++;
+		}
+		movements++;
+		if (!matches(moved, playerState(0))) {
+			movementMismatches++;
+		}
+
+		// A camera adjustment, which may hit an obstacle when lengthening.
+		SensingParameters trackerSense = runner.getTrackerSensingParams();
+		double armLength = trackerSense.getMinLength() + random.nextDouble()
+				* (trackerSense.getMaxLength() - trackerSense.getMinLength());
+		setStates(tracker, target);
+		runner.simulateCameraAdjustment(0, 0, new Action(tracker, armLength));
+		ForwardModel.AgentBuffer adjusted = buffer(tracker);
+		model.simulateCameraAdjustment(adjusted, armLength);
+		adjustments++;
+		if (!matches(adjusted, playerState(0))) {
+			adjustmentMismatches++;
+		}
+
+		// Whole actions by each player, with their rewards.
+		boolean isHQCall = random.nextInt(10) == 0;
+		setStates(tracker, target);
+		double trackerReward = runner.simulateAction(0, 0,
+				isHQCall ? new TrackerAction(tracker, true)
+						: new TrackerAction(tracker, heading, distance));
+		ForwardModel.AgentBuffer trackerBuffer = buffer(tracker);
+		if (!isHQCall) {
+			model.simulateMovement(trackerBuffer, heading, distance);
+		}
+		ForwardModel.AgentBuffer targetBuffer = buffer(target);
+		rewards++;
+		if (trackerReward != model.getTrackerReward(trackerBuffer,
+				targetBuffer, isHQCall)) {
+			rewardMismatches++;
+		}
+
+		setStates(tracker, target);
+		double targetReward = runner.simulateAction(1, 1, new Action(target,
+				heading, 0));
+		targetBuffer = buffer(target);
+		model.simulateMovement(targetBuffer, heading, 0);
+		trackerBuffer = buffer(tracker);
+		rewards++;
+		if (targetReward != model.getTargetReward(targetBuffer, trackerBuffer)) {
+			rewardMismatches++;
+		}
+	}
+
+	/**
+	 * Returns the number of comparisons that did not match.
+	 *
+	 * @return the number of mismatches.
+	 */
+	public int getNumMismatches() {
+		return movementMismatches + adjustmentMismatches + rewardMismatches;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("movements: %d/%d mismatched (%d blocked), "
+				+ "camera adjustments: %d/%d mismatched, "
+				+ "rewards: %d/%d mismatched", movementMismatches, movements,
+				blockedMovements, adjustmentMismatches, adjustments,
+				rewardMismatches, rewards);
+	}
+
+	/**
+	 * Returns a random state within the workspace for an agent with the given
+	 * sensing parameters.
+	 */
+	private AgentState randomState(SensingParameters sense) {
+		Point2D pos = new Point2D.Double(random.nextDouble(),
+				random.nextDouble());
+		double heading = (random.nextDouble() * 2 - 1) * Math.PI;
+		if (!sense.hasCamera()) {
+			return new AgentState(pos, heading);
+		}
+		return new AgentState(pos, heading, true, sense.getMinLength()
+				+ random.nextDouble()
+				* (sense.getMaxLength() - sense.getMinLength()));
+	}
+
+	/**
+	 * Puts the tracker and the target in the given states in the game.
+	 */
+	private void setStates(AgentState tracker, AgentState target) {
+		runner.getCurrentState().applyAction(0, tracker, 0);
+		runner.getCurrentState().applyAction(1, target, 0);
+	}
+
+	/**
+	 * Returns the state of the given player in the game.
+	 */
+	private AgentState playerState(int playerNo) {
+		return runner.getCurrentState().getPlayerState(playerNo);
+	}
+
+	/**
+	 * Returns a new buffer holding the given state.
+	 */
+	private static ForwardModel.AgentBuffer buffer(AgentState state) {
+		ForwardModel.AgentBuffer buffer = new ForwardModel.AgentBuffer();
+		buffer.set(state);
+		return buffer;
+	}
+
+	/**
+	 * Returns true iff the buffer holds the given state.
+	 */
+	private static boolean matches(ForwardModel.AgentBuffer buffer,
+			AgentState state) {
+		return Math.abs(buffer.x - state.getPosition().getX()) <= TOLERANCE
+				&& Math.abs(buffer.y - state.getPosition().getY()) <= TOLERANCE
+				&& Math.abs(buffer.heading - state.getHeading()) <= TOLERANCE
+				&& buffer.hasCamera == state.hasCamera()
+				&& Math.abs(buffer.armLength - state.getCameraArmLength()) <= TOLERANCE;
+	}
+
+	/**
+	 * Runs the check.
+	 *
+	 * @param args
+	 *            the setup file, the number of samples and the seed, all
+	 *            optional.
+	 */
+	public static void main(String[] args) {
+		String setupFile = args.length > 0 ? args[0] : "setup.txt";
+		int numSamples = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 0;
+
+		GameRunner runner = new GameRunner();
+		runner.setSeed(seed);
+		try {
+			runner.loadSetup(setupFile);
+		} catch (IOException e) {
+			System.err.println("Failed to load setup file: " + e.getMessage());
+			System.exit(2);
+		}
+		runner.initialise();
+
+		ForwardModelCheck check = new ForwardModelCheck(runner, seed);
+		for (int i = 0; i < numSamples; i++) {
+			check.checkSample();
+		}
+		System.out.println(check);
+		System.exit(check.getNumMismatches() == 0 ? 0 : 1);
+	}
+}
@@ -0,0 +1,224 @@
+package game;
+
+import game.GameRunner.GameState;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The states a game has been through, kept as a full snapshot every few
+ * turns and, for every turn, only what the turn changed: the resulting state
+ * and reward of each player that acted, which players the tracker perceived,
+ * and whether the game ended.
+ *
+ * The tracker acts on even turns and the targets, in order, on odd turns, so
+ * which players each change belongs to need not be stored. Any state is
+ * rebuilt from the snapshot before it by replaying at most one interval of
+ * turns.
+ */
+public class GameHistory {
+	/** The default number of turns between snapshots. */
+	public static final int DEFAULT_SNAPSHOT_INTERVAL = 32;
+	/** The most players whose percepts fit in a turn's mask. */
+	private static final int MAX_PLAYERS = 64;
+
+	/** The number of turns between snapshots. */
+	private final int snapshotInterval;
+	/** The state after every snapshotInterval-th turn, starting with turn 0. */
+	private final List<GameState> snapshots = new ArrayList<GameState>();
+	/** The number of players, the tracker included. */
+	private int numPlayers;
+	/** Whether each player has a camera, which never changes. */
+	private boolean[] hasCamera;
+	/** The number of turns played. */
+	private int numTurns;
+
+	/** The resulting position of each action, in the order played. */
+	private double[] xs = new double[64];
+	private double[] ys = new double[64];
+	/** The resulting heading of each action. */
+	private double[] headings = new double[64];
+	/** The resulting camera arm length of each action. */
+	private double[] armLengths = new double[64];
+	/** The reward for each action. */
+	private double[] rewards = new double[64];
+	/** The players the tracker perceived in each turn, one bit per player. */
+	private long[] perceptMasks = new long[32];
+	/** The turns after which the game was complete. */
+	private final BitSet completed = new BitSet();
+
+	/**
+	 * Constructs an empty history with the given snapshot interval.
+	 *
+	 * @param snapshotInterval
+	 *            the number of turns between snapshots.
+	 */
+	public GameHistory(int snapshotInterval) {
+		this.snapshotInterval = Math.max(1, snapshotInterval);
+	}
+
+	/**
+	 * Clears the history and starts it from the given initial state.
+	 *
+	 * @param initialState
+	 *            the state of the game at turn 0.
+	 */
+	public void reset(GameState initialState) {
+		AgentState[] states = initialState.getPlayerStates();
+		if (states.length > MAX_PLAYERS) {
+			throw new IllegalArgumentException("At most " + MAX_PLAYERS
+					+ " players are supported, not " + states.length);
+		}
+		numPlayers = states.length;
+		hasCamera = new boolean[numPlayers];
+		for (int i = 0; i < numPlayers; i++) {
+			hasCamera[i] = states[i].hasCamera();
+		}
+		numTurns = 0;
+		completed.clear();
+		snapshots.clear();
+		snapshots.add(new GameState(initialState));
+	}
+
+	/**
+	 * Returns the index of the first action of the given turn.
+	 */
+	private int getFirstAction(int turnNo) {
+		// Turns 0, 2, 4... are the tracker's single action.
+		return (turnNo + 1) / 2 + turnNo / 2 * (numPlayers - 1);
+	}
+
+	/**
+	 * Records the turn that has just been played.
+	 *
+	 * @param state
+	 *            the state of the game after the turn.
+	 * @param results
+	 *            the result of each action in the turn, in the order played.
+	 */
+	public void record(GameState state, ActionResult[] results) {
+		int turnNo = numTurns;
+		int first = getFirstAction(turnNo);
+		int last = first + results.length;
+		if (last > xs.length) {
+			int capacity = Math.max(last, xs.length * 2);
+			xs = Arrays.copyOf(xs, capacity);
+			ys = Arrays.copyOf(ys, capacity);
+			headings = Arrays.copyOf(headings, capacity);
+			armLengths = Arrays.copyOf(armLengths, capacity);
+			rewards = Arrays.copyOf(rewards, capacity);
+		}
+		for (int i = 0; i < results.length; i++) {
+			AgentState as = results[i].getResultingState();
+			xs[first + i] = as.getPosition().getX();
+			ys[first + i] = as.getPosition().getY();
+			headings[first + i] = as.getHeading();
+			armLengths[first + i] = as.getCameraArmLength();
+			rewards[first + i] = results[i].getReward();
+		}
+
+		if (turnNo == perceptMasks.length) {
+			perceptMasks = Arrays.copyOf(perceptMasks, turnNo * 2);
+		}
+		long mask = 0;
+		for (Percept percept : state.trackerPercepts) {
+			if (percept.getTurnNo() == turnNo) {
+				mask |= 1L << percept.getAgentNo();
+			}
+		}
+		perceptMasks[turnNo] = mask;
+		completed.set(turnNo, state.isGameComplete());
+
+		numTurns++;
+		if (numTurns % snapshotInterval == 0) {
+			snapshots.add(new GameState(state));
+		}
+	}
+
+	/**
+	 * Replays the given turn onto the given state, which must be the state
+	 * before that turn.
+	 */
+	private void replay(GameState state, int turnNo) {
+		int first = getFirstAction(turnNo);
+		boolean isTrackerTurn = turnNo % 2 == 0;
+		if (isTrackerTurn) {
+			// The tracker used up its percepts when it acted.
+			state.trackerPercepts.clear();
+			replayAction(state, 0, first);
+		} else {
+			for (int i = 1; i < numPlayers; i++) {
+				replayAction(state, i, first + i - 1);
+			}
+		}
+		long mask = perceptMasks[turnNo];
+		for (int i = 0; i < numPlayers; i++) {
+			if ((mask & (1L << i)) != 0) {
+				state.trackerPercepts.add(new Percept(turnNo, i,
+						new AgentState(state.getPlayerState(i))));
+			}
+		}
+		state.endTurn(completed.get(turnNo));
+	}
+
+	/**
+	 * Replays the given action of the given player onto the given state.
+	 */
+	private void replayAction(GameState state, int playerNo, int action) {
+		state.applyAction(playerNo, new AgentState(
+				new Point2D.Double(xs[action], ys[action]),
+				headings[action], hasCamera[playerNo], armLengths[action]),
+				rewards[action]);
+	}
+
+	/**
+	 * Returns the state of the game at the given turn, as a new state that
+	 * may be played on from.
+	 *
+	 * @param turnNo
+	 *            the turn number, from 0 to {@link #getNumTurns()}.
+	 * @return the state at that turn.
+	 */
+	public GameState getState(int turnNo) {
+		if (turnNo < 0 || turnNo > numTurns) {
+			throw new IndexOutOfBoundsException("Turn " + turnNo + " of "
+					+ numTurns);
+		}
+		int snapshot = turnNo / snapshotInterval;
+		GameState state = new GameState(snapshots.get(snapshot));
+		for (int t = snapshot * snapshotInterval; t < turnNo; t++) {
+			replay(state, t);
+		}
+		return state;
+	}
+
+	/**
+	 * Forgets every turn after the given turn number.
+	 *
+	 * @param turnNo
+	 *            the turn number to keep the history up to.
+	 */
+	public void truncate(int turnNo) {
+		if (turnNo >= numTurns) {
+			return;
+		}
+		numTurns = Math.max(0, turnNo);
+		completed.clear(numTurns, Math.max(numTurns, completed.length()));
+		int numSnapshots = numTurns / snapshotInterval + 1;
+		while (snapshots.size() > numSnapshots) {
+			snapshots.remove(snapshots.size() - 1);
+		}
+	}
+
+	/**
+	 * Returns the number of turns played.
+	 *
+	 * @return the number of turns played.
+	 */
+	public int getNumTurns() {
+		return numTurns;
+	}
+}
@@ -5,19 +5,11 @@ import geom.TrackerGrid;
 
 import java.awt.geom.Line2D;
 import java.awt.geom.Point2D;
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.InputMismatchException;
 import java.util.List;
-import java.util.NoSuchElementException;
 import java.util.Random;
-import java.util.Scanner;
 import java.util.Stack;
 
 import divergence.ActionDivergence;
@@ -76,6 +68,12 @@ public class GameRunner {
 
 	/** The source of randomness. */
 	private Random random;
+	/** True iff the tracker plays without printing anything each turn. */
+	private boolean headless = false;
+	/** The most threads the tracker may plan with. */
+	private int maxTrackerThreads = Integer.MAX_VALUE;
+	/** The tracker's planning seed, or null for the tracker's own default. */
+	private Long trackerSeed = null;
 
 	/**
 	 * Cosntructs a new GameRunner.
@@ -84,6 +82,51 @@ public class GameRunner {
 		random = new Random();
 	}
 
+	/**
+	 * Constructs a new GameRunner for the given setup, which may be shared
+	 * with other runners.
+	 * 
+	 * @param world
+	 *            the game setup.
+	 */
+	public GameRunner(World world) {
+		this();
+		setWorld(world);
+	}
+
+	/**
+	 * Sets whether games are played headless, in which case the tracker
+	 * doesn't print its actions; this applies from the next game on.
+	 * 
+	 * @param headless
+	 *            true iff games are played headless.
+	 */
+	public void setHeadless(boolean headless) {
+		this.headless = headless;
+	}
+
+	/**
+	 * Sets the most threads the tracker may plan with, for games played
+	 * alongside others; this applies from the next game on.
+	 * 
+	 * @param maxThreads
+	 *            the most threads to plan with.
+	 */
+	public void setMaxTrackerThreads(int maxThreads) {
+		this.maxTrackerThreads = Math.max(1, maxThreads);
+	}
+
+	/**
+	 * Sets the seed the tracker plans with; this applies from the next game
+	 * on.
+	 * 
+	 * @param seed
+	 *            the tracker's planning seed.
+	 */
+	public void setTrackerSeed(long seed) {
+		this.trackerSeed = seed;
+	}
+
 	/**
 	 * Sets the seed for randomization within this GameRunner.
 	 * 
@@ -101,42 +144,8 @@ public class GameRunner {
 
 	/* ------------------------ SETUP PARAMETERS -------------------------- */
 
-	/** True iff a game setup is currently loaded */
-	private boolean setupLoaded = false;
-
-	/** The number of targets in the game. */
-	private int numTargets;
-	/** The (shared) policy of target(s) in the game. */
-	private TargetPolicy targetPolicy;
-	/** The motion history of the target(s), or null if no such history exists. */
-	private MotionHistory targetMotionHistory = null;
-	/** The sensing parameters of the target(s). */
-	private SensingParameters targetSensingParams;
-	/** The initial state(s) of the target(s). */
-	private List<AgentState> targetInitialStates;
-
-	/**
-	 * The motion history of the tracker, or null if the tracker's motion is
-	 * deterministic.
-	 */
-	private MotionHistory trackerMotionHistory = null;
-	/** The sensing parameters of the tracker. */
-	private SensingParameters trackerSensingParams;
-	/** The initial state of the tracker. */
-	private AgentState trackerInitialState;
-	/** The distance the tracker can move in one step. */
-	private double trackerMoveDistance;
-
-	/** The obstacles in the game space. */
-	private List<RectRegion> obstacles;
-	/** The goal region for the target(s). */
-	private RectRegion goalRegion;
-
-	/**
-	 * The obstacles in the game space, in addition to extra obstacles
-	 * representing the workspace boundaries.
-	 */
-	private List<RectRegion> extendedObstacles;
+	/** The game setup, or null if none is loaded. */
+	private World world;
 
 	/**
 	 * Loads the problem setup from a text file.
@@ -148,121 +157,29 @@ public class GameRunner {
 	 *             specifications.
 	 */
 	public void loadSetup(String filename) throws IOException {
-		Path baseFolder = Paths.get(filename).toAbsolutePath().getParent();
-		setupLoaded = false;
-		BufferedReader input = new BufferedReader(new FileReader(filename));
-		String line;
-		int lineNo = 0;
-		Scanner s;
-		try {
-			line = input.readLine();
-			lineNo++;
-			s = new Scanner(line);
-			numTargets = s.nextInt();
-			s.close();
-
-			line = input.readLine();
-			lineNo++;
-			s = new Scanner(line);
-			boolean hasTargetHistory = (s.next().equals("A2"));
-			s.close();
-
-			line = input.readLine();
-			lineNo++;
-			s = new Scanner(line);
-			String policyPath = baseFolder.resolve(s.next()).toString();
-			targetPolicy = new TargetPolicy(policyPath);
-			trackerMoveDistance = 1.0 / targetPolicy.getGridSize();
-			if (hasTargetHistory) {
-				String targetHistoryPath = baseFolder.resolve(s.next())
-						.toString();
-				targetMotionHistory = new MotionHistory(targetHistoryPath);
-			}
-			s.close();
-
-			line = input.readLine();
-			lineNo++;
-			targetSensingParams = new SensingParameters(false, line);
-
-			line = input.readLine();
-			lineNo++;
-			s = new Scanner(line);
-			boolean hasTrackerHistory = (s.next().equals("B2"));
-			s.close();
-
-			line = input.readLine();
-			lineNo++;
-			String trackerHistoryPath = null;
-			if (hasTrackerHistory) {
-				s = new Scanner(line);
-				trackerHistoryPath = baseFolder.resolve(s.next()).toString();
-				s.close();
-			}
-
-			line = input.readLine();
-			lineNo++;
-			s = new Scanner(line);
-			boolean hasCamera = (s.next().equals("C2"));
-			s.close();
-
-			if (hasTrackerHistory) {
-				trackerMotionHistory = new MotionHistory(trackerHistoryPath);
-			}
-
-			line = input.readLine();
-			lineNo++;
-			trackerSensingParams = new SensingParameters(hasCamera, line);
-
-			line = input.readLine();
-			lineNo++;
-			trackerInitialState = new AgentState(hasCamera, line);
-
-			targetInitialStates = new ArrayList<AgentState>();
-			for (int i = 0; i < numTargets; i++) {
-				line = input.readLine();
-				lineNo++;
-				targetInitialStates.add(new AgentState(false, line));
-			}
+		world = null;
+		setWorld(World.load(filename));
+	}
 
-			line = input.readLine();
-			lineNo++;
-			goalRegion = new RectRegion(line);
-
-			line = input.readLine();
-			lineNo++;
-			s = new Scanner(line);
-			int numObstacles = s.nextInt();
-			s.close();
-
-			obstacles = new ArrayList<RectRegion>();
-			for (int i = 0; i < numObstacles; i++) {
-				line = input.readLine();
-				lineNo++;
-				obstacles.add(new RectRegion(line));
-			}
+	/**
+	 * Sets the game setup, which may be shared with other runners.
+	 * 
+	 * @param world
+	 *            the game setup.
+	 */
+	public void setWorld(World world) {
+		this.world = world;
+		runtimeTrackerMotionHistory = new MotionHistory();
+		runtimeTargetMotionHistory = new MotionHistory();
+	}
 
-			extendedObstacles = new ArrayList<RectRegion>(obstacles);
-			extendedObstacles.add(new RectRegion(-1, -1, 1, 3));
-			extendedObstacles.add(new RectRegion(-1, -1, 3, 1));
-			extendedObstacles.add(new RectRegion(-1, 1, 3, 1));
-			extendedObstacles.add(new RectRegion(1, -1, 1, 3));
-
-			setupLoaded = true;
-			runtimeTrackerMotionHistory = new MotionHistory();
-			runtimeTargetMotionHistory = new MotionHistory();
-		} catch (InputMismatchException e) {
-			throw new IOException(String.format(
-					"Invalid number format on line %d of %s: %s", lineNo,
-					filename, e.getMessage()));
-		} catch (NoSuchElementException e) {
-			throw new IOException(String.format(
-					"Not enough tokens on line %d of %s", lineNo, filename));
-		} catch (NullPointerException e) {
-			throw new IOException(String.format(
-					"Line %d expected, but file %s ended.", lineNo, filename));
-		} finally {
-			input.close();
-		}
+	/**
+	 * Returns the game setup, or null if none is loaded.
+	 * 
+	 * @return the game setup.
+	 */
+	public World getWorld() {
+		return world;
 	}
 
 	/**
@@ -271,7 +188,7 @@ public class GameRunner {
 	 * @return whether a setup is currently loaded.
 	 */
 	public boolean setupLoaded() {
-		return setupLoaded;
+		return world != null;
 	}
 
 	/**
@@ -280,7 +197,7 @@ public class GameRunner {
 	 * @return the number of targets.
 	 */
 	public int getNumTargets() {
-		return numTargets;
+		return world.getNumTargets();
 	}
 
 	/**
@@ -289,7 +206,7 @@ public class GameRunner {
 	 * @return the policy of the target.
 	 */
 	public TargetPolicy getTargetPolicy() {
-		return targetPolicy;
+		return world.getTargetPolicy();
 	}
 
 	/**
@@ -300,7 +217,7 @@ public class GameRunner {
 	 *         is available.
 	 */
 	public MotionHistory getTargetMotionHistory() {
-		return targetMotionHistory;
+		return world.getTargetMotionHistory();
 	}
 
 	/**
@@ -309,7 +226,7 @@ public class GameRunner {
 	 * @return the sensing parameters of the target.
 	 */
 	public SensingParameters getTargetSensingParams() {
-		return targetSensingParams;
+		return world.getTargetSensingParams();
 	}
 
 	/**
@@ -318,7 +235,7 @@ public class GameRunner {
 	 * @return the initial state(s) of the target(s).
 	 */
 	public List<AgentState> getTargetInitialStates() {
-		return targetInitialStates;
+		return world.getTargetInitialStates();
 	}
 
 	/**
@@ -329,7 +246,7 @@ public class GameRunner {
 	 *         is available.
 	 */
 	public MotionHistory getTrackerMotionHistory() {
-		return trackerMotionHistory;
+		return world.getTrackerMotionHistory();
 	}
 
 	/**
@@ -338,7 +255,7 @@ public class GameRunner {
 	 * @return the sensing parameters of the tracker.
 	 */
 	public SensingParameters getTrackerSensingParams() {
-		return trackerSensingParams;
+		return world.getTrackerSensingParams();
 	}
 
 	/**
@@ -347,7 +264,7 @@ public class GameRunner {
 	 * @return the initial state of the tracker.
 	 */
 	public AgentState getTrackerInitialState() {
-		return trackerInitialState;
+		return world.getTrackerInitialState();
 	}
 
 	/**
@@ -356,7 +273,7 @@ public class GameRunner {
 	 * @return the list of obstacles.
 	 */
 	public List<RectRegion> getObstacles() {
-		return obstacles;
+		return world.getObstacles();
 	}
 
 	/**
@@ -365,12 +282,16 @@ public class GameRunner {
 	 * @return the goal region.
 	 */
 	public RectRegion getGoalRegion() {
-		return goalRegion;
+		return world.getGoalRegion();
 	}
 
 	/* ------------------------ RUNNING THE GAME -------------------------- */
 
-	public class GameState {
+	/**
+	 * The state of a game at some turn; earlier states are kept in the
+	 * runner's {@link GameHistory}.
+	 */
+	public static class GameState {
 		/** True iff the game is already over in this state. */
 		private boolean gameComplete;
 		/** The turn number of this game. */
@@ -393,66 +314,25 @@ public class GameRunner {
 		/**
 		 * Constructs a game state representing the initial state of the game
 		 * (i.e. just before the 0-th action).
+		 * 
+		 * @param players
+		 *            the players, the tracker first.
+		 * @param playerDivs
+		 *            the divergences for the players' actions.
+		 * @param playerStates
+		 *            the initial states of the players.
 		 */
-		public GameState() {
+		GameState(Agent[] players, ActionDivergence[] playerDivs,
+				AgentState[] playerStates) {
 			gameComplete = false;
 			turnNo = 0;
 			isTrackerTurn = true;
 			trackerPercepts = new ArrayList<Percept>();
 
-			players = new Agent[numTargets + 1];
-			playerDivs = new ActionDivergence[numTargets + 1];
-			playerScores = new double[numTargets + 1];
-			playerStates = new AgentState[numTargets + 1];
-			for (int i = 1; i <= numTargets; i++) {
-				players[i] = new Target(targetPolicy);
-				long seed = random.nextLong();
-				// System.out.println(String.format("Tracker #%d seed: %d", i,
-				// seed));
-				try {
-					playerDivs[i] = new TargetDivergence(
-							targetPolicy.getGrid(), targetDistributionFile);
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-				playerDivs[i].setSeed(seed);
-				playerScores[i] = 0;
-				playerStates[i] = targetInitialStates.get(i - 1);
-			}
-			if (trackerMotionHistory == null) {
-				playerDivs[0] = new ZeroDivergence();
-			} else {
-				long seed = random.nextLong();
-				// System.out.println(String.format("Target seed: %d", seed));
-				try {
-					playerDivs[0] = new TrackerDivergence(trackerMoveDistance,
-							trackerDistributionFile);
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-				playerDivs[0].setSeed(seed);
-			}
-			playerScores[0] = 0;
-			playerStates[0] = trackerInitialState;
-
-			List<AgentState> targetInitialStatesCopy = new ArrayList<AgentState>();
-			for (AgentState as : targetInitialStates) {
-				targetInitialStatesCopy.add(new AgentState(as));
-			}
-			List<RectRegion> obstaclesCopy = new ArrayList<RectRegion>();
-			for (RectRegion obstacle : obstacles) {
-				obstaclesCopy.add(new RectRegion(obstacle));
-			}
-			players[0] = new Tracker(numTargets,
-					new TargetPolicy(targetPolicy), targetMotionHistory,
-					new SensingParameters(targetSensingParams),
-					targetInitialStatesCopy,
-
-					trackerMotionHistory, new SensingParameters(
-							trackerSensingParams), new AgentState(
-							trackerInitialState),
-
-					obstaclesCopy, new RectRegion(goalRegion));
+			this.players = players;
+			this.playerDivs = playerDivs;
+			this.playerScores = new double[players.length];
+			this.playerStates = playerStates;
 		}
 
 		/**
@@ -469,9 +349,9 @@ public class GameRunner {
 			this.players = other.players;
 			this.playerDivs = other.playerDivs;
 			this.playerScores = Arrays.copyOf(other.playerScores,
-					numTargets + 1);
+					other.playerScores.length);
 			this.playerStates = Arrays.copyOf(other.playerStates,
-					numTargets + 1);
+					other.playerStates.length);
 
 			this.trackerPercepts = new ArrayList<Percept>(other.trackerPercepts);
 		}
@@ -500,7 +380,7 @@ public class GameRunner {
 		 * @return the scores of the players.
 		 */
 		public double[] getPlayerScores() {
-			return Arrays.copyOf(playerScores, numTargets + 1);
+			return Arrays.copyOf(playerScores, playerScores.length);
 		}
 
 		/**
@@ -519,7 +399,7 @@ public class GameRunner {
 		 */
 		public double getTargetScore() {
 			double score = 0;
-			for (int i = 1; i <= numTargets; i++) {
+			for (int i = 1; i < playerScores.length; i++) {
 				score += playerScores[i];
 			}
 			return score;
@@ -579,14 +459,40 @@ public class GameRunner {
 		 * @return the states of the players.
 		 */
 		public AgentState[] getPlayerStates() {
-			return Arrays.copyOf(playerStates, numTargets + 1);
+			return Arrays.copyOf(playerStates, playerStates.length);
+		}
+
+		/**
+		 * Returns the state of the given player.
+		 */
+		AgentState getPlayerState(int playerNo) {
+			return playerStates[playerNo];
+		}
+
+		/**
+		 * Sets the state of the given player after an action, and adds the
+		 * action's reward to its score.
+		 */
+		void applyAction(int playerNo, AgentState state, double reward) {
+			playerStates[playerNo] = state;
+			playerScores[playerNo] += reward;
+		}
+
+		/**
+		 * Moves on to the next turn.
+		 */
+		void endTurn(boolean gameComplete) {
+			this.gameComplete = gameComplete;
+			turnNo += 1;
+			isTrackerTurn = !isTrackerTurn;
 		}
 	}
 
 	/** The sequence of attempted actions with associated results */
 	private Stack<ActionResult[]> actionResultSequence = new Stack<ActionResult[]>();
-	/** The sequence of states of the game. */
-	private Stack<GameState> stateSequence = new Stack<GameState>();
+	/** The states the game has been through. */
+	private GameHistory history = new GameHistory(
+			GameHistory.DEFAULT_SNAPSHOT_INTERVAL);
 	/** The current state of the game. */
 	private GameState cs = null;
 	/** Corrects the actions of the tracker. */
@@ -607,12 +513,25 @@ public class GameRunner {
 	}
 
 	/**
-	 * Returns the sequence of game states.
+	 * Returns the state of the game at the given turn, rebuilt from the
+	 * history.
+	 * 
+	 * @param turnNo
+	 *            the turn number, from 0 to the current turn number.
+	 * @return the state of the game at that turn.
+	 */
+	public GameState getState(int turnNo) {
+		return history.getState(turnNo);
+	}
+
+	/**
+	 * Returns the current state of the game, which changes as the game is
+	 * played on.
 	 * 
-	 * @return the sequence of game states.
+	 * @return the current state of the game.
 	 */
-	public Stack<GameState> getStateSequence() {
-		return stateSequence;
+	public GameState getCurrentState() {
+		return cs;
 	}
 
 	/**
@@ -628,12 +547,75 @@ public class GameRunner {
 	 * Reinitialises the game (i.e. goes to turn 0).
 	 */
 	public void initialise() {
+		close();
 		actionResultSequence.clear();
-		stateSequence.clear();
-		cs = new GameState();
-		stateSequence.add(cs);
-		trackerActionCorrector = new ActionCorrector(trackerMoveDistance,
-				trackerSensingParams);
+		cs = createInitialState();
+		history.reset(cs);
+		trackerActionCorrector = new ActionCorrector(
+				world.getTrackerMoveDistance(), world.getTrackerSensingParams());
+	}
+
+	/**
+	 * Creates the players and their divergences, and returns the initial
+	 * state of the game. The players are given the world's own setup, which
+	 * never changes, rather than copies of it.
+	 */
+	private GameState createInitialState() {
+		int numTargets = world.getNumTargets();
+		Agent[] players = new Agent[numTargets + 1];
+		ActionDivergence[] playerDivs = new ActionDivergence[numTargets + 1];
+		AgentState[] playerStates = new AgentState[numTargets + 1];
+		for (int i = 1; i <= numTargets; i++) {
+			players[i] = new Target(world.getTargetPolicy());
+			long seed = random.nextLong();
+			// System.out.println(String.format("Tracker #%d seed: %d", i,
+			// seed));
+			try {
+				playerDivs[i] = new TargetDivergence(world.getTargetPolicy()
+						.getGrid(), targetDistributionFile);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			playerDivs[i].setSeed(seed);
+			playerStates[i] = world.getTargetInitialStates().get(i - 1);
+		}
+		if (world.getTrackerMotionHistory() == null) {
+			playerDivs[0] = new ZeroDivergence();
+		} else {
+			long seed = random.nextLong();
+			// System.out.println(String.format("Target seed: %d", seed));
+			try {
+				playerDivs[0] = new TrackerDivergence(
+						world.getTrackerMoveDistance(), trackerDistributionFile);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			playerDivs[0].setSeed(seed);
+		}
+		playerStates[0] = world.getTrackerInitialState();
+
+		players[0] = new Tracker(numTargets, world.getTargetPolicy(),
+				world.getTargetMotionHistory(),
+				world.getTargetSensingParams(),
+				world.getTargetInitialStates(),
+
+				world.getTrackerMotionHistory(),
+				world.getTrackerSensingParams(),
+				world.getTrackerInitialState(),
+
+				world.getObstacles(), world.getGoalRegion(),
+				maxTrackerThreads, !headless, trackerSeed);
+		return new GameState(players, playerDivs, playerStates);
+	}
+
+	/**
+	 * Shuts down the planning threads of the current game's tracker, if there
+	 * is one; the game can't go on after this, but can be initialised again.
+	 */
+	public void close() {
+		if (cs != null && cs.players[0] instanceof Tracker) {
+			((Tracker) cs.players[0]).close();
+		}
 	}
 
 	/**
@@ -647,19 +629,10 @@ public class GameRunner {
 			return;
 		}
 
-		int turnNo = cs.turnNo;
-		while (turnNo > desiredTurnNo) {
-			GameState state = stateSequence.pop();
-			turnNo -= 1;
-			if (state.isTrackerTurn()) {
-				actionResultSequence.pop();
-			} else {
-				for (int i = 0; i < numTargets; i++) {
-					actionResultSequence.pop();
-				}
-			}
-		}
-		cs = stateSequence.get(turnNo);
+		// Each turn adds one entry, whoever acted.
+		actionResultSequence.setSize(desiredTurnNo);
+		cs = history.getState(desiredTurnNo);
+		history.truncate(desiredTurnNo);
 	}
 
 	/**
@@ -691,7 +664,8 @@ public class GameRunner {
 				previousResult = actionResultSequence.get(actionIndex)[0];
 			}
 			// Copy the game's scores to inform the tracker.
-			double[] scores = Arrays.copyOf(cs.playerScores, numTargets + 1);
+			double[] scores = Arrays.copyOf(cs.playerScores,
+					cs.playerScores.length);
 			desiredAction = cs.players[0].getAction(cs.turnNo, previousResult,
 					scores, new ArrayList<Percept>(cs.trackerPercepts));
 			cs.trackerPercepts.clear();
@@ -723,21 +697,19 @@ public class GameRunner {
 	 * Simulates a single turn of the game.
 	 */
 	public void simulateTurn() {
-		// Duplicate the state for modification.
-		cs = new GameState(cs);
+		ActionResult[] results;
 		if (cs.isTrackerTurn) {
-			ActionResult result = simulatePlayerTurn(0);
-			actionResultSequence.add(new ActionResult[] { result });
+			results = new ActionResult[] { simulatePlayerTurn(0) };
 		} else {
-			ActionResult[] results = new ActionResult[numTargets];
-			for (int i = 1; i <= numTargets; i++) {
+			results = new ActionResult[world.getNumTargets()];
+			for (int i = 1; i <= world.getNumTargets(); i++) {
 				results[i - 1] = simulatePlayerTurn(i);
 			}
-			actionResultSequence.add(results);
 		}
+		actionResultSequence.add(results);
 		cs.turnNo += 1;
 		cs.isTrackerTurn = !cs.isTrackerTurn;
-		stateSequence.add(cs);
+		history.record(cs, results);
 	}
 
 	/**
@@ -775,10 +747,11 @@ public class GameRunner {
 		// Check whether the tracker and target see each other.
 		if (playerNo == 0) {
 			// Evaluate the tracker's scoring.
-			for (int otherNo = 1; otherNo <= numTargets; otherNo++) {
+			for (int otherNo = 1; otherNo <= world.getNumTargets(); otherNo++) {
 				boolean canSee = GeomTools.canSee(cs.playerStates[playerNo],
-						cs.playerStates[otherNo], trackerSensingParams,
-						obstacles, MAX_SIGHT_DISTANCE_ERROR,
+						cs.playerStates[otherNo],
+						world.getTrackerSensingParams(), world.getObstacles(),
+						MAX_SIGHT_DISTANCE_ERROR,
 						NUM_CAMERA_ARM_STEPS);
 				if (canSee) {
 					// Reward for seeing the target.
@@ -794,14 +767,14 @@ public class GameRunner {
 		} else {
 			// If the target sees the tracker, the target gets rewarded.
 			if (GeomTools.canSee(cs.playerStates[playerNo], cs.playerStates[0],
-					targetSensingParams, obstacles, MAX_SIGHT_DISTANCE_ERROR,
-					NUM_CAMERA_ARM_STEPS)) {
+					world.getTargetSensingParams(), world.getObstacles(),
+					MAX_SIGHT_DISTANCE_ERROR, NUM_CAMERA_ARM_STEPS)) {
 				reward += 1;
 			}
 			// The tracker sees the target -> percept but no reward.
 			if (GeomTools.canSee(cs.playerStates[0], cs.playerStates[playerNo],
-					trackerSensingParams, obstacles, MAX_SIGHT_DISTANCE_ERROR,
-					NUM_CAMERA_ARM_STEPS)) {
+					world.getTrackerSensingParams(), world.getObstacles(),
+					MAX_SIGHT_DISTANCE_ERROR, NUM_CAMERA_ARM_STEPS)) {
 				cs.trackerPercepts.add(new Percept(turnNo, playerNo,
 						new AgentState(cs.playerStates[playerNo])));
 			}
@@ -835,7 +808,8 @@ public class GameRunner {
 			Point2D cameraPos = GeomTools.calculateViewPosition(resultingState);
 			Line2D.Double playerLine = new Line2D.Double(playerPos, cameraPos);
 			// If the new camera arm length causes collision, don't update.
-			if (!GeomTools.isCollisionFree(playerLine, extendedObstacles)) {
+			if (!GeomTools.isCollisionFree(playerLine,
+					world.getExtendedObstacles())) {
 				return;
 			}
 		}
@@ -875,14 +849,14 @@ public class GameRunner {
 		if (hasCamera
 				&& (startHeading != endHeading)
 				&& !GeomTools.canTurn(startPos, startHeading, endHeading,
-						armLength, extendedObstacles)) {
+						armLength, world.getExtendedObstacles())) {
 			return;
 		}
 
 		// If the movement is invalid, ignore the whole action.
 		if (distance != 0
 				&& !GeomTools.canMove(startPos, endPos, hasCamera, armLength,
-						extendedObstacles)) {
+						world.getExtendedObstacles())) {
 			return;
 		}
 
@@ -898,7 +872,7 @@ public class GameRunner {
 	 * @return true iff the given state lies within the goal.
 	 */
 	public boolean isWithinGoal(AgentState s) {
-		return goalRegion.getRect().contains(s.getPosition());
+		return world.getGoalRegion().getRect().contains(s.getPosition());
 	}
 
 	/**
@@ -910,23 +884,9 @@ public class GameRunner {
 	 *             if the file cannot be written.
 	 */
 	public void writeResults(String outputPath) throws IOException {
-		String lineSep = System.getProperty("line.separator");
-		FileWriter writer = new FileWriter(outputPath);
-		writer.write(cs.turnNo + lineSep);
-		writer.write(numTargets + lineSep);
-		writer.write(trackerInitialState + lineSep);
-		for (AgentState as : targetInitialStates) {
-			writer.write(as + lineSep);
-		}
+		ResultWriter writer = new ResultWriter(outputPath, world);
 		for (ActionResult[] results : actionResultSequence) {
-			for (ActionResult result : results) {
-				if (result.getDesiredAction() == null) {
-					writer.write("-" + lineSep);
-				} else {
-					writer.write(result.getResultingState() + " "
-							+ result.getReward() + lineSep);
-				}
-			}
+			writer.write(results);
 		}
 		writer.close();
 	}
@@ -975,7 +935,7 @@ public class GameRunner {
 		for (int i = 1; i < actionResultSequence.size(); i += 2) {
 			ActionResult[] results = actionResultSequence.get(i);
 			for (ActionResult result : results) {
-				history.addEntry(result, targetPolicy.getGrid());
+				history.addEntry(result, world.getTargetPolicy().getGrid());
 			}
 		}
 	}
@@ -990,7 +950,7 @@ public class GameRunner {
 		for (int i = 0; i < actionResultSequence.size(); i += 2) {
 			ActionResult[] results = actionResultSequence.get(i);
 			history.addEntry(results[0], new TrackerGrid(
-					trackerMoveDistance / 2));
+					world.getTrackerMoveDistance() / 2));
 		}
 	}
 
@@ -1006,15 +966,46 @@ public class GameRunner {
 	 *         Tracker loss.
 	 */
 	public int runVerbose(String outputPath, boolean verbose) {
-		runFull();
+		ResultWriter writer = null;
+		if (outputPath != null) {
+			try {
+				writer = new ResultWriter(outputPath, world);
+			} catch (IOException e) {
+				System.err.println("Failed to write output: " + e.getMessage());
+			}
+		}
+		try {
+			initialise();
+			while (!gameComplete()) {
+				simulateTurn();
+				if (writer != null) {
+					writer.write(actionResultSequence.peek());
+				}
+			}
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+					System.err.println("Failed to write output: "
+							+ e.getMessage());
+				}
+			}
+		} finally {
+			if (writer != null) {
+				// Does nothing if the results were written.
+				writer.abort();
+			}
+			close();
+		}
+
 		int winResult = cs.getResult();
 		if (verbose) {
 			System.out.print(cs.getResultString() + ";");
 			double[] scores = cs.getPlayerScores();
-			if (numTargets > 1) {
+			if (world.getNumTargets() > 1) {
 				System.out.print(" target scores: ");
 				StringBuilder sb = new StringBuilder();
-				for (int i = 1; i <= numTargets; i++) {
+				for (int i = 1; i <= world.getNumTargets(); i++) {
 					double score = scores[i];
 					sb.append(String.format("%d ", (int) score));
 				}
@@ -1023,20 +1014,19 @@ public class GameRunner {
 				System.out.println();
 			}
 		}
-
-		if (outputPath != null) {
-			try {
-				writeResults(outputPath);
-			} catch (IOException e) {
-				System.err.println("Failed to write output: " + e.getMessage());
-			}
-		}
 		return winResult;
 	}
 
 	/**
 	 * Runs a game, with the problem setup file passed from the command line.
 	 * 
+	 * With "-n numGames", the games are instead played headless by a
+	 * {@link BatchRunner}, on as many threads as there are processors or as
+	 * given by "-t numThreads", and only a summary is printed; "-s seed" fixes
+	 * the seed the games' seeds are derived from, "-m maxTurns" stops games
+	 * that run too long, and "-o outputFile" writes each game's results to a
+	 * file of its own named after the given one.
+	 * 
 	 * @param args
 	 *            command line arguments; the first should be the setup file.
 	 */
@@ -1045,6 +1035,10 @@ public class GameRunner {
 		String outputFile = null;
 		String targetFile = null;
 		String trackerFile = null;
+		int batchGames = 0;
+		int batchThreads = Runtime.getRuntime().availableProcessors();
+		int batchMaxTurns = 0;
+		Long seed = null;
 		for (int i = 0; i < args.length; i++) {
 			String arg = args[i].trim();
 			if (arg.equals("-o")) {
@@ -1052,6 +1046,27 @@ public class GameRunner {
 				if (i < args.length) {
 					outputFile = args[i].trim();
 				}
+			} else if (arg.equals("-n") || arg.equals("-t")
+					|| arg.equals("-s") || arg.equals("-m")) {
+				i++;
+				if (i < args.length) {
+					try {
+						long value = Long.parseLong(args[i].trim());
+						if (arg.equals("-n")) {
+							batchGames = (int) value;
+						} else if (arg.equals("-t")) {
+							batchThreads = (int) value;
+						} else if (arg.equals("-m")) {
+							batchMaxTurns = (int) value;
+						} else {
+							seed = value;
+						}
+					} catch (NumberFormatException e) {
+						System.err.println("Invalid value for " + arg + ": "
+								+ args[i]);
+						return;
+					}
+				}
 			} else {
 				if (setupFile == null) {
 					setupFile = arg;
@@ -1065,20 +1080,33 @@ public class GameRunner {
 		if (setupFile == null) {
 			setupFile = DEFAULT_SETUP_FILE;
 		}
-		if (outputFile == null) {
-			outputFile = DEFAULT_OUTPUT_FILE;
-		}
 		if (targetFile == null) {
 			targetFile = DEFAULT_TARGET_FILE;
 		}
 		if (trackerFile == null) {
 			trackerFile = DEFAULT_TRACKER_FILE;
 		}
+		long globalSeed = seed == null ? new Random().nextLong() : seed;
+		System.out.println("Global seed: " + globalSeed);
+		if (batchGames > 0) {
+			BatchRunner batch = new BatchRunner(setupFile, targetFile,
+					trackerFile, batchThreads);
+			batch.setMaxTurns(batchMaxTurns);
+			batch.setOutputPath(outputFile);
+			try {
+				System.out.println(batch.run(batchGames, globalSeed));
+			} catch (IOException e) {
+				System.err.println("Failed to load setup file: "
+						+ e.getMessage());
+			}
+			return;
+		}
+		if (outputFile == null) {
+			outputFile = DEFAULT_OUTPUT_FILE;
+		}
 		GameRunner runner = new GameRunner();
 		runner.setTargetDistribution(targetFile);
 		runner.setTrackerDistribution(trackerFile);
-		long globalSeed = new Random().nextLong();
-		System.out.println("Global seed: " + globalSeed);
 		runner.setSeed(globalSeed);
 
 		try {
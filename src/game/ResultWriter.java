@@ -0,0 +1,332 @@
+package game;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Writes the results of a game to an output file, one turn at a time as the
+ * game is played, in the same format as {@link AgentState#toString()} and
+ * {@link GameRunner#writeResults(String)} have always produced.
+ *
+ * The first line of the file is the number of turns, which isn't known until
+ * the game ends, so the turns are streamed into a partial file next to the
+ * output file, and the output file is only assembled, with that line first,
+ * when the writer is closed. Numbers are formatted by hand straight into the
+ * buffer; the few that could round differently from String.format are left
+ * to String.format.
+ *
+ * A failed write doesn't interrupt the game; the first failure is thrown by
+ * {@link #close()} instead. A game that fails part way should
+ * {@link #abort()} its writer, so that no partial file is left behind.
+ */
+public class ResultWriter implements Closeable {
+	/** The suffix of the partial file the turns are streamed to. */
+	private static final String PARTIAL_SUFFIX = ".part";
+	/** The size of the write buffer. */
+	private static final int BUFFER_SIZE = 1 << 16;
+	/** The room kept free in the buffer for a line of hand-formatted numbers. */
+	private static final int MAX_LINE_LENGTH = 256;
+	/** The number of decimal places printed by "%f". */
+	private static final long DECIMAL_SCALE = 1000000;
+	/** The largest magnitude that is formatted by hand. */
+	private static final double FAST_FORMAT_LIMIT = 1e6;
+	/**
+	 * How close to halfway between two printed values a number may be and
+	 * still be formatted by hand; String.format rounds the shortest decimal
+	 * form of a number rather than the number itself, and the two only
+	 * differ that close to halfway.
+	 */
+	private static final double TIE_MARGIN = 1e-3;
+	/** True iff String.format prints numbers with plain ASCII digits. */
+	private static final boolean ASCII_FORMAT_LOCALE;
+	static {
+		DecimalFormatSymbols symbols = DecimalFormatSymbols
+				.getInstance(Locale.getDefault(Locale.Category.FORMAT));
+		ASCII_FORMAT_LOCALE = symbols.getDecimalSeparator() == '.'
+				&& symbols.getZeroDigit() == '0';
+	}
+
+	/** The output file. */
+	private final Path outputPath;
+	/** The partial file the turns are streamed to. */
+	private final Path partialPath;
+	/** The channel to the partial file. */
+	private final FileChannel channel;
+	/** The buffered output, not yet written to the channel. */
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	/** The line separator. */
+	private final byte[] lineSep;
+	/** Scratch space for the digits of a number. */
+	private final byte[] digits = new byte[32];
+	/** The number of turns written. */
+	private int numTurns = 0;
+	/** The first write that failed, or null if none has. */
+	private IOException failure = null;
+	/** True iff the writer has been closed. */
+	private boolean closed = false;
+
+	/**
+	 * Starts a results file for a game of the given setup; the initial states
+	 * are written straight away.
+	 *
+	 * @param outputPath
+	 *            the path to write to.
+	 * @param world
+	 *            the setup of the game.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public ResultWriter(String outputPath, World world) throws IOException {
+		this.outputPath = Paths.get(outputPath);
+		this.partialPath = Paths.get(outputPath + PARTIAL_SUFFIX);
+		this.lineSep = System.getProperty("line.separator").getBytes("US-ASCII");
+		channel = FileChannel.open(partialPath, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		appendInt(world.getNumTargets());
+		appendLineSep();
+		appendState(world.getTrackerInitialState());
+		appendLineSep();
+		for (AgentState as : world.getTargetInitialStates()) {
+			appendState(as);
+			appendLineSep();
+		}
+	}
+
+	/**
+	 * Writes the results of the turn that has just been played.
+	 *
+	 * @param results
+	 *            the result of each action in the turn, in the order played.
+	 */
+	public void write(ActionResult[] results) {
+		for (ActionResult result : results) {
+			if (buffer.remaining() < MAX_LINE_LENGTH) {
+				flushBuffer();
+			}
+			if (result.getDesiredAction() == null) {
+				buffer.put((byte) '-');
+			} else {
+				appendState(result.getResultingState());
+				buffer.put((byte) ' ');
+				appendDouble(result.getReward());
+			}
+			appendLineSep();
+		}
+		numTurns++;
+	}
+
+	/**
+	 * Writes out the rest of the results and assembles the output file.
+	 *
+	 * @throws IOException
+	 *             if any of the results could not be written.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		flushBuffer();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			if (failure == null) {
+				failure = e;
+			}
+		}
+		try {
+			if (failure != null) {
+				throw failure;
+			}
+			appendInt(numTurns);
+			appendLineSep();
+			buffer.flip();
+			FileChannel output = FileChannel.open(outputPath,
+					StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.WRITE);
+			try {
+				FileChannel partial = FileChannel.open(partialPath,
+						StandardOpenOption.READ);
+				try {
+					while (buffer.hasRemaining()) {
+						output.write(buffer);
+					}
+					long position = 0;
+					long size = partial.size();
+					while (position < size) {
+						position += partial.transferTo(position, size
+								- position, output);
+					}
+				} finally {
+					partial.close();
+				}
+			} finally {
+				output.close();
+			}
+		} finally {
+			Files.deleteIfExists(partialPath);
+		}
+	}
+
+	/**
+	 * Closes the partial file and deletes it without writing the output file;
+	 * does nothing if the writer is already closed.
+	 */
+	public void abort() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Nothing more can be done with the channel either way.
+		}
+		try {
+			Files.deleteIfExists(partialPath);
+		} catch (IOException e) {
+			// A stray partial file is harmless; it is overwritten next time.
+		}
+	}
+
+	/**
+	 * Writes the buffered output to the channel, remembering any failure.
+	 */
+	private void flushBuffer() {
+		buffer.flip();
+		if (failure == null) {
+			try {
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Appends the line separator.
+	 */
+	private void appendLineSep() {
+		buffer.put(lineSep);
+	}
+
+	/**
+	 * Appends the given state as {@link AgentState#toString()} would.
+	 */
+	private void appendState(AgentState as) {
+		appendFixed(as.getPosition().getX(), 8);
+		buffer.put((byte) ' ');
+		appendFixed(as.getPosition().getY(), 8);
+		buffer.put((byte) ' ');
+		appendFixed(Math.toDegrees(as.getHeading()), 11);
+		if (as.hasCamera()) {
+			buffer.put((byte) ' ');
+			appendFixed(as.getCameraArmLength(), 8);
+		} else {
+			appendPadding(9);
+		}
+	}
+
+	/**
+	 * Appends the given number of spaces.
+	 */
+	private void appendPadding(int count) {
+		for (int i = 0; i < count; i++) {
+			buffer.put((byte) ' ');
+		}
+	}
+
+	/**
+	 * Appends the given string in the platform's default encoding.
+	 */
+	private void appendString(String s) {
+		byte[] bytes = s.getBytes(Charset.defaultCharset());
+		// Keep room for the rest of the line as well.
+		if (buffer.remaining() < bytes.length + MAX_LINE_LENGTH) {
+			flushBuffer();
+		}
+		buffer.put(bytes);
+	}
+
+	/**
+	 * Appends the digits of the given non-negative number, padded with zeros
+	 * to at least the given number of digits.
+	 */
+	private void appendDigits(long value, int minDigits) {
+		int start = digits.length;
+		do {
+			digits[--start] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value > 0 || digits.length - start < minDigits);
+		buffer.put(digits, start, digits.length - start);
+	}
+
+	/**
+	 * Appends the given integer as String.valueOf would.
+	 */
+	private void appendInt(int value) {
+		if (value < 0) {
+			buffer.put((byte) '-');
+		}
+		appendDigits(Math.abs((long) value), 1);
+	}
+
+	/**
+	 * Appends the given number as String.format("%<width>f") would.
+	 */
+	private void appendFixed(double value, int width) {
+		double scaled = Math.abs(value) * DECIMAL_SCALE;
+		double whole = Math.floor(scaled);
+		double fraction = scaled - whole;
+		if (!ASCII_FORMAT_LOCALE || !(Math.abs(value) < FAST_FORMAT_LIMIT)
+				|| Math.abs(fraction - 0.5) < TIE_MARGIN) {
+			appendString(String.format("%" + width + "f", value));
+			return;
+		}
+		long units = (long) whole + (fraction > 0.5 ? 1 : 0);
+		long intPart = units / DECIMAL_SCALE;
+		// Negative numbers keep their sign even if they round to zero.
+		boolean negative = value < 0 || (value == 0 && 1 / value < 0);
+		int length = (negative ? 1 : 0) + 1 + 1 + 6;
+		for (long rest = intPart / 10; rest > 0; rest /= 10) {
+			length++;
+		}
+		appendPadding(width - length);
+		if (negative) {
+			buffer.put((byte) '-');
+		}
+		appendDigits(intPart, 1);
+		buffer.put((byte) '.');
+		appendDigits(units % DECIMAL_SCALE, 6);
+	}
+
+	/**
+	 * Appends the given number as Double.toString would.
+	 */
+	private void appendDouble(double value) {
+		if (value != Math.rint(value) || !(Math.abs(value) < 1e7)) {
+			appendString(Double.toString(value));
+			return;
+		}
+		if (value < 0 || (value == 0 && 1 / value < 0)) {
+			buffer.put((byte) '-');
+		}
+		appendDigits((long) Math.abs(value), 1);
+		buffer.put((byte) '.');
+		buffer.put((byte) '0');
+	}
+}
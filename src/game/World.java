@@ -0,0 +1,332 @@
+package game;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.InputMismatchException;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+
+import divergence.MotionHistory;
+import target.TargetPolicy;
+
+/**
+ * A game setup: the target's policy, the sensing parameters and initial
+ * states of the players, the obstacles and the goal.
+ * 
+ * A world never changes once it is loaded, so any number of games, on any
+ * number of threads, can share one; each game's own state is kept by its
+ * {@link GameRunner}.
+ */
+public final class World {
+	/** The number of targets in the game. */
+	private final int numTargets;
+	/** The (shared) policy of target(s) in the game. */
+	private final TargetPolicy targetPolicy;
+	/** The motion history of the target(s), or null if no such history exists. */
+	private final MotionHistory targetMotionHistory;
+	/** The sensing parameters of the target(s). */
+	private final SensingParameters targetSensingParams;
+	/** The initial state(s) of the target(s). */
+	private final List<AgentState> targetInitialStates;
+
+	/**
+	 * The motion history of the tracker, or null if the tracker's motion is
+	 * deterministic.
+	 */
+	private final MotionHistory trackerMotionHistory;
+	/** The sensing parameters of the tracker. */
+	private final SensingParameters trackerSensingParams;
+	/** The initial state of the tracker. */
+	private final AgentState trackerInitialState;
+	/** The distance the tracker can move in one step. */
+	private final double trackerMoveDistance;
+
+	/** The obstacles in the game space. */
+	private final List<RectRegion> obstacles;
+	/** The goal region for the target(s). */
+	private final RectRegion goalRegion;
+
+	/**
+	 * The obstacles in the game space, in addition to extra obstacles
+	 * representing the workspace boundaries.
+	 */
+	private final List<RectRegion> extendedObstacles;
+
+	/**
+	 * Constructs a world from its parts, which must not be changed afterwards.
+	 */
+	private World(int numTargets, TargetPolicy targetPolicy,
+			MotionHistory targetMotionHistory,
+			SensingParameters targetSensingParams,
+			List<AgentState> targetInitialStates,
+			MotionHistory trackerMotionHistory,
+			SensingParameters trackerSensingParams,
+			AgentState trackerInitialState, List<RectRegion> obstacles,
+			RectRegion goalRegion) {
+		this.numTargets = numTargets;
+		this.targetPolicy = targetPolicy;
+		this.targetMotionHistory = targetMotionHistory;
+		this.targetSensingParams = targetSensingParams;
+		this.targetInitialStates = Collections
+				.unmodifiableList(new ArrayList<AgentState>(targetInitialStates));
+		this.trackerMotionHistory = trackerMotionHistory;
+		this.trackerSensingParams = trackerSensingParams;
+		this.trackerInitialState = trackerInitialState;
+		this.trackerMoveDistance = 1.0 / targetPolicy.getGridSize();
+		this.obstacles = Collections.unmodifiableList(new ArrayList<RectRegion>(
+				obstacles));
+		this.goalRegion = goalRegion;
+
+		List<RectRegion> extendedObstacles = new ArrayList<RectRegion>(obstacles);
+		extendedObstacles.add(new RectRegion(-1, -1, 1, 3));
+		extendedObstacles.add(new RectRegion(-1, -1, 3, 1));
+		extendedObstacles.add(new RectRegion(-1, 1, 3, 1));
+		extendedObstacles.add(new RectRegion(1, -1, 1, 3));
+		this.extendedObstacles = Collections
+				.unmodifiableList(extendedObstacles);
+	}
+
+	/**
+	 * Loads a game setup from a text file.
+	 * 
+	 * @param filename
+	 *            the path of the text file to load.
+	 * @return the setup.
+	 * @throws IOException
+	 *             if the text file doesn't exist or doesn't meet the assignment
+	 *             specifications.
+	 */
+	public static World load(String filename) throws IOException {
+		Path baseFolder = Paths.get(filename).toAbsolutePath().getParent();
+		BufferedReader input = new BufferedReader(new FileReader(filename));
+		String line;
+		int lineNo = 0;
+		Scanner s;
+		try {
+			line = input.readLine();
+			lineNo++;
+			s = new Scanner(line);
+			int numTargets = s.nextInt();
+			s.close();
+
+			line = input.readLine();
+			lineNo++;
+			s = new Scanner(line);
+			boolean hasTargetHistory = (s.next().equals("A2"));
+			s.close();
+
+			line = input.readLine();
+			lineNo++;
+			s = new Scanner(line);
+			String policyPath = baseFolder.resolve(s.next()).toString();
+			TargetPolicy targetPolicy = new TargetPolicy(policyPath);
+			MotionHistory targetMotionHistory = null;
+			if (hasTargetHistory) {
+				String targetHistoryPath = baseFolder.resolve(s.next())
+						.toString();
+				targetMotionHistory = new MotionHistory(targetHistoryPath);
+			}
+			s.close();
+
+			line = input.readLine();
+			lineNo++;
+			SensingParameters targetSensingParams = new SensingParameters(
+					false, line);
+
+			line = input.readLine();
+			lineNo++;
+			s = new Scanner(line);
+			boolean hasTrackerHistory = (s.next().equals("B2"));
+			s.close();
+
+			line = input.readLine();
+			lineNo++;
+			String trackerHistoryPath = null;
+			if (hasTrackerHistory) {
+				s = new Scanner(line);
+				trackerHistoryPath = baseFolder.resolve(s.next()).toString();
+				s.close();
+			}
+
+			line = input.readLine();
+			lineNo++;
+			s = new Scanner(line);
+			boolean hasCamera = (s.next().equals("C2"));
+			s.close();
+
+			MotionHistory trackerMotionHistory = null;
+			if (hasTrackerHistory) {
+				trackerMotionHistory = new MotionHistory(trackerHistoryPath);
+			}
+
+			line = input.readLine();
+			lineNo++;
+			SensingParameters trackerSensingParams = new SensingParameters(
+					hasCamera, line);
+
+			line = input.readLine();
+			lineNo++;
+			AgentState trackerInitialState = new AgentState(hasCamera, line);
+
+			List<AgentState> targetInitialStates = new ArrayList<AgentState>();
+			for (int i = 0; i < numTargets; i++) {
+				line = input.readLine();
+				lineNo++;
+				targetInitialStates.add(new AgentState(false, line));
+			}
+
+			line = input.readLine();
+			lineNo++;
+			RectRegion goalRegion = new RectRegion(line);
+
+			line = input.readLine();
+			lineNo++;
+			s = new Scanner(line);
+			int numObstacles = s.nextInt();
+			s.close();
+
+			List<RectRegion> obstacles = new ArrayList<RectRegion>();
+			for (int i = 0; i < numObstacles; i++) {
+				line = input.readLine();
+				lineNo++;
+				obstacles.add(new RectRegion(line));
+			}
+
+			return new World(numTargets, targetPolicy, targetMotionHistory,
+					targetSensingParams, targetInitialStates,
+					trackerMotionHistory, trackerSensingParams,
+					trackerInitialState, obstacles, goalRegion);
+		} catch (InputMismatchException e) {
+			throw new IOException(String.format(
+					"Invalid number format on line %d of %s: %s", lineNo,
+					filename, e.getMessage()));
+		} catch (NoSuchElementException e) {
+			throw new IOException(String.format(
+					"Not enough tokens on line %d of %s", lineNo, filename));
+		} catch (NullPointerException e) {
+			throw new IOException(String.format(
+					"Line %d expected, but file %s ended.", lineNo, filename));
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Returns the number of targets.
+	 * 
+	 * @return the number of targets.
+	 */
+	public int getNumTargets() {
+		return numTargets;
+	}
+
+	/**
+	 * Returns the policy of the target.
+	 * 
+	 * @return the policy of the target.
+	 */
+	public TargetPolicy getTargetPolicy() {
+		return targetPolicy;
+	}
+
+	/**
+	 * Returns the motion history of the target(s), or null if no motion history
+	 * is available. It must not be added to.
+	 * 
+	 * @return the motion history of the target(s), or null if no motion history
+	 *         is available.
+	 */
+	public MotionHistory getTargetMotionHistory() {
+		return targetMotionHistory;
+	}
+
+	/**
+	 * Returns the sensing parameters of the target.
+	 * 
+	 * @return the sensing parameters of the target.
+	 */
+	public SensingParameters getTargetSensingParams() {
+		return targetSensingParams;
+	}
+
+	/**
+	 * Returns the initial state(s) of the target(s), as an unmodifiable list.
+	 * 
+	 * @return the initial state(s) of the target(s).
+	 */
+	public List<AgentState> getTargetInitialStates() {
+		return targetInitialStates;
+	}
+
+	/**
+	 * Returns the motion history of the tracker, or null if no motion history
+	 * is available. It must not be added to.
+	 * 
+	 * @return the motion history of the tracker, or null if no motion history
+	 *         is available.
+	 */
+	public MotionHistory getTrackerMotionHistory() {
+		return trackerMotionHistory;
+	}
+
+	/**
+	 * Returns the sensing parameters of the tracker.
+	 * 
+	 * @return the sensing parameters of the tracker.
+	 */
+	public SensingParameters getTrackerSensingParams() {
+		return trackerSensingParams;
+	}
+
+	/**
+	 * Returns the initial state of the tracker.
+	 * 
+	 * @return the initial state of the tracker.
+	 */
+	public AgentState getTrackerInitialState() {
+		return trackerInitialState;
+	}
+
+	/**
+	 * Returns the list of obstacles, as an unmodifiable list.
+	 * 
+	 * @return the list of obstacles.
+	 */
+	public List<RectRegion> getObstacles() {
+		return obstacles;
+	}
+
+	/**
+	 * Returns the goal region.
+	 * 
+	 * @return the goal region.
+	 */
+	public RectRegion getGoalRegion() {
+		return goalRegion;
+	}
+
+	/**
+	 * Returns the distance the tracker can move in one step.
+	 * 
+	 * @return the distance the tracker can move in one step.
+	 */
+	public double getTrackerMoveDistance() {
+		return trackerMoveDistance;
+	}
+
+	/**
+	 * Returns the obstacles, together with obstacles representing the
+	 * workspace boundaries, as an unmodifiable list.
+	 * 
+	 * @return the obstacles and workspace boundaries.
+	 */
+	public List<RectRegion> getExtendedObstacles() {
+		return extendedObstacles;
+	}
+}
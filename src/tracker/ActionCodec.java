@@ -0,0 +1,55 @@
+package tracker;
+
+import java.util.Arrays;
+
+/**
+ * Maps the sparse action codes used by the planner onto dense slot indices, so
+ * that per-action statistics can be kept in plain arrays.
+ *
+ * The codes are those of {@link TrackerTools#getAllPossibleActions}: 1-23 for
+ * movements (12 standing still), 121-1223 for turning on the spot, 30-40 for
+ * camera arm lengths and 312 for keeping the current arm length.
+ */
+public class ActionCodec {
+	/** The action codes, in slot order. */
+	private static final int[] CODES = { 1, 2, 3, 5, 6, 8, 9, 10, 12, 14, 15,
+			16, 18, 19, 21, 22, 23, 121, 122, 123, 125, 126, 128, 129, 1210,
+			1214, 1215, 1216, 1218, 1219, 1221, 1222, 1223, 30, 31, 32, 33, 34,
+			35, 36, 37, 38, 39, 40, 312 };
+	/** The number of action slots. */
+	public static final int NUM_SLOTS = CODES.length;
+	/** The slot of each action code, or -1 for codes that aren't actions. */
+	private static final int[] SLOTS = new int[1224];
+
+	static {
+		Arrays.fill(SLOTS, -1);
+		for (int slot = 0; slot < NUM_SLOTS; slot++) {
+			SLOTS[CODES[slot]] = slot;
+		}
+	}
+
+	/**
+	 * Returns the slot of the given action code.
+	 *
+	 * @param code
+	 *            the action code.
+	 * @return the slot of the given action code, or -1 if there is none.
+	 */
+	public static int toSlot(int code) {
+		if (code < 0 || code >= SLOTS.length) {
+			return -1;
+		}
+		return SLOTS[code];
+	}
+
+	/**
+	 * Returns the action code stored in the given slot.
+	 *
+	 * @param slot
+	 *            the slot.
+	 * @return the action code stored in the given slot.
+	 */
+	public static int toCode(int slot) {
+		return CODES[slot];
+	}
+}
@@ -0,0 +1,347 @@
+package tracker;
+
+import game.AgentState;
+import game.SensingParameters;
+import game.TrackerAction;
+import geom.GeomTools;
+import geom.TargetGrid;
+
+import java.awt.geom.Point2D;
+
+/**
+ * The tracker's actions for one game setup, precomputed once so that looking
+ * up or applying an action never has to build the full set of actions.
+ *
+ * Actions are stored by their {@link ActionCodec} slot. The table also covers
+ * the diverged movement codes (0-24 on the tracker's divergence grid) that
+ * have no action of their own, so that every outcome of a movement can be
+ * applied directly.
+ */
+public class ActionTable {
+	/** The number of codes on the tracker's divergence grid. */
+	private static final int NUM_DIVERGED_CODES = 25;
+	/** The slot of the action that keeps the current camera arm length. */
+	private static final int KEEP_ARM_SLOT = ActionCodec.toSlot(312);
+	/** The first camera adjustment slot. */
+	private static final int FIRST_ARM_SLOT = ActionCodec.toSlot(30);
+
+	/** The movement codes with a fixed heading, other than standing still. */
+	private static final int[] MOVE_CODES = { 1, 2, 3, 5, 6, 8, 9, 10, 14, 15,
+			16, 18, 19, 21, 22, 23 };
+	/** The heading of each movement code, in degrees. */
+	private static final double[] MOVE_ANGLES = { 112.5, 90, 67.5, 157.5, 135,
+			45, 22.5, 180, 0, 202.5, 225, 315, 337.5, 247.5, 270, 292.5 };
+	/** The heading of each movement and turning slot, in radians. */
+	private static final double[] HEADINGS = new double[ActionCodec.NUM_SLOTS];
+	/** True for each slot that turns on the spot. */
+	private static final boolean[] IS_TURN = new boolean[ActionCodec.NUM_SLOTS];
+
+	static {
+		for (int i = 0; i < MOVE_CODES.length; i++) {
+			double heading = GeomTools.normaliseAngle(Math
+					.toRadians(MOVE_ANGLES[i]));
+			int turnCode = (MOVE_CODES[i] < 10) ? 120 + MOVE_CODES[i]
+					: 1200 + MOVE_CODES[i];
+			HEADINGS[ActionCodec.toSlot(MOVE_CODES[i])] = heading;
+			HEADINGS[ActionCodec.toSlot(turnCode)] = heading;
+			IS_TURN[ActionCodec.toSlot(turnCode)] = true;
+		}
+	}
+
+	/** The most recently built table, which most callers will want again. */
+	private static volatile ActionTable lastTable;
+
+	/** The grid size the table was built for. */
+	private final int gridSize;
+	/** The sensing parameters the table was built for. */
+	private final SensingParameters trackerSense;
+
+	/** The distance moved by each slot. */
+	private final double[] distances = new double[ActionCodec.NUM_SLOTS];
+	/** The displacement of each slot along each axis. */
+	private final double[] dxs = new double[ActionCodec.NUM_SLOTS];
+	private final double[] dys = new double[ActionCodec.NUM_SLOTS];
+	/** The camera arm length set by each camera adjustment slot. */
+	private final double[] armLengths = new double[ActionCodec.NUM_SLOTS];
+	/** True for each slot that is a camera adjustment. */
+	private final boolean[] isCamera = new boolean[ActionCodec.NUM_SLOTS];
+
+	/** The heading and displacement of each diverged movement code. */
+	private final double[] divergedHeadings = new double[NUM_DIVERGED_CODES];
+	private final double[] divergedDistances = new double[NUM_DIVERGED_CODES];
+	private final double[] divergedDxs = new double[NUM_DIVERGED_CODES];
+	private final double[] divergedDys = new double[NUM_DIVERGED_CODES];
+
+	/**
+	 * Builds the action table for the given setup.
+	 *
+	 * @param grid
+	 *            the grid that sets the tracker's step distance.
+	 * @param trackerSense
+	 *            the sensing parameters of the tracker.
+	 */
+	public ActionTable(TargetGrid grid, SensingParameters trackerSense) {
+		this.gridSize = grid.getGridSize();
+		this.trackerSense = trackerSense;
+		double distance = 1.0 / gridSize;
+
+		// Movements and turns on the spot; standing still (12) keeps the
+		// current heading, so it has no entry.
+		for (int slot = 0; slot < ActionCodec.NUM_SLOTS; slot++) {
+			int code = ActionCodec.toCode(slot);
+			if (code != 12 && !isCameraCode(code)) {
+				setMovement(slot, IS_TURN[slot] ? 0 : distance);
+			}
+		}
+		for (int code : MOVE_CODES) {
+			setDiverged(code, HEADINGS[ActionCodec.toSlot(code)], distance);
+		}
+
+		// Diverged movements that fall between the regular ones.
+		setDiverged(0, divergedHeadings[6], 2 * distance);
+		setDiverged(4, divergedHeadings[8], 2 * distance);
+		setDiverged(7, divergedHeadings[2], distance / 2);
+		setDiverged(11, divergedHeadings[10], distance / 2);
+		setDiverged(13, divergedHeadings[14], distance / 2);
+		setDiverged(17, divergedHeadings[22], distance / 2);
+		setDiverged(20, divergedHeadings[16], 2 * distance);
+		setDiverged(24, divergedHeadings[18], 2 * distance);
+
+		// Camera adjustments, discretised into 10 steps.
+		double minArmLength = trackerSense.getMinLength();
+		double step = (trackerSense.getMaxLength() - minArmLength) / 10;
+		for (int i = 0; i < 11; i++) {
+			int slot = ActionCodec.toSlot(30 + i);
+			isCamera[slot] = true;
+			armLengths[slot] = minArmLength + (step * i);
+		}
+		isCamera[KEEP_ARM_SLOT] = true;
+	}
+
+	private void setMovement(int slot, double distance) {
+		distances[slot] = distance;
+		dxs[slot] = distance * Math.cos(HEADINGS[slot]);
+		dys[slot] = distance * Math.sin(HEADINGS[slot]);
+	}
+
+	private static boolean isCameraCode(int code) {
+		return (code >= 30 && code <= 40) || code == 312;
+	}
+
+	/**
+	 * Returns the heading of the movement or turn in the given slot; this
+	 * does not depend on the game setup.
+	 *
+	 * @param slot
+	 *            the action slot.
+	 * @return the heading of the action, in radians.
+	 */
+	public static double getHeading(int slot) {
+		return HEADINGS[slot];
+	}
+
+	/**
+	 * Returns the distance moved by the action in the given slot.
+	 *
+	 * @param slot
+	 *            the action slot.
+	 * @return the distance moved, or 0 for actions that don't move.
+	 */
+	public double getDistance(int slot) {
+		return distances[slot];
+	}
+
+	/**
+	 * Returns true iff the action in the given slot turns on the spot.
+	 *
+	 * @param slot
+	 *            the action slot.
+	 * @return true iff the action turns on the spot.
+	 */
+	public static boolean isTurn(int slot) {
+		return IS_TURN[slot];
+	}
+
+	private void setDiverged(int code, double heading, double distance) {
+		divergedHeadings[code] = heading;
+		divergedDistances[code] = distance;
+		divergedDxs[code] = distance * Math.cos(heading);
+		divergedDys[code] = distance * Math.sin(heading);
+	}
+
+	/**
+	 * Returns the table for the given setup, reusing the last table built if
+	 * it matches.
+	 *
+	 * @param grid
+	 *            the grid that sets the tracker's step distance.
+	 * @param trackerSense
+	 *            the sensing parameters of the tracker.
+	 * @return the table for the given setup.
+	 */
+	public static ActionTable forSetup(TargetGrid grid,
+			SensingParameters trackerSense) {
+		ActionTable table = lastTable;
+		if (table == null || table.gridSize != grid.getGridSize()
+				|| table.trackerSense != trackerSense) {
+			table = new ActionTable(grid, trackerSense);
+			lastTable = table;
+		}
+		return table;
+	}
+
+	/**
+	 * Returns true iff the action in the given slot can be taken from the
+	 * given state.
+	 *
+	 * Camera adjustments need a camera, and the action keeping the current arm
+	 * length only exists when none of the discretised lengths matches it.
+	 *
+	 * @param slot
+	 *            the action slot.
+	 * @param trackerState
+	 *            the current state of the tracker.
+	 * @return true iff the action is available.
+	 */
+	public boolean isAvailable(int slot, AgentState trackerState) {
+		if (!isCamera[slot]) {
+			return true;
+		}
+		if (!trackerState.hasCamera()) {
+			return false;
+		}
+		if (slot != KEEP_ARM_SLOT) {
+			return true;
+		}
+		double armLength = trackerState.getCameraArmLength();
+		for (int i = 0; i < 11; i++) {
+			if (armLengths[FIRST_ARM_SLOT + i] == armLength) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true iff the action in the given slot adjusts the camera arm.
+	 *
+	 * @param slot
+	 *            the action slot.
+	 * @return true iff the action adjusts the camera arm.
+	 */
+	public boolean isCameraAdjustment(int slot) {
+		return isCamera[slot];
+	}
+
+	/**
+	 * Returns how far the action in the given slot moves the tracker along
+	 * the x-axis.
+	 *
+	 * @param slot
+	 *            the action slot.
+	 * @return the displacement along the x-axis.
+	 */
+	public double getDx(int slot) {
+		return dxs[slot];
+	}
+
+	/**
+	 * Returns how far the action in the given slot moves the tracker along
+	 * the y-axis.
+	 *
+	 * @param slot
+	 *            the action slot.
+	 * @return the displacement along the y-axis.
+	 */
+	public double getDy(int slot) {
+		return dys[slot];
+	}
+
+	/**
+	 * Returns the state resulting from taking the action with the given code,
+	 * or applying the diverged movement with the given code.
+	 *
+	 * @param trackerState
+	 *            the current state of the tracker.
+	 * @param code
+	 *            the action code, or a diverged movement code.
+	 * @return the resulting state.
+	 */
+	public AgentState getResultingState(AgentState trackerState, int code) {
+		Point2D pos = trackerState.getPosition();
+		int slot = ActionCodec.toSlot(code);
+		if (slot == KEEP_ARM_SLOT || code == 12) {
+			return trackerState;
+		}
+		if (slot >= 0 && isCamera[slot]) {
+			return new AgentState(pos, trackerState.getHeading(),
+					trackerState.hasCamera(), armLengths[slot]);
+		}
+
+		double heading;
+		double dx;
+		double dy;
+		if (slot >= 0) {
+			heading = HEADINGS[slot];
+			dx = dxs[slot];
+			dy = dys[slot];
+		} else if (code >= 0 && code < NUM_DIVERGED_CODES) {
+			heading = divergedHeadings[code];
+			dx = divergedDxs[code];
+			dy = divergedDys[code];
+		} else {
+			throw new IllegalArgumentException("Unknown action code " + code);
+		}
+		if (dx == 0 && dy == 0) {
+			return new AgentState(pos, heading, trackerState.hasCamera(),
+					trackerState.getCameraArmLength());
+		}
+		return new AgentState(new Point2D.Double(pos.getX() + dx, pos.getY()
+				+ dy), heading, trackerState.hasCamera(),
+				trackerState.getCameraArmLength());
+	}
+
+	/**
+	 * Fills the given array, by slot, with the state resulting from each
+	 * action available from the given state; unavailable slots are set to
+	 * null.
+	 *
+	 * @param trackerState
+	 *            the current state of the tracker.
+	 * @param results
+	 *            an array with room for {@link ActionCodec#NUM_SLOTS} states.
+	 */
+	public void getResultingStates(AgentState trackerState,
+			AgentState[] results) {
+		for (int slot = 0; slot < ActionCodec.NUM_SLOTS; slot++) {
+			if (isAvailable(slot, trackerState)) {
+				results[slot] = getResultingState(trackerState,
+						ActionCodec.toCode(slot));
+			} else {
+				results[slot] = null;
+			}
+		}
+	}
+
+	/**
+	 * Returns the action with the given code, as the game expects it.
+	 *
+	 * @param trackerState
+	 *            the current state of the tracker.
+	 * @param code
+	 *            the action code.
+	 * @return the action.
+	 */
+	public TrackerAction getAction(AgentState trackerState, int code) {
+		int slot = ActionCodec.toSlot(code);
+		if (code == 12) {
+			return new TrackerAction(trackerState, trackerState.getHeading(), 0);
+		} else if (slot == KEEP_ARM_SLOT) {
+			return new TrackerAction(trackerState,
+					trackerState.getCameraArmLength());
+		} else if (isCamera[slot]) {
+			return new TrackerAction(trackerState, armLengths[slot]);
+		}
+		return new TrackerAction(trackerState, HEADINGS[slot], distances[slot]);
+	}
+}
@@ -0,0 +1,364 @@
+package tracker;
+
+import game.AgentState;
+import game.RectRegion;
+import game.SensingParameters;
+import geom.GeomTools;
+
+import java.awt.geom.Point2D;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded memo of {@link GeomTools#canSee(AgentState, AgentState,
+ * SensingParameters, List, double, int)} for one observer's sensing
+ * parameters, obstacles and camera arm resolution, shared by all of the
+ * planner's threads.
+ *
+ * A planner resolves its caches once, through {@link #forSetup}, and passes
+ * them down to where visibility is tested, so lookups only ever take the lock
+ * of one stripe. Games of the same setup are handed the same caches; only the
+ * caches of the few setups used most recently are kept for handing out, so a
+ * long run over many setups doesn't pile them up.
+ *
+ * Poses are quantised before lookup, so states that differ only by rounding
+ * error share an entry. The entries are split over a fixed number of stripes,
+ * each with its own lock and its own share of the capacity; when a stripe is
+ * full it evicts either its least recently used or its oldest entry.
+ */
+public class CanSeeCache {
+	/** How a full stripe chooses the entry to evict. */
+	public enum EvictionPolicy {
+		/** Evict the least recently used entry. */
+		LRU,
+		/** Evict the least recently added entry. */
+		FIFO
+	}
+
+	/** The number of stripes; a power of two. */
+	private static final int NUM_STRIPES = 16;
+	/** The resolution positions and arm lengths are quantised to. */
+	private static final double LENGTH_QUANTA = 1 << 20;
+	/** The resolution headings are quantised to, per radian. */
+	private static final double ANGLE_QUANTA = 1 << 16;
+	/** The most setups whose caches are kept for handing out. */
+	private static final int MAX_SETUPS = 8;
+
+	/** The eviction policy of newly created caches. */
+	private static volatile EvictionPolicy defaultPolicy = EvictionPolicy.LRU;
+	/** The capacity of newly created caches, or 0 to disable caching. */
+	private static volatile int defaultCapacity = 1 << 16;
+	/** The caches handed out most recently, by their setup. */
+	private static final Map<Setup, CanSeeCache> caches = new LinkedHashMap<Setup, CanSeeCache>(
+			MAX_SETUPS * 4 / 3 + 1, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Setup, CanSeeCache> eldest) {
+			return size() > MAX_SETUPS;
+		}
+	};
+
+	/** The most entries the cache holds. */
+	private final int capacity;
+	/** How full stripes evict entries. */
+	private final EvictionPolicy policy;
+	/** The sensing parameters of the observer. */
+	private final SensingParameters sense;
+	/** The obstacles. */
+	private final List<RectRegion> obstacles;
+	/** The allowed error in sight distance. */
+	private final double maxDistanceError;
+	/** The number of points checked along camera arms. */
+	private final int numCameraArmSteps;
+	/** The stripes of entries. */
+	private final Stripe[] stripes = new Stripe[NUM_STRIPES];
+	/** The number of lookups answered from the cache. */
+	private final AtomicLong hits = new AtomicLong();
+	/** The number of lookups that had to call canSee. */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * What a cache's answers depend on: the observer's sensing parameters,
+	 * the obstacles (by identity), the allowed error in sight distance and
+	 * the number of points checked along camera arms.
+	 */
+	private static class Setup {
+		private final SensingParameters sense;
+		private final List<RectRegion> obstacles;
+		private final double maxDistanceError;
+		private final int numCameraArmSteps;
+
+		public Setup(SensingParameters sense, List<RectRegion> obstacles,
+				double maxDistanceError, int numCameraArmSteps) {
+			this.sense = sense;
+			this.obstacles = obstacles;
+			this.maxDistanceError = maxDistanceError;
+			this.numCameraArmSteps = numCameraArmSteps;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Setup)) {
+				return false;
+			}
+			Setup other = (Setup) o;
+			return sense.equals(other.sense) && obstacles == other.obstacles
+					&& maxDistanceError == other.maxDistanceError
+					&& numCameraArmSteps == other.numCameraArmSteps;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = sense.hashCode();
+			hash = hash * 31 + System.identityHashCode(obstacles);
+			hash = hash * 31 + Double.valueOf(maxDistanceError).hashCode();
+			return hash * 31 + numCameraArmSteps;
+		}
+	}
+
+	/**
+	 * One stripe of entries, guarded by its own lock.
+	 */
+	private static class Stripe extends LinkedHashMap<Key, Boolean> {
+		private static final long serialVersionUID = 1L;
+
+		private final int capacity;
+
+		public Stripe(int capacity, EvictionPolicy policy) {
+			super(capacity * 4 / 3 + 1, 0.75f, policy == EvictionPolicy.LRU);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+			return size() > capacity;
+		}
+	}
+
+	/**
+	 * The quantised observer and observee poses.
+	 */
+	private static class Key {
+		private final long observerPosition;
+		private final long observerPose;
+		private final long observeePosition;
+		private final long observeePose;
+
+		public Key(AgentState observer, AgentState observee) {
+			observerPosition = quantisePosition(observer.getPosition());
+			observerPose = quantisePose(observer);
+			observeePosition = quantisePosition(observee.getPosition());
+			observeePose = quantisePose(observee);
+		}
+
+		private static long quantisePosition(Point2D pos) {
+			return Math.round(pos.getX() * LENGTH_QUANTA) << 32
+					^ Math.round(pos.getY() * LENGTH_QUANTA);
+		}
+
+		private static long quantisePose(AgentState state) {
+			long heading = Math.round(GeomTools.normaliseAngle(state
+					.getHeading()) * ANGLE_QUANTA);
+			if (!state.hasCamera()) {
+				return heading << 32 | 0xFFFFFFFFL;
+			}
+			return heading << 32
+					| Math.round(state.getCameraArmLength() * LENGTH_QUANTA);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return observerPosition == other.observerPosition
+					&& observerPose == other.observerPose
+					&& observeePosition == other.observeePosition
+					&& observeePose == other.observeePose;
+		}
+
+		@Override
+		public int hashCode() {
+			long hash = observerPosition;
+			hash = hash * 31 + observerPose;
+			hash = hash * 31 + observeePosition;
+			hash = hash * 31 + observeePose;
+			return (int) (hash ^ (hash >>> 32));
+		}
+	}
+
+	/**
+	 * Constructs an empty cache.
+	 *
+	 * @param sense
+	 *            the sensing parameters of the observer.
+	 * @param obstacles
+	 *            the obstacles.
+	 * @param maxDistanceError
+	 *            the allowed error in sight distance.
+	 * @param numCameraArmSteps
+	 *            the number of points checked along camera arms.
+	 * @param capacity
+	 *            the most entries the cache holds.
+	 * @param policy
+	 *            how full stripes evict entries.
+	 */
+	public CanSeeCache(SensingParameters sense, List<RectRegion> obstacles,
+			double maxDistanceError, int numCameraArmSteps, int capacity,
+			EvictionPolicy policy) {
+		this.capacity = capacity;
+		this.policy = policy;
+		this.sense = sense;
+		this.obstacles = obstacles;
+		this.maxDistanceError = maxDistanceError;
+		this.numCameraArmSteps = numCameraArmSteps;
+		int stripeCapacity = Math.max(1, capacity / NUM_STRIPES);
+		for (int i = 0; i < NUM_STRIPES; i++) {
+			stripes[i] = new Stripe(stripeCapacity, policy);
+		}
+	}
+
+	/**
+	 * Sets the capacity and eviction policy of the caches handed out by
+	 * {@link #forSetup} from now on. Caches already handed out are left as
+	 * they are, since other games may still be using them.
+	 *
+	 * @param capacity
+	 *            the most entries each cache holds, or 0 to disable caching.
+	 * @param policy
+	 *            how full stripes evict entries.
+	 */
+	public static void configure(int capacity, EvictionPolicy policy) {
+		defaultCapacity = capacity;
+		defaultPolicy = policy;
+	}
+
+	/**
+	 * Returns the cache for the given observer, obstacles and camera arm
+	 * resolution, creating it if need be, or null if caching is disabled.
+	 * Callers should keep the cache rather than look it up again for every
+	 * test.
+	 *
+	 * @param sense
+	 *            the sensing parameters of the observer.
+	 * @param obstacles
+	 *            the obstacles.
+	 * @param maxDistanceError
+	 *            the allowed error in sight distance.
+	 * @param numCameraArmSteps
+	 *            the number of points checked along camera arms.
+	 * @return the cache, or null if caching is disabled.
+	 */
+	public static CanSeeCache forSetup(SensingParameters sense,
+			List<RectRegion> obstacles, double maxDistanceError,
+			int numCameraArmSteps) {
+		int capacity = defaultCapacity;
+		EvictionPolicy policy = defaultPolicy;
+		if (capacity <= 0) {
+			return null;
+		}
+		Setup setup = new Setup(sense, obstacles, maxDistanceError,
+				numCameraArmSteps);
+		synchronized (caches) {
+			CanSeeCache cache = caches.get(setup);
+			if (cache == null || cache.capacity != capacity
+					|| cache.policy != policy) {
+				cache = new CanSeeCache(sense, obstacles, maxDistanceError,
+						numCameraArmSteps, capacity, policy);
+				caches.put(setup, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * Returns true iff the observer can see the observee, as
+	 * {@link GeomTools#canSee(AgentState, AgentState, SensingParameters, List, double, int)}
+	 * would.
+	 *
+	 * @param observerState
+	 *            the state of the observer.
+	 * @param observeeState
+	 *            the state of the potential observee.
+	 * @return true iff the observer can see the observee.
+	 */
+	public boolean canSee(AgentState observerState, AgentState observeeState) {
+		Key key = new Key(observerState, observeeState);
+		Stripe stripe = stripes[(key.hashCode() ^ (key.hashCode() >>> 16))
+				& (NUM_STRIPES - 1)];
+		Boolean result;
+		synchronized (stripe) {
+			result = stripe.get(key);
+		}
+		if (result != null) {
+			hits.incrementAndGet();
+			return result;
+		}
+		misses.incrementAndGet();
+		boolean canSee = GeomTools.canSee(observerState, observeeState, sense,
+				obstacles, maxDistanceError, numCameraArmSteps);
+		synchronized (stripe) {
+			stripe.put(key, canSee);
+		}
+		return canSee;
+	}
+
+	/**
+	 * Returns the sensing parameters of the observer this cache is for.
+	 *
+	 * @return the sensing parameters of the observer.
+	 */
+	public SensingParameters getSensingParameters() {
+		return sense;
+	}
+
+	/**
+	 * Returns the number of lookups answered from the cache.
+	 *
+	 * @return the number of hits.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of lookups that had to call canSee.
+	 *
+	 * @return the number of misses.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of entries in the cache.
+	 *
+	 * @return the number of entries.
+	 */
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the hit and miss counts and the number of entries of this
+	 * cache.
+	 *
+	 * @return a summary of the cache's statistics.
+	 */
+	public String getStatistics() {
+		long hits = getHits();
+		long total = hits + getMisses();
+		return String.format("%d/%d hits (%.1f%%), %d entries", hits, total,
+				total == 0 ? 0.0 : 100.0 * hits / total, size());
+	}
+}
@@ -0,0 +1,638 @@
+package tracker;
+
+import game.AgentState;
+import game.RectRegion;
+import game.SensingParameters;
+import geom.GeomTools;
+import geom.GridCell;
+import geom.TargetGrid;
+
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.List;
+
+import target.TargetPolicy;
+
+/**
+ * A forward model of the game for planning, working on primitive fields so
+ * that simulating a step allocates nothing.
+ *
+ * The movement, camera adjustment and scoring rules mirror
+ * {@link game.GameRunner#simulateMovement},
+ * {@link game.GameRunner#simulateCameraAdjustment} and
+ * {@link game.GameRunner#simulateAction}; the swept arcs and rectangles the
+ * game tests with java.awt.geom shapes are tested here with the equivalent
+ * sector and separating axis tests. Agent states are kept in
+ * {@link AgentBuffer}s, which are updated in place and can be reused from one
+ * step to the next.
+ */
+public class ForwardModel {
+	/** The allowed error in sight distance, as in the game. */
+	public static final double MAX_SIGHT_DISTANCE_ERROR = 1e-5;
+	/** The slack allowed in angle comparisons. */
+	private static final double ANGLE_EPSILON = 1e-12;
+
+	/** The most recently built model, which most callers will want again. */
+	private static volatile ForwardModel lastModel;
+
+	/**
+	 * The mutable state of one agent.
+	 */
+	public static class AgentBuffer {
+		public double x;
+		public double y;
+		public double heading;
+		public boolean hasCamera;
+		public double armLength;
+
+		/**
+		 * Copies the given state into this buffer.
+		 *
+		 * @param state
+		 *            the state to copy.
+		 */
+		public void set(AgentState state) {
+			x = state.getPosition().getX();
+			y = state.getPosition().getY();
+			heading = state.getHeading();
+			hasCamera = state.hasCamera();
+			armLength = state.getCameraArmLength();
+		}
+
+		/**
+		 * Copies the given buffer into this one.
+		 *
+		 * @param other
+		 *            the buffer to copy.
+		 */
+		public void set(AgentBuffer other) {
+			x = other.x;
+			y = other.y;
+			heading = other.heading;
+			hasCamera = other.hasCamera;
+			armLength = other.armLength;
+		}
+
+		/**
+		 * Returns the state held in this buffer.
+		 *
+		 * @return the state.
+		 */
+		public AgentState toAgentState() {
+			return new AgentState(new Point2D.Double(x, y), heading, hasCamera,
+					armLength);
+		}
+	}
+
+	/** The grid the target moves on. */
+	private final TargetGrid grid;
+	/** The policy of the target. */
+	private final TargetPolicy targetPolicy;
+	/** The sensing parameters of the target. */
+	private final SensingParameters targetSense;
+	/** The sensing parameters of the tracker. */
+	private final SensingParameters trackerSense;
+	/** The obstacles. */
+	private final List<RectRegion> obstacles;
+	/** The goal region. */
+	private final RectRegion goalRegion;
+	/** The number of points checked along camera arms. */
+	private final int numCameraArmSteps;
+
+	/** The view-obstructing obstacles. */
+	private final Rectangle2D[] viewObstacles;
+	/** The obstacles plus the workspace boundaries, which block movement. */
+	private final Rectangle2D[] moveObstacles;
+	/** The goal. */
+	private final Rectangle2D goal;
+	/** The cell the target's policy moves it to from each cell. */
+	private final int[] policyNext;
+
+	/**
+	 * Builds a model for the given setup.
+	 *
+	 * @param numCameraArmSteps
+	 *            the number of points checked along camera arms; the game
+	 *            checks 1000.
+	 */
+	public ForwardModel(TargetPolicy targetPolicy,
+			SensingParameters targetSense, SensingParameters trackerSense,
+			List<RectRegion> obstacles, RectRegion goalRegion,
+			int numCameraArmSteps) {
+		this.grid = targetPolicy.getGrid();
+		this.targetPolicy = targetPolicy;
+		this.targetSense = targetSense;
+		this.trackerSense = trackerSense;
+		this.obstacles = obstacles;
+		this.goalRegion = goalRegion;
+		this.numCameraArmSteps = numCameraArmSteps;
+
+		viewObstacles = new Rectangle2D[obstacles.size()];
+		moveObstacles = new Rectangle2D[obstacles.size() + 4];
+		for (int i = 0; i < obstacles.size(); i++) {
+			viewObstacles[i] = obstacles.get(i).getRect();
+			moveObstacles[i] = viewObstacles[i];
+		}
+		// The same boundary obstacles as the game adds.
+		int n = obstacles.size();
+		moveObstacles[n] = new Rectangle2D.Double(-1, -1, 1, 3);
+		moveObstacles[n + 1] = new Rectangle2D.Double(-1, -1, 3, 1);
+		moveObstacles[n + 2] = new Rectangle2D.Double(-1, 1, 3, 1);
+		moveObstacles[n + 3] = new Rectangle2D.Double(1, -1, 1, 3);
+		goal = goalRegion.getRect();
+
+		int gridSize = grid.getGridSize();
+		policyNext = new int[gridSize * gridSize];
+		for (int cell = 0; cell < policyNext.length; cell++) {
+			GridCell gridCell = new GridCell(cell / gridSize, cell % gridSize);
+			GridCell next = grid.getCell(targetPolicy.getAction(
+					new AgentState(grid.getCentre(gridCell), 0))
+					.getResultingState().getPosition());
+			policyNext[cell] = next.getRow() * gridSize + next.getCol();
+		}
+	}
+
+	/**
+	 * Returns the model for the given setup, reusing the last model built if
+	 * it matches.
+	 *
+	 * @return the model for the given setup.
+	 */
+	public static ForwardModel forSetup(TargetPolicy targetPolicy,
+			SensingParameters targetSense, SensingParameters trackerSense,
+			List<RectRegion> obstacles, RectRegion goalRegion,
+			int numCameraArmSteps) {
+		ForwardModel model = lastModel;
+		if (model == null || model.targetPolicy != targetPolicy
+				|| model.targetSense != targetSense
+				|| model.trackerSense != trackerSense
+				|| model.obstacles != obstacles
+				|| model.goalRegion != goalRegion
+				|| model.numCameraArmSteps != numCameraArmSteps) {
+			model = new ForwardModel(targetPolicy, targetSense, trackerSense,
+					obstacles, goalRegion, numCameraArmSteps);
+			lastModel = model;
+		}
+		return model;
+	}
+
+	/**
+	 * Applies a movement with the given heading and distance, as made by
+	 * <code>new Action(state, heading, distance)</code>.
+	 *
+	 * @param state
+	 *            the state of the agent, updated in place.
+	 * @param heading
+	 *            the new heading.
+	 * @param distance
+	 *            the distance to travel.
+	 * @return true iff the state changed.
+	 */
+	public boolean simulateMovement(AgentBuffer state, double heading,
+			double distance) {
+		if (distance == 0) {
+			if (heading == state.heading) {
+				return false;
+			}
+			return simulateMovement(state, state.x, state.y, heading, distance);
+		}
+		return simulateMovement(state, state.x + distance * Math.cos(heading),
+				state.y + distance * Math.sin(heading), heading, distance);
+	}
+
+	/**
+	 * Applies a movement to the given position, as made by
+	 * <code>new Action(state, desiredPos)</code>.
+	 *
+	 * @param state
+	 *            the state of the agent, updated in place.
+	 * @param x
+	 *            the x-coordinate to move to.
+	 * @param y
+	 *            the y-coordinate to move to.
+	 * @return true iff the state changed.
+	 */
+	public boolean simulateMovementTo(AgentBuffer state, double x, double y) {
+		if (x == state.x && y == state.y) {
+			return false;
+		}
+		double dx = x - state.x;
+		double dy = y - state.y;
+		return simulateMovement(state, x, y, Math.atan2(dy, dx),
+				Math.sqrt(dx * dx + dy * dy));
+	}
+
+	/**
+	 * Moves the agent to the given end position and heading unless the turn
+	 * or the movement is blocked, as in the game.
+	 */
+	private boolean simulateMovement(AgentBuffer state, double endX,
+			double endY, double endHeading, double distance) {
+		if (state.hasCamera
+				&& state.heading != endHeading
+				&& !canTurn(state.x, state.y, state.heading, endHeading,
+						state.armLength)) {
+			return false;
+		}
+		if (distance != 0
+				&& !canMove(state.x, state.y, endX, endY, state.hasCamera,
+						state.armLength)) {
+			return false;
+		}
+		state.x = endX;
+		state.y = endY;
+		state.heading = endHeading;
+		return true;
+	}
+
+	/**
+	 * Applies a camera adjustment to the given arm length; lengthening the arm
+	 * fails if the new arm would hit an obstacle.
+	 *
+	 * @param state
+	 *            the state of the agent, updated in place.
+	 * @param armLength
+	 *            the new camera arm length.
+	 * @return true iff the adjustment was made.
+	 */
+	public boolean simulateCameraAdjustment(AgentBuffer state,
+			double armLength) {
+		if (!state.hasCamera) {
+			return false;
+		}
+		if (armLength > state.armLength) {
+			double direction = state.heading - Math.PI / 2;
+			double cameraX = state.x + armLength * Math.cos(direction);
+			double cameraY = state.y + armLength * Math.sin(direction);
+			for (Rectangle2D rect : moveObstacles) {
+				if (rect.intersectsLine(state.x, state.y, cameraX, cameraY)) {
+					return false;
+				}
+			}
+		}
+		state.armLength = armLength;
+		return true;
+	}
+
+	/**
+	 * Moves the target one step along its policy, without divergence.
+	 *
+	 * @param target
+	 *            the state of the target, updated in place.
+	 * @return true iff the target moved.
+	 */
+	public boolean simulateTargetPolicy(AgentBuffer target) {
+		int gridSize = grid.getGridSize();
+		int row = (int) ((1 - target.y) * gridSize);
+		int col = (int) (target.x * gridSize);
+		if (row < 0 || row >= gridSize || col < 0 || col >= gridSize) {
+			return false;
+		}
+		int cell = row * gridSize + col;
+		int next = policyNext[cell];
+		if (next == cell) {
+			return false;
+		}
+		return simulateMovementTo(target,
+				0 + (next % gridSize + 0.5) / gridSize,
+				1 - (next / gridSize + 0.5) / gridSize);
+	}
+
+	/**
+	 * Returns the tracker's reward for the turn it has just taken: 1 if it
+	 * sees the target, less 5 for calling HQ.
+	 *
+	 * @param tracker
+	 *            the state of the tracker.
+	 * @param target
+	 *            the state of the target.
+	 * @param isHQCall
+	 *            true iff the tracker called HQ.
+	 * @return the reward.
+	 */
+	public double getTrackerReward(AgentBuffer tracker, AgentBuffer target,
+			boolean isHQCall) {
+		double reward = isHQCall ? -5 : 0;
+		if (trackerSees(tracker, target)) {
+			reward += 1;
+		}
+		return reward;
+	}
+
+	/**
+	 * Returns the target's reward for the turn it has just taken: 1 if it
+	 * sees the tracker.
+	 *
+	 * @param target
+	 *            the state of the target.
+	 * @param tracker
+	 *            the state of the tracker.
+	 * @return the reward.
+	 */
+	public double getTargetReward(AgentBuffer target, AgentBuffer tracker) {
+		return targetSees(target, tracker) ? 1 : 0;
+	}
+
+	/**
+	 * Returns true iff the tracker sees the target.
+	 */
+	public boolean trackerSees(AgentBuffer tracker, AgentBuffer target) {
+		return canSee(tracker, target, trackerSense);
+	}
+
+	/**
+	 * Returns true iff the target sees the tracker.
+	 */
+	public boolean targetSees(AgentBuffer target, AgentBuffer tracker) {
+		return canSee(target, tracker, targetSense);
+	}
+
+	/**
+	 * Returns true iff the given agent is within the goal.
+	 *
+	 * @param state
+	 *            the state of the agent.
+	 * @return true iff the agent is within the goal.
+	 */
+	public boolean isWithinGoal(AgentBuffer state) {
+		return goal.contains(state.x, state.y);
+	}
+
+	/**
+	 * Returns true iff the observer sees the observee or enough of its camera
+	 * arm, as {@link GeomTools#canSee(AgentState, AgentState,
+	 * SensingParameters, List, double, int)} does.
+	 */
+	private boolean canSee(AgentBuffer observer, AgentBuffer observee,
+			SensingParameters sp) {
+		if (canSee(observer, observee.x, observee.y, sp)) {
+			return true;
+		}
+		if (!observee.hasCamera) {
+			return false;
+		}
+		double direction = observee.heading - Math.PI / 2;
+		double cameraX = observee.x + observee.armLength * Math.cos(direction);
+		double cameraY = observee.y + observee.armLength * Math.sin(direction);
+		int count = 0;
+		for (int i = 1; i <= numCameraArmSteps; i++) {
+			double t = ((double) i) / numCameraArmSteps;
+			if (canSee(observer, observee.x * (1 - t) + cameraX * t,
+					observee.y * (1 - t) + cameraY * t, sp)) {
+				count += 1;
+			} else {
+				count = 0;
+			}
+			if (count * 2 > numCameraArmSteps + 1) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true iff the observer sees the given point.
+	 */
+	private boolean canSee(AgentBuffer observer, double px, double py,
+			SensingParameters sp) {
+		double viewX = observer.x;
+		double viewY = observer.y;
+		if (observer.hasCamera) {
+			double direction = observer.heading - Math.PI / 2;
+			viewX += observer.armLength * Math.cos(direction);
+			viewY += observer.armLength * Math.sin(direction);
+		}
+		double dx = px - viewX;
+		double dy = py - viewY;
+		double distance = Math.sqrt(dx * dx + dy * dy);
+		if (distance < MAX_SIGHT_DISTANCE_ERROR) {
+			return true;
+		}
+		if (distance > sp.getRange() + MAX_SIGHT_DISTANCE_ERROR) {
+			return false;
+		}
+		double viewAngleDelta = GeomTools.normaliseAngle(Math.atan2(dy, dx)
+				- observer.heading);
+		if (Math.abs(viewAngleDelta) > sp.getAngle() / 2) {
+			return false;
+		}
+		for (Rectangle2D rect : viewObstacles) {
+			if (rect.intersectsLine(viewX, viewY, px, py)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true iff moving in a straight line is collision free, including
+	 * the area swept by the camera arm.
+	 */
+	private boolean canMove(double startX, double startY, double endX,
+			double endY, boolean hasCamera, double armLength) {
+		for (Rectangle2D rect : moveObstacles) {
+			if (rect.intersectsLine(startX, startY, endX, endY)) {
+				return false;
+			}
+		}
+		if (!hasCamera) {
+			return true;
+		}
+		// The swept rectangle, rotated about the start: one side along the
+		// arm (u), the other along the movement (m).
+		double dx = endX - startX;
+		double dy = endY - startY;
+		double distance = Math.sqrt(dx * dx + dy * dy);
+		double angle = Math.atan2(dy, dx) - Math.PI / 2;
+		double ux = Math.cos(angle);
+		double uy = Math.sin(angle);
+		double mx = -uy;
+		double my = ux;
+		double x0 = startX, y0 = startY;
+		double x1 = startX + armLength * ux, y1 = startY + armLength * uy;
+		double x2 = x1 + distance * mx, y2 = y1 + distance * my;
+		double x3 = startX + distance * mx, y3 = startY + distance * my;
+		double sweepMinX = Math.min(Math.min(x0, x1), Math.min(x2, x3));
+		double sweepMaxX = Math.max(Math.max(x0, x1), Math.max(x2, x3));
+		double sweepMinY = Math.min(Math.min(y0, y1), Math.min(y2, y3));
+		double sweepMaxY = Math.max(Math.max(y0, y1), Math.max(y2, y3));
+		double startU = startX * ux + startY * uy;
+		double startM = startX * mx + startY * my;
+		for (Rectangle2D rect : moveObstacles) {
+			if (rect.getMaxX() < sweepMinX || rect.getMinX() > sweepMaxX
+					|| rect.getMaxY() < sweepMinY || rect.getMinY() > sweepMaxY) {
+				continue;
+			}
+			if (!overlaps(rect, ux, uy, startU, startU + armLength)
+					|| !overlaps(rect, mx, my, startM, startM + distance)) {
+				continue;
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true iff the projection of the rectangle onto the given axis
+	 * overlaps the given interval.
+	 */
+	private static boolean overlaps(Rectangle2D rect, double ax, double ay,
+			double min, double max) {
+		double px = (ax >= 0) ? rect.getMinX() * ax : rect.getMaxX() * ax;
+		double qx = (ax >= 0) ? rect.getMaxX() * ax : rect.getMinX() * ax;
+		double py = (ay >= 0) ? rect.getMinY() * ay : rect.getMaxY() * ay;
+		double qy = (ay >= 0) ? rect.getMaxY() * ay : rect.getMinY() * ay;
+		return px + py <= max && qx + qy >= min;
+	}
+
+	/**
+	 * Returns true iff the camera arm can turn from one heading to the other
+	 * one way or the other without hitting an obstacle.
+	 */
+	private boolean canTurn(double cx, double cy, double startHeading,
+			double endHeading, double armLength) {
+		double extent = GeomTools.normaliseAngle(endHeading - startHeading);
+		if (extent == 0) {
+			// The game's arc would be empty.
+			return true;
+		}
+		if (isSweepFree(cx, cy, startHeading, extent, armLength)) {
+			return true;
+		}
+		double reverse = (extent > 0) ? extent - 2 * Math.PI : extent + 2
+				* Math.PI;
+		return isSweepFree(cx, cy, startHeading, reverse, armLength);
+	}
+
+	/**
+	 * Returns true iff the sector swept by the camera arm turning through the
+	 * given (signed) extent misses every obstacle.
+	 */
+	private boolean isSweepFree(double cx, double cy, double startHeading,
+			double extent, double armLength) {
+		if (armLength <= 0) {
+			return true;
+		}
+		for (Rectangle2D rect : moveObstacles) {
+			if (sectorIntersects(rect, cx, cy, startHeading, extent, armLength)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true iff the given rectangle meets the sector of the given
+	 * radius about the centre, from the start heading through the extent.
+	 * Either the sector's boundary crosses the rectangle's, or one contains
+	 * the other.
+	 */
+	private static boolean sectorIntersects(Rectangle2D rect, double cx,
+			double cy, double startHeading, double extent, double radius) {
+		double minX = rect.getMinX();
+		double maxX = rect.getMaxX();
+		double minY = rect.getMinY();
+		double maxY = rect.getMaxY();
+		double nearX = Math.max(minX, Math.min(cx, maxX));
+		double nearY = Math.max(minY, Math.min(cy, maxY));
+		double nearDx = nearX - cx;
+		double nearDy = nearY - cy;
+		if (nearDx * nearDx + nearDy * nearDy > radius * radius) {
+			return false;
+		}
+		if (nearDx == 0 && nearDy == 0) {
+			return true;
+		}
+		// The radii at either end of the sweep.
+		double endHeading = startHeading + extent;
+		if (rect.intersectsLine(cx, cy, cx + radius * Math.sin(startHeading),
+				cy - radius * Math.cos(startHeading))
+				|| rect.intersectsLine(cx, cy, cx + radius
+						* Math.sin(endHeading), cy - radius
+						* Math.cos(endHeading))) {
+			return true;
+		}
+		// A corner inside the sector.
+		double r2 = radius * radius;
+		if (inSector(minX, minY, cx, cy, startHeading, extent, r2)
+				|| inSector(minX, maxY, cx, cy, startHeading, extent, r2)
+				|| inSector(maxX, minY, cx, cy, startHeading, extent, r2)
+				|| inSector(maxX, maxY, cx, cy, startHeading, extent, r2)) {
+			return true;
+		}
+		// The arc crossing an edge.
+		return arcCrossesX(minX, minY, maxY, cx, cy, startHeading, extent,
+				radius)
+				|| arcCrossesX(maxX, minY, maxY, cx, cy, startHeading, extent,
+						radius)
+				|| arcCrossesY(minY, minX, maxX, cx, cy, startHeading, extent,
+						radius)
+				|| arcCrossesY(maxY, minX, maxX, cx, cy, startHeading, extent,
+						radius);
+	}
+
+	/**
+	 * Returns true iff the given point is within the sector.
+	 */
+	private static boolean inSector(double px, double py, double cx,
+			double cy, double startHeading, double extent, double r2) {
+		double dx = px - cx;
+		double dy = py - cy;
+		return dx * dx + dy * dy <= r2
+				&& inSweep(Math.atan2(dx, -dy), startHeading, extent);
+	}
+
+	/**
+	 * Returns true iff the arc meets the vertical edge at x between the given
+	 * y-coordinates.
+	 */
+	private static boolean arcCrossesX(double x, double minY, double maxY,
+			double cx, double cy, double startHeading, double extent,
+			double radius) {
+		double dx = x - cx;
+		double h2 = radius * radius - dx * dx;
+		if (h2 < 0) {
+			return false;
+		}
+		double h = Math.sqrt(h2);
+		return (cy + h >= minY && cy + h <= maxY && inSweep(
+				Math.atan2(dx, -h), startHeading, extent))
+				|| (cy - h >= minY && cy - h <= maxY && inSweep(
+						Math.atan2(dx, h), startHeading, extent));
+	}
+
+	/**
+	 * Returns true iff the arc meets the horizontal edge at y between the
+	 * given x-coordinates.
+	 */
+	private static boolean arcCrossesY(double y, double minX, double maxX,
+			double cx, double cy, double startHeading, double extent,
+			double radius) {
+		double dy = y - cy;
+		double w2 = radius * radius - dy * dy;
+		if (w2 < 0) {
+			return false;
+		}
+		double w = Math.sqrt(w2);
+		return (cx + w >= minX && cx + w <= maxX && inSweep(Math.atan2(w, -dy),
+				startHeading, extent))
+				|| (cx - w >= minX && cx - w <= maxX && inSweep(
+						Math.atan2(-w, -dy), startHeading, extent));
+	}
+
+	/**
+	 * Returns true iff the given heading is passed when turning from the
+	 * start heading through the given (signed) extent.
+	 */
+	private static boolean inSweep(double heading, double startHeading,
+			double extent) {
+		double offset = (extent >= 0) ? heading - startHeading : startHeading
+				- heading;
+		offset %= 2 * Math.PI;
+		if (offset < 0) {
+			offset += 2 * Math.PI;
+		}
+		return offset <= Math.abs(extent) + ANGLE_EPSILON
+				|| offset >= 2 * Math.PI - ANGLE_EPSILON;
+	}
+}
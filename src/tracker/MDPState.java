@@ -2,14 +2,63 @@ package tracker;
 
 import game.AgentState;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map.Entry;
-
-import divergence.MotionHistory;
-
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A node of the planning tree.
+ * 
+ * All of the statistics are safe to read and update from several threads at
+ * once, so that many workers can descend the same tree; counters are updated
+ * atomically and children are added through {@link #findOrAddChild}.
+ * 
+ * The per-action statistics are kept in a single primitive array indexed by
+ * the {@link ActionCodec} slot of each action. It is only allocated once the
+ * node is expanded, so leaves don't carry one, and nodes obtained from a
+ * {@link NodePool} reuse it from one search to the next.
+ * 
+ * The links to the children are kept in parallel primitive arrays, in the
+ * order they were added, with an open-addressing index on the key of the
+ * action that leads to the child together with the outcome codes the tracker
+ * and target diverged to, which determine the child's states exactly, so
+ * looking one up takes constant time and nothing is boxed. Given a
+ * {@link TranspositionTable}, a new child is first looked up there, so that a
+ * node may have several parents; what is specific to each parent, the action
+ * and the probability of reaching the child, is kept in its link.
+ * 
+ * When the pool runs short, the {@link NodePool} may compact a child into a
+ * summary link, which keeps only the child's value; the child is rebuilt if a
+ * trace reaches it again.
+ */
 public class MDPState {
+	/** Marks an action with no reward or value yet. */
+	private static final long UNSET = Double.doubleToRawLongBits(Double.NaN);
+	/** The number of statistics kept for each action slot. */
+	private static final int STATS_PER_SLOT = 3;
+	/** The offset of an action's immediate reward, as raw double bits. */
+	private static final int REWARD = 0;
+	/** The offset of an action's value, as raw double bits. */
+	private static final int VALUE = 1;
+	/**
+	 * The offset of an action's counters: the times it has been taken in the
+	 * low 32 bits, the workers descending through it in the next 16 and the
+	 * children it has reached in the top 16.
+	 */
+	private static final int COUNTS = 2;
+	/** One worker descending through an action, in its counters. */
+	private static final long VIRTUAL_LOSS_UNIT = 1L << 32;
+	/** One child reached by an action, in its counters. */
+	private static final long CHILD_UNIT = 1L << 48;
+	/** The number of links a node first makes room for. */
+	private static final int INITIAL_LINKS = 4;
+
 	private AgentState targetState;
 	private AgentState trackerState;
 	private boolean isChanged = true;
@@ -18,79 +67,384 @@ public class MDPState {
 	private double targetProbability = 1;
 	private double reward = 0;
 	private int depth;
-	List<MDPState> children;
-	HashMap<Integer, Double> rewardActions;
-	HashMap<Integer, Double> valueActions;
+	/** The value estimated by a rollout from this node, or NaN if none. */
+	private volatile double rolloutValue = Double.NaN;
+	/**
+	 * The reward, value and counters of each action slot, STATS_PER_SLOT
+	 * entries at a time, or null until the node is expanded.
+	 */
+	private volatile AtomicLongArray stats;
+	/** The links to the children, or null until the first is added. */
+	private volatile Links links;
+	/**
+	 * The number of links; those below it are complete, so it is written
+	 * after, and read before, the links themselves.
+	 */
+	private volatile int numLinks;
+
+	private AtomicInteger visited = new AtomicInteger();
+	/** The pool new children are taken from, or null to allocate them. */
+	private NodePool pool;
+	/** The table new children are shared through, or null for a plain tree. */
+	private TranspositionTable transpositions;
+	/** The key of this node in the transposition table. */
+	private long transpositionKey;
+	/** The last collection of the pool in which this node was reachable. */
+	int mark;
+	/** True iff this node is back in its pool's free list. */
+	boolean free;
+
+	/**
+	 * The links from a node to its children, or to the summaries of children
+	 * that have been evicted, in parallel arrays. Links below the node's count
+	 * are only changed in place between searches; during a search, a copy is
+	 * published instead.
+	 */
+	private static final class Links {
+		/** The key of each link, from {@link #getChildKey}. */
+		final int[] keys;
+		/** The action leading to each child. */
+		final int[] actionCodes;
+		/** The probability of each action leading to its child. */
+		final double[] probabilities;
+		/** Each child, or null if it has been evicted. */
+		final MDPState[] children;
+		/** The value of each evicted child when it was evicted. */
+		final double[] summaryValues;
+		/**
+		 * One more than the position of the link with each key, at the key's
+		 * hash, or 0 for none; it is kept at most half full.
+		 */
+		final int[] index;
+
+		Links(int capacity) {
+			keys = new int[capacity];
+			actionCodes = new int[capacity];
+			probabilities = new double[capacity];
+			children = new MDPState[capacity];
+			summaryValues = new double[capacity];
+			index = new int[capacity * 2];
+		}
+
+		/**
+		 * Returns a copy of the first size links with room for the given
+		 * number.
+		 */
+		Links copy(int size, int capacity) {
+			Links copy = new Links(capacity);
+			System.arraycopy(keys, 0, copy.keys, 0, size);
+			System.arraycopy(actionCodes, 0, copy.actionCodes, 0, size);
+			System.arraycopy(probabilities, 0, copy.probabilities, 0, size);
+			System.arraycopy(children, 0, copy.children, 0, size);
+			System.arraycopy(summaryValues, 0, copy.summaryValues, 0, size);
+			if (copy.index.length == index.length) {
+				System.arraycopy(index, 0, copy.index, 0, index.length);
+			} else {
+				for (int link = 0; link < size; link++) {
+					if (keys[link] >= 0) {
+						copy.addToIndex(link);
+					}
+				}
+			}
+			return copy;
+		}
+
+		/**
+		 * Returns the position of the link with the given key among the first
+		 * size links, or -1 if there is none.
+		 */
+		int find(int key, int size) {
+			int mask = index.length - 1;
+			for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+				int entry = index[i];
+				if (entry == 0) {
+					return -1;
+				}
+				// Entries beyond size are links still being added.
+				if (entry <= size && keys[entry - 1] == key) {
+					return entry - 1;
+				}
+			}
+		}
+
+		/**
+		 * Indexes the link at the given position by its key.
+		 */
+		void addToIndex(int link) {
+			int mask = index.length - 1;
+			int i = hash(keys[link]) & mask;
+			while (index[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			index[i] = link + 1;
+		}
+
+		/** Returns the value of the child of the given link, evicted or not. */
+		double getValue(int link) {
+			MDPState child = children[link];
+			return child == null ? summaryValues[link] : child.getMaxValue();
+		}
 
-	private int visited = 0;
-	HashMap<Integer, Integer> actionsPerformed;
+		private static int hash(int key) {
+			int h = key * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+	}
 
 	public MDPState(AgentState targetState, AgentState trackerState) {
 		this.setTargetState(targetState);
 		this.setTrackerState(trackerState);
-		children = new ArrayList<MDPState>();
-		rewardActions = new HashMap<Integer, Double>();
-		valueActions = new HashMap<Integer, Double>();
-		actionsPerformed = new HashMap<Integer, Integer>();
+	}
+
+	/**
+	 * Clears this node so that it can be reused for the given states. Only
+	 * the statistics and links it has used are cleared, and their arrays are
+	 * kept for reuse.
+	 */
+	void reset(AgentState targetState, AgentState trackerState) {
+		this.setTargetState(targetState);
+		this.setTrackerState(trackerState);
+		isChanged = true;
+		parentActionCode = -1;
+		probability = 1;
+		targetProbability = 1;
+		reward = 0;
+		depth = 0;
+		rolloutValue = Double.NaN;
+		transpositions = null;
+		transpositionKey = 0;
+		visited.set(0);
+		if (stats != null) {
+			clearStats(stats);
+		}
+		Links current = links;
+		if (current != null && numLinks > 0) {
+			Arrays.fill(current.children, 0, numLinks, null);
+			Arrays.fill(current.index, 0);
+			numLinks = 0;
+		}
+	}
+
+	/**
+	 * Marks every action slot in the given statistics as unset.
+	 */
+	private static void clearStats(AtomicLongArray stats) {
+		for (int slot = 0; slot < ActionCodec.NUM_SLOTS; slot++) {
+			int base = slot * STATS_PER_SLOT;
+			stats.set(base + REWARD, UNSET);
+			stats.set(base + VALUE, UNSET);
+			stats.set(base + COUNTS, 0);
+		}
+	}
+
+	/**
+	 * Returns the statistics of this node, allocating them if it is being
+	 * expanded for the first time.
+	 */
+	private AtomicLongArray getStats() {
+		AtomicLongArray current = stats;
+		if (current == null) {
+			synchronized (this) {
+				current = stats;
+				if (current == null) {
+					current = new AtomicLongArray(ActionCodec.NUM_SLOTS
+							* STATS_PER_SLOT);
+					clearStats(current);
+					stats = current;
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Returns the given statistic of the given action, or the given default
+	 * if the node hasn't been expanded.
+	 */
+	private long getStat(int action, int offset, long unexpanded) {
+		AtomicLongArray current = stats;
+		if (current == null) {
+			return unexpanded;
+		}
+		return current.get(ActionCodec.toSlot(action) * STATS_PER_SLOT
+				+ offset);
+	}
+
+	void setPool(NodePool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Sets the table this node and its new descendants share children
+	 * through, or null to build a plain tree.
+	 */
+	void setTranspositions(TranspositionTable transpositions) {
+		this.transpositions = transpositions;
+	}
+
+	/**
+	 * Returns the key of this node in its transposition table, or 0 if it is
+	 * not in one.
+	 */
+	long getTranspositionKey() {
+		return transpositionKey;
 	}
 
 	public String toString() {
 		String tostring = "tracker: " + this.trackerState + " target: "
 				+ this.targetState + "\n";
 
-		for (int i = 0; i < children.size(); i++) {
-			tostring += "child" + children.get(i).toString();
+		int size = numLinks;
+		for (int link = 0; link < size; link++) {
+			MDPState child = links.children[link];
+			if (child != null) {
+				tostring += "child" + child.toString();
+			}
 		}
 		return tostring;
 
 	}
 
 	public void setRewardAction(int action, double value) {
-		rewardActions.put(action, value);
+		getStats().set(ActionCodec.toSlot(action) * STATS_PER_SLOT + REWARD,
+				Double.doubleToRawLongBits(value));
+	}
+
+	public boolean hasRewardAction(int action) {
+		return getStat(action, REWARD, UNSET) != UNSET;
+	}
+
+	/**
+	 * Returns true iff the given action has been given a value.
+	 */
+	public boolean hasValueAction(int action) {
+		return getStat(action, VALUE, UNSET) != UNSET;
+	}
+
+	public double getValueAction(int action) {
+		long bits = getStat(action, VALUE, UNSET);
+		return bits == UNSET ? 0 : Double.longBitsToDouble(bits);
+	}
+
+	/**
+	 * Returns the number of times the given action has been taken from this
+	 * state, counting the initial visit every action starts with.
+	 */
+	public int getActionCount(int action) {
+		return (int) getStat(action, COUNTS, 0);
+	}
+
+	/**
+	 * Registers the given action with an initial count of one, if it has not
+	 * been registered yet.
+	 */
+	public void addAction(int action) {
+		AtomicLongArray current = getStats();
+		int index = ActionCodec.toSlot(action) * STATS_PER_SLOT + COUNTS;
+		long counts;
+		do {
+			counts = current.get(index);
+			if ((int) counts != 0) {
+				return;
+			}
+		} while (!current.compareAndSet(index, counts, counts + 1));
+	}
+
+	public void incrementActionCount(int action) {
+		addAction(action);
+		getStats().incrementAndGet(
+				ActionCodec.toSlot(action) * STATS_PER_SLOT + COUNTS);
+	}
+
+	/**
+	 * Returns the number of workers currently descending through the given
+	 * action.
+	 */
+	public int getVirtualLoss(int action) {
+		return (int) ((getStat(action, COUNTS, 0) >>> 32) & 0xFFFF);
+	}
+
+	/**
+	 * Marks a worker as descending through the given action, which makes the
+	 * action look worse to the other workers until
+	 * {@link #removeVirtualLoss(int)} is called.
+	 */
+	public void addVirtualLoss(int action) {
+		getStats().addAndGet(
+				ActionCodec.toSlot(action) * STATS_PER_SLOT + COUNTS,
+				VIRTUAL_LOSS_UNIT);
+	}
+
+	public void removeVirtualLoss(int action) {
+		getStats().addAndGet(
+				ActionCodec.toSlot(action) * STATS_PER_SLOT + COUNTS,
+				-VIRTUAL_LOSS_UNIT);
 	}
 
 	public void updateValue(int action) {
+		AtomicLongArray current = getStats();
+		int base = ActionCodec.toSlot(action) * STATS_PER_SLOT;
 		double value = 0;
-		value += rewardActions.get(action);
+		value += Double.longBitsToDouble(current.get(base + REWARD));
 		
 		double childValue = 0;
 		// += children * probability
-		for (int i = 0; i < children.size(); i++) {
-			if (children.get(i).getParentActionCode() == action) {
-				childValue += children.get(i).getProbability()
-						* children.get(i).getMaxValue();
+		int size = numLinks;
+		Links currentLinks = links;
+		for (int link = 0; link < size; link++) {
+			if (currentLinks.actionCodes[link] == action) {
+				childValue += currentLinks.probabilities[link]
+						* currentLinks.getValue(link);
 			}
 		}
 		childValue *= Math.pow(0.7, depth);
 		value += childValue;
 		
-		valueActions.put(action, value);
+		current.set(base + VALUE, Double.doubleToRawLongBits(value));
 	}
 
 	public double getMaxValue() {
 		// return max of actions keys
-		Double value = Double.MIN_VALUE;
-		for (Entry<Integer, Double> entry : valueActions.entrySet()) {
-			double comparisonValue = entry.getValue();
-			if (comparisonValue > value) {
-				value = entry.getValue();
-				
+		double value = Double.NEGATIVE_INFINITY;
+		AtomicLongArray current = stats;
+		for (int slot = 0; current != null && slot < ActionCodec.NUM_SLOTS; slot++) {
+			long bits = current.get(slot * STATS_PER_SLOT + VALUE);
+			if (bits != UNSET && Double.longBitsToDouble(bits) > value) {
+				value = Double.longBitsToDouble(bits);
 			}
 		}
-		if (value == Double.MIN_VALUE) return 0;
+		if (value == Double.NEGATIVE_INFINITY) {
+			return hasRolloutValue() ? rolloutValue : 0;
+		}
 		return value;
 	}
 
+	/**
+	 * Returns true iff this node has been given a rollout value.
+	 */
+	public boolean hasRolloutValue() {
+		return !Double.isNaN(rolloutValue);
+	}
+
+	/**
+	 * Sets the value estimated by a rollout from this node, which stands in
+	 * for its value until any of its actions have been valued.
+	 */
+	public void setRolloutValue(double rolloutValue) {
+		this.rolloutValue = rolloutValue;
+	}
+
 	public int getAction() {
 		// get action that returns highest value
 		// return max of actions keys
-		Double value = Double.MIN_VALUE;
+		double value = Double.NEGATIVE_INFINITY;
 		int actionKey = 0;
-		for (Entry<Integer, Double> entry : valueActions.entrySet()) {
-			double comparisonValue = entry.getValue();
-			if (comparisonValue > value) {
-				value = entry.getValue();
-				actionKey = entry.getKey();
+		AtomicLongArray current = stats;
+		for (int slot = 0; current != null && slot < ActionCodec.NUM_SLOTS; slot++) {
+			long bits = current.get(slot * STATS_PER_SLOT + VALUE);
+			if (bits != UNSET && Double.longBitsToDouble(bits) > value) {
+				value = Double.longBitsToDouble(bits);
+				actionKey = ActionCodec.toCode(slot);
 			}
 		}
 		return actionKey;
@@ -126,36 +480,325 @@ public class MDPState {
 		this.trackerState = trackerState;
 	}
 
-	public void addChild(MDPState child) {
-		children.add(child);
+	/**
+	 * Turns this state into the root of a new search, keeping all of its
+	 * statistics and children, but replacing the predicted states with the
+	 * observed ones. The depths of the kept subtree are moved up to match
+	 * those a fresh search would give, so that it is discounted the same.
+	 * 
+	 * @param targetState
+	 *            the observed (or estimated) state of the target.
+	 * @param trackerState
+	 *            the observed state of the tracker.
+	 */
+	public void reRoot(AgentState targetState, AgentState trackerState) {
+		setTargetState(targetState);
+		setTrackerState(trackerState);
+		setParentActionCode(-1);
+		setProbability(1);
+		// A child takes the depth of its parent's trace step, so this node's
+		// depth plus one is how far below a root it used to be.
+		rebaseDepths(depth + 1);
 	}
 
-	public boolean childExists(MDPState child) {
-		for (int i = 0; i < children.size(); i++) {
-			if (children.get(i).getTargetState().equals(child.getTargetState())
-					&& children.get(i).getTrackerState()
-							.equals(child.getTrackerState())
-					&& children.get(i).getParentActionCode() == child
-							.getParentActionCode()) {
-				return true;
+	/**
+	 * Takes the given number of levels off the depth of every node reachable
+	 * from this one, stopping at 0.
+	 */
+	private void rebaseDepths(int levels) {
+		Set<MDPState> seen = Collections
+				.newSetFromMap(new IdentityHashMap<MDPState, Boolean>());
+		Deque<MDPState> stack = new ArrayDeque<MDPState>();
+		seen.add(this);
+		stack.push(this);
+		while (!stack.isEmpty()) {
+			MDPState node = stack.pop();
+			node.depth = Math.max(0, node.depth - levels);
+			for (int link = 0; link < node.numLinks; link++) {
+				MDPState child = node.links.children[link];
+				if (child != null && seen.add(child)) {
+					stack.push(child);
+				}
 			}
 		}
-		return false;
+	}
+
+	/**
+	 * Links the given child under its parent action; it can't be looked up by
+	 * its outcomes.
+	 */
+	public synchronized void addChild(MDPState child) {
+		addLink(-1, child.getParentActionCode(), child.getProbability(),
+				child);
+	}
+
+	public boolean childExists(MDPState child) {
+		return getChild(child) != null;
 	}
 
 	public MDPState getChild(MDPState child) {
-		for (int i = 0; i < children.size(); i++) {
-			if (children.get(i).getTargetState().equals(child.getTargetState())
-					&& children.get(i).getTrackerState()
-							.equals(child.getTrackerState())
-					&& children.get(i).getParentActionCode() == child
-							.getParentActionCode()) {
-				return children.get(i);
+		return getChild(child.getParentActionCode(), child.getTargetState(),
+				child.getTrackerState());
+	}
+
+	/**
+	 * Returns the child reached by the given action with the given states, or
+	 * null if there is none.
+	 */
+	public MDPState getChild(int parentActionCode, AgentState targetState,
+			AgentState trackerState) {
+		int size = numLinks;
+		Links current = links;
+		for (int link = 0; link < size; link++) {
+			MDPState child = current.children[link];
+			if (current.actionCodes[link] == parentActionCode && child != null
+					&& child.getTargetState().equals(targetState)
+					&& child.getTrackerState().equals(trackerState)) {
+				return child;
 			}
 		}
 		return null;
 	}
 
+	/**
+	 * Returns the key a child is indexed by.
+	 * 
+	 * @param parentActionCode
+	 *            the action leading to the child.
+	 * @param trackerOutcome
+	 *            the action code the tracker diverged to.
+	 * @param targetOutcome
+	 *            the grid action code the target diverged to.
+	 * @return the key of the child.
+	 */
+	public static int getChildKey(int parentActionCode, int trackerOutcome,
+			int targetOutcome) {
+		return (ActionCodec.toSlot(parentActionCode) << 15)
+				| (trackerOutcome << 4) | targetOutcome;
+	}
+
+	/**
+	 * Returns the child reached by the given action and outcomes, or null if
+	 * there is none.
+	 * 
+	 * @param parentActionCode
+	 *            the action leading to the child.
+	 * @param trackerOutcome
+	 *            the action code the tracker diverged to.
+	 * @param targetOutcome
+	 *            the grid action code the target diverged to.
+	 * @return the child, or null.
+	 */
+	public MDPState getChild(int parentActionCode, int trackerOutcome,
+			int targetOutcome) {
+		int size = numLinks;
+		if (size == 0) {
+			return null;
+		}
+		Links current = links;
+		int link = current.find(getChildKey(parentActionCode, trackerOutcome,
+				targetOutcome), size);
+		return link < 0 ? null : current.children[link];
+	}
+
+	/**
+	 * Returns the number of children reached by the given action.
+	 */
+	public int getNumChildren(int action) {
+		return (int) (getStat(action, COUNTS, 0) >>> 48);
+	}
+
+	/**
+	 * Returns the number of links to children, evicted or not.
+	 */
+	int getNumLinks() {
+		return numLinks;
+	}
+
+	/**
+	 * Returns the child of the given link, or null if it has been evicted.
+	 */
+	MDPState getLinkedChild(int link) {
+		return links.children[link];
+	}
+
+	/**
+	 * Returns the action leading to the child of the given link.
+	 */
+	int getLinkedAction(int link) {
+		return links.actionCodes[link];
+	}
+
+	/**
+	 * Picks one of the children reached by the given action, each with the
+	 * probability of the outcome it stands for, renormalised over the
+	 * children there are.
+	 * 
+	 * @param action
+	 *            the action.
+	 * @param random
+	 *            the source of randomness.
+	 * @return the child, or null if the action has none.
+	 */
+	public MDPState sampleChild(int action, Random random) {
+		int size = numLinks;
+		Links current = links;
+		double total = 0;
+		for (int link = 0; link < size; link++) {
+			if (current.actionCodes[link] == action
+					&& current.children[link] != null) {
+				total += current.probabilities[link];
+			}
+		}
+		double r = random.nextDouble() * total;
+		MDPState last = null;
+		for (int link = 0; link < size; link++) {
+			if (current.actionCodes[link] == action
+					&& current.children[link] != null) {
+				last = current.children[link];
+				r -= current.probabilities[link];
+				if (r < 0) {
+					return last;
+				}
+			}
+		}
+		return last;
+	}
+
+	/**
+	 * Returns the existing child reached by the given action and outcomes, or
+	 * adds a new one with the given states if there is none. Concurrent
+	 * callers adding the same child will all receive the same node.
+	 * 
+	 * @param parentActionCode
+	 *            the action leading to the child.
+	 * @param trackerOutcome
+	 *            the action code the tracker diverged to.
+	 * @param targetOutcome
+	 *            the grid action code the target diverged to.
+	 * @param targetState
+	 *            the resulting state of the target, for new children.
+	 * @param trackerState
+	 *            the resulting state of the tracker, for new children.
+	 * @param probability
+	 *            the probability of reaching the child, for new children.
+	 * @param depth
+	 *            the depth of the child, for new children.
+	 * @return the child stored in the tree, or null if it would need a new
+	 *         node and the pool has none left.
+	 */
+	public MDPState findOrAddChild(int parentActionCode, int trackerOutcome,
+			int targetOutcome, AgentState targetState,
+			AgentState trackerState, double probability, int depth) {
+		int key = getChildKey(parentActionCode, trackerOutcome, targetOutcome);
+		MDPState child = getChild(parentActionCode, trackerOutcome,
+				targetOutcome);
+		if (child != null) {
+			return child;
+		}
+		synchronized (this) {
+			int size = numLinks;
+			int link = size == 0 ? -1 : links.find(key, size);
+			if (link >= 0 && links.children[link] != null) {
+				return links.children[link];
+			}
+			child = findOrAddNode(parentActionCode, targetState,
+					trackerState, probability, depth);
+			if (child == null) {
+				return null;
+			}
+			if (link < 0) {
+				addLink(key, parentActionCode, probability, child);
+				getStats().addAndGet(
+						ActionCodec.toSlot(parentActionCode) * STATS_PER_SLOT
+								+ COUNTS, CHILD_UNIT);
+			} else {
+				// Rebuild an evicted child in place of its summary, in a copy
+				// so that other workers never see the link half changed.
+				Links copy = links.copy(size, links.keys.length);
+				copy.children[link] = child;
+				copy.probabilities[link] = probability;
+				links = copy;
+			}
+			return child;
+		}
+	}
+
+	/**
+	 * Appends a link to the given child; the caller must hold this node's
+	 * lock.
+	 */
+	private void addLink(int key, int actionCode, double probability,
+			MDPState child) {
+		int size = numLinks;
+		Links current = links;
+		if (current == null) {
+			current = new Links(INITIAL_LINKS);
+			links = current;
+		} else if (size == current.keys.length) {
+			current = current.copy(size, size * 2);
+			links = current;
+		}
+		current.keys[size] = key;
+		current.actionCodes[size] = actionCode;
+		current.probabilities[size] = probability;
+		current.children[size] = child;
+		current.summaryValues[size] = 0;
+		if (key >= 0) {
+			current.addToIndex(size);
+		}
+		numLinks = size + 1;
+	}
+
+	/**
+	 * Replaces the child of the given link with a summary that keeps only the
+	 * child's current value, letting go of the child. Must not be called
+	 * while the tree is being searched.
+	 */
+	void compactChild(int link) {
+		Links current = links;
+		current.summaryValues[link] = current.children[link].getMaxValue();
+		current.children[link] = null;
+	}
+
+	/**
+	 * Returns the node for the given states from the transposition table, or
+	 * a new node if there is none, or null if the pool has none left.
+	 */
+	private MDPState findOrAddNode(int parentActionCode,
+			AgentState targetState, AgentState trackerState,
+			double probability, int depth) {
+		long key = 0;
+		if (transpositions != null) {
+			key = transpositions.getKey(depth, targetState, trackerState);
+			MDPState shared = transpositions.get(key);
+			if (shared != null) {
+				return shared;
+			}
+		}
+		MDPState node;
+		if (pool == null) {
+			node = new MDPState(targetState, trackerState);
+		} else {
+			node = pool.acquire(targetState, trackerState);
+			if (node == null) {
+				return null;
+			}
+		}
+		node.setParentActionCode(parentActionCode);
+		node.setProbability(probability);
+		node.setDepth(depth);
+		if (transpositions != null) {
+			node.transpositions = transpositions;
+			node.transpositionKey = key;
+			MDPState shared = transpositions.putIfAbsent(node);
+			if (shared != null) {
+				return shared;
+			}
+		}
+		return node;
+	}
+
 	/**
 	 * @return the parentActionCode
 	 */
@@ -220,7 +863,7 @@ public class MDPState {
 	 * @return the visited
 	 */
 	public int getVisited() {
-		return visited;
+		return visited.get();
 	}
 
 	/**
@@ -228,7 +871,16 @@ public class MDPState {
 	 *            the visited to set
 	 */
 	public void setVisited(int visited) {
-		this.visited = visited;
+		this.visited.set(visited);
+	}
+
+	/**
+	 * Atomically increments the visit count.
+	 * 
+	 * @return the new visit count.
+	 */
+	public int incrementVisited() {
+		return visited.incrementAndGet();
 	}
 
 	/**
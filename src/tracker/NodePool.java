@@ -0,0 +1,246 @@
+package tracker;
+
+import game.AgentState;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out planning tree nodes, recycling the nodes (and their statistics
+ * arrays) of earlier searches instead of allocating new ones.
+ *
+ * Nodes are handed out in order from a fixed-size arena, and each node is
+ * cleared when it is handed out again. The arena is also the budget: once it
+ * is used up, only nodes returned by {@link #collect} are handed out, and
+ * when there are none {@link #acquire} returns null rather than growing the
+ * tree further. Between searches, {@link #evict} makes room by compacting the
+ * least visited subtrees into summary links.
+ */
+public class NodePool {
+	/** The arena of nodes. */
+	private final MDPState[] nodes;
+	/** The index of the next node to hand out. */
+	private final AtomicInteger next = new AtomicInteger();
+	/** The nodes below {@link #next} that are no longer in any tree. */
+	private final ConcurrentLinkedQueue<MDPState> freeNodes = new ConcurrentLinkedQueue<MDPState>();
+	/** The number of nodes in {@link #freeNodes}. */
+	private final AtomicInteger numFree = new AtomicInteger();
+	/** The number of the current collection, which marks reachable nodes. */
+	private int epoch = 0;
+	/** The number of subtrees compacted so far. */
+	private long evictions = 0;
+
+	/**
+	 * Constructs a pool with room for the given number of nodes.
+	 *
+	 * @param capacity
+	 *            the most nodes in use at once.
+	 */
+	public NodePool(int capacity) {
+		nodes = new MDPState[capacity];
+	}
+
+	/**
+	 * Returns a cleared node for the given states, or null if every node is
+	 * in use.
+	 *
+	 * @param targetState
+	 *            the state of the target.
+	 * @param trackerState
+	 *            the state of the tracker.
+	 * @return a node for the given states, with no statistics or children, or
+	 *         null if the pool is exhausted.
+	 */
+	public MDPState acquire(AgentState targetState, AgentState trackerState) {
+		MDPState node;
+		int index = next.getAndIncrement();
+		if (index >= nodes.length) {
+			next.set(nodes.length);
+			node = freeNodes.poll();
+			if (node == null) {
+				return null;
+			}
+			numFree.decrementAndGet();
+			node.free = false;
+			node.reset(targetState, trackerState);
+			return node;
+		}
+		// Only the thread that claimed the index ever touches this entry
+		// during a search.
+		node = nodes[index];
+		if (node == null) {
+			node = new MDPState(targetState, trackerState);
+			node.setPool(this);
+			nodes[index] = node;
+		} else {
+			// It may have been on the free list before the last reset.
+			node.free = false;
+			node.reset(targetState, trackerState);
+		}
+		return node;
+	}
+
+	/**
+	 * Makes every node available again. None of the nodes handed out so far
+	 * may be used after this.
+	 */
+	public void reset() {
+		next.set(0);
+		freeNodes.clear();
+		numFree.set(0);
+	}
+
+	/**
+	 * Returns every node handed out that can't be reached from the given
+	 * roots to the pool. Must not be called while a search is running.
+	 *
+	 * @param roots
+	 *            the roots of the trees still in use.
+	 * @return the number of nodes still in use.
+	 */
+	public int collect(MDPState[] roots) {
+		epoch++;
+		Deque<MDPState> stack = new ArrayDeque<MDPState>();
+		for (MDPState root : roots) {
+			if (root != null && root.mark != epoch) {
+				root.mark = epoch;
+				stack.push(root);
+			}
+		}
+		while (!stack.isEmpty()) {
+			MDPState node = stack.pop();
+			for (int link = 0; link < node.getNumLinks(); link++) {
+				MDPState child = node.getLinkedChild(link);
+				if (child != null && child.mark != epoch) {
+					child.mark = epoch;
+					stack.push(child);
+				}
+			}
+		}
+		int end = next.get();
+		for (int i = 0; i < end; i++) {
+			MDPState node = nodes[i];
+			if (node != null && node.mark != epoch && !node.free) {
+				node.free = true;
+				freeNodes.add(node);
+				numFree.incrementAndGet();
+			}
+		}
+		return size();
+	}
+
+	/**
+	 * Compacts the least visited subtrees below the given roots into summary
+	 * links until at most the given number of nodes are in use, then returns
+	 * the freed nodes to the pool. Must not be called while a search is
+	 * running.
+	 *
+	 * @param roots
+	 *            the roots of the trees still in use.
+	 * @param target
+	 *            the number of nodes to keep.
+	 * @return the number of nodes still in use.
+	 */
+	public int evict(MDPState[] roots, int target) {
+		int live = collect(roots);
+		if (live <= target) {
+			return live;
+		}
+		// Every link to a child, whose subtree would go with the link, as its
+		// parent and its position among the parent's links.
+		final List<MDPState> parents = new ArrayList<MDPState>();
+		int[] positions = new int[64];
+		for (int i = 0; i < next.get(); i++) {
+			MDPState node = nodes[i];
+			if (node == null || node.free) {
+				continue;
+			}
+			for (int link = 0; link < node.getNumLinks(); link++) {
+				if (node.getLinkedChild(link) != null) {
+					if (parents.size() == positions.length) {
+						positions = Arrays.copyOf(positions,
+								positions.length * 2);
+					}
+					positions[parents.size()] = link;
+					parents.add(node);
+				}
+			}
+		}
+		final int[] links = positions;
+		Integer[] order = new Integer[parents.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Integer.compare(
+						parents.get(a).getLinkedChild(links[a]).getVisited(),
+						parents.get(b).getLinkedChild(links[b]).getVisited());
+			}
+		});
+		// Subtrees shared through transpositions are counted more than once,
+		// so this may compact too little; if so, collect and go again.
+		int removed = 0;
+		for (int i = 0; i < order.length && live - removed > target; i++) {
+			MDPState parent = parents.get(order[i]);
+			int link = links[order[i]];
+			MDPState child = parent.getLinkedChild(link);
+			if (child == null) {
+				continue;
+			}
+			removed += countNodes(child);
+			parent.compactChild(link);
+			evictions++;
+		}
+		live = collect(roots);
+		return live > target && removed > 0 ? evict(roots, target) : live;
+	}
+
+	/**
+	 * Returns the number of nodes in the subtree below the given node.
+	 */
+	private static int countNodes(MDPState node) {
+		int count = 1;
+		for (int link = 0; link < node.getNumLinks(); link++) {
+			MDPState child = node.getLinkedChild(link);
+			if (child != null) {
+				count += countNodes(child);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of nodes handed out and not yet returned to the pool.
+	 *
+	 * @return the number of nodes in use.
+	 */
+	public int size() {
+		return Math.min(next.get(), nodes.length) - numFree.get();
+	}
+
+	/**
+	 * Returns the number of nodes in the arena.
+	 *
+	 * @return the number of nodes in the arena.
+	 */
+	public int getCapacity() {
+		return nodes.length;
+	}
+
+	/**
+	 * Returns the number of subtrees compacted into summary links so far.
+	 *
+	 * @return the number of evictions.
+	 */
+	public long getEvictions() {
+		return evictions;
+	}
+}
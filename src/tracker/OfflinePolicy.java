@@ -0,0 +1,583 @@
+package tracker;
+
+import game.AgentState;
+import game.RectRegion;
+import game.SensingParameters;
+import geom.GeomTools;
+import geom.GridCell;
+import geom.TargetGrid;
+
+import java.awt.geom.Point2D;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import target.TargetPolicy;
+import divergence.MotionHistory;
+
+/**
+ * A policy for the tracker solved offline by value iteration over a
+ * discretised joint state space, so that choosing an action is a single table
+ * lookup.
+ *
+ * The target is tracked by its grid cell, and the tracker by the grid cell it
+ * is in, its heading rounded to one of 16 and, if it has a camera, which of the
+ * 11 discretised arm lengths it has. The target moves by its known policy and
+ * divergence kernels; the tracker's moves are diverged by its confusion matrix
+ * and then snapped back to the centre of the cell they end in. Each step is
+ * rewarded with {@link TrackerTools#utility} and discounted as in the online
+ * search.
+ */
+public class OfflinePolicy {
+	/** The discount applied to each further step. */
+	private static final double DISCOUNT = 0.7;
+	/** Value iteration stops once no value changes by more than this. */
+	private static final double TOLERANCE = 1e-3;
+	/** The most sweeps value iteration will make. */
+	private static final int MAX_SWEEPS = 100;
+	/** The number of discretised headings. */
+	private static final int NUM_HEADINGS = 16;
+	/** The number of discretised camera arm lengths. */
+	private static final int NUM_ARM_LENGTHS = 11;
+	/** The number of codes on the tracker's divergence grid. */
+	private static final int NUM_DIVERGED_CODES = 25;
+	/** The points checked along camera arms when computing rewards. */
+	private static final int NUM_CAMERA_ARM_STEPS = 20;
+	/** The share of the maximum heap the solver may use. */
+	private static final double MEMORY_SHARE = 0.25;
+	/** Marks an entry of the policy table that has no action. */
+	private static final byte NO_ACTION = -1;
+	/** Marks a tracker outcome that stays put. */
+	private static final int STAYS = -1;
+	/** The diverged movement code for staying put. */
+	private static final int STAY_CODE = 12;
+	/** The slot of the action that stays put. */
+	private static final int STAY_SLOT = ActionCodec.toSlot(STAY_CODE);
+	/** The slot of the action setting the shortest camera arm. */
+	private static final int FIRST_ARM_SLOT = ActionCodec.toSlot(30);
+
+	/** The policy of the last setup solved, which most callers want again. */
+	private static final SetupCache<OfflinePolicy> policies =
+			new SetupCache<OfflinePolicy>();
+
+	/** The grid both agents are discretised on. */
+	private final TargetGrid grid;
+	/** The tracker's actions. */
+	private final ActionTable actionTable;
+	/** The sensing parameters of the tracker. */
+	private final SensingParameters trackerSense;
+	/** The number of arm lengths the tracker can have. */
+	private final int numArms;
+	/**
+	 * The number of discretised tracker states, indexed by (cell * arm
+	 * lengths + arm length) * headings + heading.
+	 */
+	private final int numTrackerStates;
+
+	/**
+	 * The action slot for each joint state, indexed by target cell *
+	 * numTrackerStates + tracker state.
+	 */
+	private final byte[] policy;
+
+	/**
+	 * Creates an empty policy table for the given setup.
+	 */
+	private OfflinePolicy(TargetGrid grid, SensingParameters trackerSense) {
+		this.grid = grid;
+		this.actionTable = ActionTable.forSetup(grid, trackerSense);
+		this.trackerSense = trackerSense;
+		int gridSize = grid.getGridSize();
+		this.numArms = trackerSense.hasCamera() ? NUM_ARM_LENGTHS : 1;
+		this.numTrackerStates = gridSize * gridSize * NUM_HEADINGS * numArms;
+		this.policy = new byte[gridSize * gridSize * numTrackerStates];
+		Arrays.fill(policy, NO_ACTION);
+	}
+
+	/**
+	 * Returns the number of bytes needed to solve the given setup.
+	 *
+	 * @param grid
+	 *            the grid the target moves on.
+	 * @param trackerSense
+	 *            the sensing parameters of the tracker.
+	 * @return an estimate of the memory the solver needs, in bytes.
+	 */
+	public static long estimateMemory(TargetGrid grid,
+			SensingParameters trackerSense) {
+		long numCells = grid.getGridSize() * grid.getGridSize();
+		long numTrackerStates = numCells * NUM_HEADINGS
+				* (trackerSense.hasCamera() ? NUM_ARM_LENGTHS : 1);
+		long numStates = numCells * numTrackerStates;
+		// Policy, values and rewards for every joint state, plus a few
+		// outcomes for every tracker state and action.
+		return numStates * (1 + 4 + 4) + numTrackerStates
+				* ActionCodec.NUM_SLOTS * (4 + 4 * (4 + 8));
+	}
+
+	/**
+	 * Solves the given setup by value iteration, stopping early once the time
+	 * budget is used up, even part way through the first sweep; states the
+	 * solver didn't get to have no action.
+	 *
+	 * @param budget
+	 *            the time budget in milliseconds.
+	 * @param verbose
+	 *            whether to print the size of the policy and the solve time.
+	 * @return the solved policy, or null if the setup needs more memory than
+	 *         the solver may use.
+	 */
+	public static OfflinePolicy solve(TargetPolicy targetPolicy,
+			MotionHistory targetMotionHistory,
+			MotionHistory trackerMotionHistory, SensingParameters targetSense,
+			SensingParameters trackerSense, List<RectRegion> obstacles,
+			RectRegion goalRegion, long budget, boolean verbose) {
+		long startTime = System.currentTimeMillis();
+		TargetGrid grid = targetPolicy.getGrid();
+		long memory = estimateMemory(grid, trackerSense);
+		long memoryLimit = (long) (Runtime.getRuntime().maxMemory() * MEMORY_SHARE);
+		if (memory > memoryLimit) {
+			if (verbose) {
+				System.out.println("Offline policy skipped: needs "
+						+ (memory >> 20) + "MB of " + (memoryLimit >> 20)
+						+ "MB");
+			}
+			return null;
+		}
+
+		OfflinePolicy offlinePolicy = new OfflinePolicy(grid, trackerSense);
+		int sweeps = offlinePolicy.valueIteration(targetPolicy,
+				targetMotionHistory, trackerMotionHistory, targetSense,
+				obstacles, goalRegion, startTime + budget);
+		if (verbose) {
+			System.out.println("Offline policy: "
+					+ offlinePolicy.policy.length + " states, " + sweeps
+					+ " sweeps, " + (memory >> 20) + "MB, "
+					+ (System.currentTimeMillis() - startTime) + "ms");
+		}
+		return offlinePolicy;
+	}
+
+	/**
+	 * Returns the policy for the given setup, reusing the last policy solved
+	 * if it was for the same setup, so games of one setup, even concurrent
+	 * ones, only solve it once; otherwise it is solved as by {@link #solve}.
+	 * A reused policy keeps the budget it was solved with.
+	 *
+	 * @param budget
+	 *            the time budget in milliseconds.
+	 * @param verbose
+	 *            whether to print the size of the policy and the solve time.
+	 * @return the solved policy, or null if the setup needs more memory than
+	 *         the solver may use.
+	 */
+	public static OfflinePolicy forSetup(final TargetPolicy targetPolicy,
+			final MotionHistory targetMotionHistory,
+			final MotionHistory trackerMotionHistory,
+			final SensingParameters targetSense,
+			final SensingParameters trackerSense,
+			final List<RectRegion> obstacles, final RectRegion goalRegion,
+			final long budget, final boolean verbose) {
+		return policies.get(new Callable<OfflinePolicy>() {
+			@Override
+			public OfflinePolicy call() {
+				return solve(targetPolicy, targetMotionHistory,
+						trackerMotionHistory, targetSense, trackerSense,
+						obstacles, goalRegion, budget, verbose);
+			}
+		}, targetPolicy, targetMotionHistory, trackerMotionHistory,
+				targetSense, trackerSense, obstacles, goalRegion);
+	}
+
+	/**
+	 * Returns the code of the action to take in the given state.
+	 *
+	 * @param targetState
+	 *            the (estimated) state of the target.
+	 * @param trackerState
+	 *            the state of the tracker.
+	 * @return the action code, or -1 if the state is not covered by the table.
+	 */
+	public int getActionCode(AgentState targetState, AgentState trackerState) {
+		int targetCell = getCellIndex(targetState.getPosition());
+		int trackerIndex = getTrackerIndex(trackerState);
+		if (targetCell < 0 || trackerIndex < 0) {
+			return -1;
+		}
+		int slot = policy[targetCell * numTrackerStates + trackerIndex];
+		if (slot == NO_ACTION || !actionTable.isAvailable(slot, trackerState)) {
+			return -1;
+		}
+		return ActionCodec.toCode(slot);
+	}
+
+	/**
+	 * Runs value iteration until the values settle, the sweep limit is reached
+	 * or the deadline passes, filling in the policy table.
+	 *
+	 * @return the number of sweeps completed.
+	 */
+	private int valueIteration(TargetPolicy targetPolicy,
+			MotionHistory targetMotionHistory,
+			MotionHistory trackerMotionHistory, SensingParameters targetSense,
+			List<RectRegion> obstacles, RectRegion goalRegion, long deadline) {
+		int gridSize = grid.getGridSize();
+		int numCells = gridSize * gridSize;
+
+		// The target's transitions: up to 9 successor cells per cell.
+		int[][] targetNext = new int[numCells][];
+		double[][] targetProbs = new double[numCells][];
+		AgentState[] targetStates = new AgentState[numCells];
+		for (int cell = 0; cell < numCells; cell++) {
+			buildTargetTransitions(cell, targetPolicy, targetMotionHistory,
+					obstacles, targetNext, targetProbs, targetStates);
+		}
+
+		// The tracker's movements and turns, per position (cell and arm
+		// length) and action slot. Where they end up does not depend on the
+		// tracker's heading, except for staying put when blocked.
+		int numPositions = numTrackerStates / NUM_HEADINGS;
+		int[] offsets = new int[numPositions * ActionCodec.NUM_SLOTS + 1];
+		int[] trackerNext = new int[numPositions * ActionCodec.NUM_SLOTS];
+		double[] trackerProbs = new double[trackerNext.length];
+		double[] stayProbs = new double[numPositions * ActionCodec.NUM_SLOTS];
+		boolean[] isMovement = new boolean[ActionCodec.NUM_SLOTS];
+		for (int slot = 0; slot < ActionCodec.NUM_SLOTS; slot++) {
+			isMovement[slot] = !actionTable.isCameraAdjustment(slot)
+					&& slot != STAY_SLOT;
+		}
+		int numOutcomes = 0;
+		TrackerDivergenceModel divergence = (trackerMotionHistory == null) ? null
+				: TrackerDivergenceModel.forHistory(trackerMotionHistory, grid,
+						trackerSense, obstacles);
+		int[] next = new int[NUM_DIVERGED_CODES];
+		double[] probs = new double[NUM_DIVERGED_CODES];
+		for (int position = 0; position < numPositions; position++) {
+			if (System.currentTimeMillis() >= deadline) {
+				return 0;
+			}
+			AgentState trackerState = getTrackerState(position * NUM_HEADINGS);
+			for (int slot = 0; slot < ActionCodec.NUM_SLOTS; slot++) {
+				int index = position * ActionCodec.NUM_SLOTS + slot;
+				offsets[index] = numOutcomes;
+				if (!isMovement[slot]) {
+					continue;
+				}
+				int count = buildTrackerTransitions(trackerState, slot,
+						divergence, obstacles, next, probs);
+				if (numOutcomes + count > trackerNext.length) {
+					trackerNext = Arrays.copyOf(trackerNext,
+							trackerNext.length * 2);
+					trackerProbs = Arrays.copyOf(trackerProbs,
+							trackerProbs.length * 2);
+				}
+				for (int k = 0; k < count; k++) {
+					if (next[k] == STAYS) {
+						stayProbs[index] += probs[k];
+					} else {
+						trackerNext[numOutcomes] = next[k];
+						trackerProbs[numOutcomes] = probs[k];
+						numOutcomes++;
+					}
+				}
+			}
+		}
+		offsets[offsets.length - 1] = numOutcomes;
+
+		// The reward for the tracker ending up in each state, worked out a
+		// target cell at a time during the first sweep.
+		float[] rewards = new float[policy.length];
+		AgentState[] trackerStates = new AgentState[numTrackerStates];
+		for (int t = 0; t < numTrackerStates; t++) {
+			trackerStates[t] = getTrackerState(t);
+		}
+
+		// Value iteration, updating the values in place. For each target
+		// cell, the expected value of every tracker successor is worked out
+		// once and shared by all of the tracker's states and actions, and the
+		// best movement from each position is shared by all of its headings.
+		// The deadline is checked before each cell, so even the first sweep
+		// may stop part way; cells it didn't reach are left without actions
+		// and planned online.
+		float[] values = new float[policy.length];
+		double[] successorValues = new double[numTrackerStates];
+		double[] movementValues = new double[ActionCodec.NUM_SLOTS];
+		int[] blockedSlots = new int[ActionCodec.NUM_SLOTS];
+		int sweeps = 0;
+		double maxChange = Double.POSITIVE_INFINITY;
+		while (maxChange > TOLERANCE && sweeps < MAX_SWEEPS) {
+			maxChange = 0;
+			for (int cell = 0; cell < numCells; cell++) {
+				if (targetStates[cell] == null) {
+					continue;
+				}
+				if (System.currentTimeMillis() >= deadline) {
+					return sweeps;
+				}
+				int base = cell * numTrackerStates;
+				if (sweeps == 0) {
+					for (int t = 0; t < numTrackerStates; t++) {
+						rewards[base + t] = (float) TrackerTools.utility(
+								trackerStates[t], targetStates[cell],
+								targetSense, trackerSense, obstacles,
+								goalRegion, NUM_CAMERA_ARM_STEPS);
+					}
+				}
+				for (int t = 0; t < numTrackerStates; t++) {
+					double expected = 0;
+					for (int k = 0; k < targetNext[cell].length; k++) {
+						expected += targetProbs[cell][k]
+								* values[targetNext[cell][k] * numTrackerStates
+										+ t];
+					}
+					successorValues[t] = rewards[base + t] + DISCOUNT
+							* expected;
+				}
+				for (int position = 0; position < numPositions; position++) {
+					// The best movement that never stays put, and the
+					// movements whose value depends on the heading.
+					double freeValue = Double.NEGATIVE_INFINITY;
+					int freeSlot = NO_ACTION;
+					int numBlocked = 0;
+					int first = position * ActionCodec.NUM_SLOTS;
+					for (int slot = 0; slot < ActionCodec.NUM_SLOTS; slot++) {
+						if (!isMovement[slot]) {
+							continue;
+						}
+						double value = 0;
+						for (int k = offsets[first + slot]; k < offsets[first
+								+ slot + 1]; k++) {
+							value += trackerProbs[k]
+									* successorValues[trackerNext[k]];
+						}
+						movementValues[slot] = value;
+						if (stayProbs[first + slot] > 0) {
+							blockedSlots[numBlocked++] = slot;
+						} else if (value > freeValue) {
+							freeValue = value;
+							freeSlot = slot;
+						}
+					}
+
+					int armBase = (position - position % numArms) * NUM_HEADINGS;
+					for (int heading = 0; heading < NUM_HEADINGS; heading++) {
+						int t = position * NUM_HEADINGS + heading;
+						double stayValue = successorValues[t];
+						double bestValue = stayValue;
+						int bestSlot = STAY_SLOT;
+						if (freeValue > bestValue) {
+							bestValue = freeValue;
+							bestSlot = freeSlot;
+						}
+						for (int k = 0; k < numBlocked; k++) {
+							int slot = blockedSlots[k];
+							double value = movementValues[slot]
+									+ stayProbs[first + slot] * stayValue;
+							if (value > bestValue) {
+								bestValue = value;
+								bestSlot = slot;
+							}
+						}
+						if (numArms > 1) {
+							for (int arm = 0; arm < numArms; arm++) {
+								double value = successorValues[armBase + arm
+										* NUM_HEADINGS + heading];
+								if (value > bestValue) {
+									bestValue = value;
+									bestSlot = FIRST_ARM_SLOT + arm;
+								}
+							}
+						}
+						maxChange = Math.max(maxChange,
+								Math.abs(bestValue - values[base + t]));
+						values[base + t] = (float) bestValue;
+						policy[base + t] = (byte) bestSlot;
+					}
+				}
+			}
+			sweeps++;
+		}
+		return sweeps;
+	}
+
+	/**
+	 * Fills in the successor cells of the given cell and their probabilities,
+	 * and the state the target is taken to be in; cells the target cannot be
+	 * in are left empty.
+	 */
+	private void buildTargetTransitions(int cell, TargetPolicy targetPolicy,
+			MotionHistory targetMotionHistory, List<RectRegion> obstacles,
+			int[][] targetNext, double[][] targetProbs,
+			AgentState[] targetStates) {
+		int gridSize = grid.getGridSize();
+		GridCell gridCell = new GridCell(cell / gridSize, cell % gridSize);
+		Point2D centre = grid.getCentre(gridCell);
+		for (RectRegion obstacle : obstacles) {
+			if (obstacle.getRect().contains(centre)) {
+				targetNext[cell] = new int[0];
+				targetProbs[cell] = new double[0];
+				return;
+			}
+		}
+		int desired = grid.encodeAction(targetPolicy.getAction(new AgentState(
+				centre, 0)));
+		targetStates[cell] = new AgentState(centre, grid.getHeading(desired));
+
+		double[] kernel = null;
+		if (targetMotionHistory != null) {
+			kernel = TargetDivergenceModel.forHistory(targetMotionHistory,
+					grid, obstacles).getProbabilities(desired, gridCell);
+		}
+		if (kernel == null) {
+			kernel = new double[9];
+			kernel[desired] = 1;
+		}
+		int count = 0;
+		for (int i = 0; i < kernel.length; i++) {
+			if (kernel[i] > 0) {
+				count++;
+			}
+		}
+		targetNext[cell] = new int[count];
+		targetProbs[cell] = new double[count];
+		count = 0;
+		for (int i = 0; i < kernel.length; i++) {
+			if (kernel[i] > 0) {
+				GridCell end = grid.decodeFromIndices(gridCell, i);
+				targetNext[cell][count] = clamp(end.getRow()) * gridSize
+						+ clamp(end.getCol());
+				targetProbs[cell][count] = kernel[i];
+				count++;
+			}
+		}
+	}
+
+	/**
+	 * Fills in the discretised successors of the given tracker state under
+	 * the movement or turn in the given slot, and their probabilities;
+	 * staying put is marked with {@link #STAYS}.
+	 *
+	 * @return the number of successors.
+	 */
+	private int buildTrackerTransitions(AgentState trackerState, int slot,
+			TrackerDivergenceModel divergence, List<RectRegion> obstacles,
+			int[] next, double[] probs) {
+		int code = ActionCodec.toCode(slot);
+		double[] outcomes = null;
+		if (divergence != null && code < NUM_DIVERGED_CODES) {
+			outcomes = divergence.getProbabilities(code, trackerState);
+		}
+		if (outcomes == null) {
+			AgentState result = actionTable.getResultingState(trackerState,
+					code);
+			next[0] = isValidMove(trackerState, result, obstacles) ? getTrackerIndex(result)
+					: STAYS;
+			probs[0] = 1;
+			return 1;
+		}
+
+		// Blocked outcomes are already folded into staying still.
+		int count = 0;
+		for (int i = 0; i < outcomes.length; i++) {
+			if (outcomes[i] == 0) {
+				continue;
+			}
+			int index = STAYS;
+			if (i != STAY_CODE) {
+				index = getTrackerIndex(actionTable.getResultingState(
+						trackerState, i));
+				if (index < 0) {
+					index = STAYS;
+				}
+			}
+			int k = 0;
+			while (k < count && next[k] != index) {
+				k++;
+			}
+			if (k == count) {
+				next[count] = index;
+				probs[count] = 0;
+				count++;
+			}
+			probs[k] += outcomes[i];
+		}
+		return count;
+	}
+
+	/**
+	 * Returns true iff the tracker can move between the given states.
+	 */
+	private boolean isValidMove(AgentState start, AgentState end,
+			List<RectRegion> obstacles) {
+		Point2D pos = end.getPosition();
+		if (pos.getX() < 0 || pos.getY() < 0 || pos.getX() > 1
+				|| pos.getY() > 1) {
+			return false;
+		}
+		return GeomTools.canMove(start.getPosition(), pos, start.hasCamera(),
+				start.getCameraArmLength(), obstacles);
+	}
+
+	/**
+	 * Returns the representative state of the tracker state with the given
+	 * index: the centre of its cell, with its heading and arm length.
+	 */
+	private AgentState getTrackerState(int index) {
+		int heading = index % NUM_HEADINGS;
+		index /= NUM_HEADINGS;
+		int arm = index % numArms;
+		int cell = index / numArms;
+		int gridSize = grid.getGridSize();
+		Point2D centre = grid.getCentre(new GridCell(cell / gridSize, cell
+				% gridSize));
+		// The same arm lengths as the camera adjustment actions give.
+		double minLength = trackerSense.getMinLength();
+		double armLength = minLength;
+		if (numArms > 1) {
+			armLength += ((trackerSense.getMaxLength() - minLength) / (numArms - 1))
+					* arm;
+		}
+		return new AgentState(centre, GeomTools.normaliseAngle(heading * 2
+				* Math.PI / NUM_HEADINGS), trackerSense.hasCamera(), armLength);
+	}
+
+	/**
+	 * Returns the index of the discretised state nearest the given tracker
+	 * state, or -1 if it is outside the workspace.
+	 */
+	private int getTrackerIndex(AgentState trackerState) {
+		int cell = getCellIndex(trackerState.getPosition());
+		if (cell < 0) {
+			return -1;
+		}
+		int heading = (int) Math.round(trackerState.getHeading()
+				* NUM_HEADINGS / (2 * Math.PI));
+		heading = ((heading % NUM_HEADINGS) + NUM_HEADINGS) % NUM_HEADINGS;
+		int arm = 0;
+		if (numArms > 1) {
+			double minLength = trackerSense.getMinLength();
+			double range = trackerSense.getMaxLength() - minLength;
+			arm = (range <= 0) ? 0 : (int) Math.round((trackerState
+					.getCameraArmLength() - minLength) * (numArms - 1) / range);
+			arm = Math.max(0, Math.min(numArms - 1, arm));
+		}
+		return (cell * numArms + arm) * NUM_HEADINGS + heading;
+	}
+
+	/**
+	 * Returns the index of the grid cell containing the given position, or -1
+	 * if it is outside the workspace.
+	 */
+	private int getCellIndex(Point2D pos) {
+		if (pos.getX() < 0 || pos.getY() < 0 || pos.getX() > 1
+				|| pos.getY() > 1) {
+			return -1;
+		}
+		GridCell cell = grid.getCell(pos);
+		return clamp(cell.getRow()) * grid.getGridSize() + clamp(cell.getCol());
+	}
+
+	private int clamp(int index) {
+		return Math.max(0, Math.min(grid.getGridSize() - 1, index));
+	}
+}
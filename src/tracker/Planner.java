@@ -0,0 +1,581 @@
+package tracker;
+
+import game.AgentState;
+import game.RectRegion;
+import game.SensingParameters;
+import game.TrackerAction;
+import geom.GridCell;
+import geom.TargetGrid;
+
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import target.TargetPolicy;
+import divergence.MotionHistory;
+
+/**
+ * Runs the tracker's rollout planning on several threads at once.
+ *
+ * In root-parallel mode every worker builds its own independent search tree
+ * from the current state; the visit counts and values of the root actions are
+ * then merged across all of the trees before an action is chosen.
+ * 
+ * In tree-parallel mode all of the workers descend the same tree, relying on
+ * the atomic statistics and virtual loss kept by each {@link MDPState}.
+ * 
+ * Each tree can share the nodes of states reached by different sequences of
+ * actions through its own {@link TranspositionTable}; the tables are emptied
+ * at the start of every turn. Likewise each tree takes its nodes from its own
+ * slice of the node budget, so how far one tree grows never depends on how
+ * far the others have got.
+ * 
+ * Either mode can be given a wall-clock budget, in which case the workers keep
+ * generating traces until the deadline and the best action found by then is
+ * returned.
+ */
+public class Planner implements AutoCloseable {
+	/** Indicates that planning is limited only by the number of iterations. */
+	public static final long NO_TIME_LIMIT = 0;
+	/** The default number of tree nodes in use at once. */
+	public static final int DEFAULT_NODE_BUDGET = 1 << 15;
+	/**
+	 * How far, as a fraction of a grid cell, the tracker may be from where a
+	 * child of the previous root put it for that child to be reused.
+	 */
+	private static final double OUTCOME_TOLERANCE = 0.25;
+
+	/** The policy of the target. */
+	private TargetPolicy targetPolicy;
+	/** The motion history of the target. */
+	private MotionHistory targetMotionHistory;
+	/** The motion history of the tracker, or null if there is none. */
+	private MotionHistory trackerMotionHistory;
+	/** The sensing parameters of the target. */
+	private SensingParameters targetSense;
+	/** The sensing parameters of the tracker. */
+	private SensingParameters trackerSense;
+	/** The obstacles. */
+	private List<RectRegion> obstacles;
+	/** The goal region. */
+	private RectRegion goalRegion;
+
+	/** The number of worker threads. */
+	private int numThreads;
+	/** The pool the workers run on. */
+	private ForkJoinPool pool;
+	/** The most tree nodes in use at once, split evenly between the trees. */
+	private int nodeBudget = DEFAULT_NODE_BUDGET;
+	/** The pool each tree takes its nodes from, or null if not made yet. */
+	private NodePool[] nodePools = null;
+	/** The number of transposition table slots shared by all trees. */
+	private int transpositionCapacity = 0;
+	/** The transposition table of each tree, or null if they are not used. */
+	private TranspositionTable[] transpositions = null;
+	/** The cache of what the tracker sees, or null if caching is off. */
+	private CanSeeCache trackerSight;
+	/** The cache of what the target sees, or null if caching is off. */
+	private CanSeeCache targetSight;
+	/** Supplies the seed of each tree, so a fixed seed gives fixed results. */
+	private Random seeder;
+
+	/** True iff search trees are carried over from one turn to the next. */
+	private boolean treeReuse = true;
+	/** The roots searched on the previous turn, or null if there are none. */
+	private MDPState[] previousRoots = null;
+	/** The action chosen on the previous turn. */
+	private int previousAction;
+	/** True iff each chosen action is printed. */
+	private boolean verbose = true;
+	/** The number of greedy steps simulated from each new leaf. */
+	private int rolloutSteps = 0;
+	/**
+	 * True iff movements are pruned to those reaching a place to watch the
+	 * target from unseen, whenever one is within reach.
+	 */
+	private boolean stealthPruning = false;
+
+	/**
+	 * Constructs a planner for the given game setup.
+	 *
+	 * @param numThreads
+	 *            the number of worker threads to plan with.
+	 * @param seed
+	 *            the seed for all randomness used in planning.
+	 */
+	public Planner(TargetPolicy targetPolicy,
+			MotionHistory targetMotionHistory,
+			MotionHistory trackerMotionHistory, SensingParameters targetSense,
+			SensingParameters trackerSense, List<RectRegion> obstacles,
+			RectRegion goalRegion, int numThreads, long seed) {
+		this.targetPolicy = targetPolicy;
+		this.targetMotionHistory = targetMotionHistory;
+		this.trackerMotionHistory = trackerMotionHistory;
+		this.targetSense = targetSense;
+		this.trackerSense = trackerSense;
+		this.obstacles = obstacles;
+		this.goalRegion = goalRegion;
+		this.numThreads = Math.max(1, numThreads);
+		this.pool = new ForkJoinPool(this.numThreads);
+		this.seeder = new Random(seed);
+		this.trackerSight = CanSeeCache.forSetup(trackerSense, obstacles,
+				1e-5, TrackerTools.PLANNING_ARM_STEPS);
+		this.targetSight = CanSeeCache.forSetup(targetSense, obstacles, 1e-5,
+				TrackerTools.PLANNING_ARM_STEPS);
+	}
+
+	/**
+	 * Returns the hit and miss counts of the planner's visibility caches, or
+	 * an empty string if caching is off.
+	 *
+	 * @return a summary of the caches' statistics.
+	 */
+	public String getCacheStatistics() {
+		if (trackerSight == null) {
+			return "";
+		}
+		return "tracker " + trackerSight.getStatistics() + "; target "
+				+ targetSight.getStatistics();
+	}
+
+	/**
+	 * Returns the number of worker threads.
+	 *
+	 * @return the number of worker threads.
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * Sets whether the search trees are kept between turns; if so, each turn
+	 * resumes from the subtree matching what actually happened.
+	 * 
+	 * @param treeReuse
+	 *            true iff the search trees should be reused.
+	 */
+	public void setTreeReuse(boolean treeReuse) {
+		this.treeReuse = treeReuse;
+		if (!treeReuse) {
+			previousRoots = null;
+		}
+	}
+
+	/**
+	 * Sets whether each chosen action is printed, along with the number of
+	 * traces behind it.
+	 * 
+	 * @param verbose
+	 *            true iff the chosen actions should be printed.
+	 */
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Sets the number of steps simulated by the rollout from each new leaf of
+	 * the search tree; 0 leaves leaves unvalued.
+	 * 
+	 * @param steps
+	 *            the number of rollout steps.
+	 */
+	public void setRolloutSteps(int steps) {
+		this.rolloutSteps = Math.max(0, steps);
+	}
+
+	/**
+	 * Sets whether movements are pruned to those that reach a place from
+	 * which the tracker sees the target without being seen, whenever any
+	 * movement does.
+	 * 
+	 * @param pruning
+	 *            true iff movements should be pruned.
+	 */
+	public void setStealthPruning(boolean pruning) {
+		this.stealthPruning = pruning;
+	}
+
+	/**
+	 * Sets the most tree nodes in use at once, including those carried over
+	 * from earlier turns, and drops the trees kept so far. The budget is
+	 * split evenly between the trees searched each turn.
+	 * 
+	 * @param budget
+	 *            the number of nodes.
+	 * @throws IllegalArgumentException
+	 *             if the budget can't hold a root for every thread's tree.
+	 */
+	public void setNodeBudget(int budget) {
+		if (budget < numThreads) {
+			throw new IllegalArgumentException("A node budget of " + budget
+					+ " can't hold the roots of " + numThreads + " trees");
+		}
+		this.nodeBudget = budget;
+		this.nodePools = null;
+		this.previousRoots = null;
+	}
+
+	/**
+	 * Sets the number of transposition table slots, which are split evenly
+	 * between the trees searched each turn; 0 turns the tables off.
+	 * 
+	 * @param capacity
+	 *            the total number of slots.
+	 */
+	public void setTranspositionCapacity(int capacity) {
+		if (!TranspositionTable.fits(targetPolicy.getGrid())) {
+			capacity = 0;
+		}
+		this.transpositionCapacity = capacity;
+		this.transpositions = null;
+	}
+
+	/**
+	 * Builds one tree per worker thread and returns the best action over the
+	 * merged root statistics. Each tree stops growing once it has the given
+	 * number of traces or the time budget runs out, whichever comes first.
+	 * 
+	 * With no time budget the result is deterministic for a fixed seed.
+	 *
+	 * @param iterationsPerTree
+	 *            the maximum number of traces to generate in each tree.
+	 * @param timeBudget
+	 *            the wall-clock time to plan for, in milliseconds, or
+	 *            {@link #NO_TIME_LIMIT}.
+	 * @param targetState
+	 *            the (estimated) current state of the target.
+	 * @param trackerState
+	 *            the current state of the tracker.
+	 * @return the chosen action.
+	 */
+	public TrackerAction rootParallelPlanning(int iterationsPerTree,
+			long timeBudget, AgentState targetState, AgentState trackerState) {
+		long deadline = getDeadline(timeBudget);
+		// Seeds are drawn up front, in order, so that the result does not
+		// depend on how the workers happen to be scheduled.
+		TraceTask[] tasks = new TraceTask[numThreads];
+		MDPState[] roots = getRoots(numThreads, targetState, trackerState);
+		for (int i = 0; i < numThreads; i++) {
+			tasks[i] = new TraceTask(roots[i], iterationsPerTree, deadline,
+					seeder.nextLong());
+		}
+		pool.invoke(new MergeTask(tasks));
+		return chooseAction(roots, tasks, trackerState);
+	}
+
+	/**
+	 * Has every worker thread generate traces within one shared tree, and
+	 * returns the best action at its root. Each worker stops once it has
+	 * generated the given number of traces or the time budget runs out,
+	 * whichever comes first.
+	 * 
+	 * Unlike root-parallel planning, the result depends on how the workers
+	 * interleave, so it is not deterministic for a fixed seed.
+	 * 
+	 * @param iterationsPerWorker
+	 *            the maximum number of traces each worker generates.
+	 * @param timeBudget
+	 *            the wall-clock time to plan for, in milliseconds, or
+	 *            {@link #NO_TIME_LIMIT}.
+	 * @param targetState
+	 *            the (estimated) current state of the target.
+	 * @param trackerState
+	 *            the current state of the tracker.
+	 * @return the chosen action.
+	 */
+	public TrackerAction treeParallelPlanning(int iterationsPerWorker,
+			long timeBudget, AgentState targetState, AgentState trackerState) {
+		long deadline = getDeadline(timeBudget);
+		MDPState root = getRoots(1, targetState, trackerState)[0];
+		TraceTask[] tasks = new TraceTask[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			tasks[i] = new TraceTask(root, iterationsPerWorker, deadline,
+					seeder.nextLong());
+		}
+		pool.invoke(new MergeTask(tasks));
+		return chooseAction(new MDPState[] { root }, tasks, trackerState);
+	}
+
+	/**
+	 * Returns the roots to search from this turn. Each is the subtree of the
+	 * previous turn's tree that matches the current states if there is one, or
+	 * a fresh root otherwise.
+	 * 
+	 * A tree's node pool is reset whenever nothing of it is carried over.
+	 * Otherwise the nodes no longer reachable are returned to it, and if the
+	 * carried-over tree still takes up most of its pool, its least visited
+	 * subtrees are compacted down to half of it.
+	 * 
+	 * @param numTrees
+	 *            the number of trees being searched this turn.
+	 * @param targetState
+	 *            the (estimated) current state of the target.
+	 * @param trackerState
+	 *            the current state of the tracker.
+	 * @return the roots to search from.
+	 */
+	private MDPState[] getRoots(int numTrees, AgentState targetState,
+			AgentState trackerState) {
+		MDPState[] roots = new MDPState[numTrees];
+		NodePool[] pools = getNodePools(numTrees);
+		boolean reuse = treeReuse && previousRoots != null
+				&& previousRoots.length == numTrees;
+		for (int i = 0; i < numTrees; i++) {
+			if (reuse) {
+				roots[i] = findOutcome(previousRoots[i], targetState,
+						trackerState);
+			}
+			if (roots[i] != null) {
+				roots[i].reRoot(targetState, trackerState);
+				MDPState[] kept = { roots[i] };
+				if (pools[i].collect(kept) > pools[i].getCapacity() / 4 * 3) {
+					pools[i].evict(kept, pools[i].getCapacity() / 2);
+				}
+			} else {
+				// Every pool has room for at least its root.
+				pools[i].reset();
+				roots[i] = pools[i].acquire(targetState, trackerState);
+			}
+		}
+		TranspositionTable[] tables = getTranspositions(numTrees);
+		for (int i = 0; i < numTrees; i++) {
+			roots[i].setTranspositions(tables == null ? null : tables[i]);
+		}
+		return roots;
+	}
+
+	/**
+	 * Returns the node pool of each of the given number of trees, splitting
+	 * the node budget evenly between them.
+	 */
+	private NodePool[] getNodePools(int numTrees) {
+		if (nodePools == null || nodePools.length != numTrees) {
+			nodePools = new NodePool[numTrees];
+			for (int i = 0; i < numTrees; i++) {
+				nodePools[i] = new NodePool(nodeBudget / numTrees
+						+ (i < nodeBudget % numTrees ? 1 : 0));
+			}
+		}
+		return nodePools;
+	}
+
+	/**
+	 * Returns an empty transposition table for each of the given number of
+	 * trees, or null if they are turned off. Keys hold the depth from the
+	 * root, so entries can't outlive the turn they were made in.
+	 */
+	private TranspositionTable[] getTranspositions(int numTrees) {
+		if (transpositionCapacity <= 0) {
+			return null;
+		}
+		if (transpositions == null || transpositions.length != numTrees) {
+			transpositions = new TranspositionTable[numTrees];
+			for (int i = 0; i < numTrees; i++) {
+				transpositions[i] = new TranspositionTable(
+						targetPolicy.getGrid(), trackerSense,
+						transpositionCapacity / numTrees);
+			}
+		} else {
+			for (TranspositionTable table : transpositions) {
+				table.clear();
+			}
+		}
+		return transpositions;
+	}
+
+	/**
+	 * Returns the child of the given root that was reached by the previous
+	 * action and best matches the observed states, or null if none do.
+	 * 
+	 * The target must be in the same grid cell. Since the tracker's actual
+	 * movement is continuous, the closest tracker position within
+	 * {@link #OUTCOME_TOLERANCE} of a grid cell is accepted.
+	 */
+	private MDPState findOutcome(MDPState root, AgentState targetState,
+			AgentState trackerState) {
+		TargetGrid grid = targetPolicy.getGrid();
+		GridCell targetCell = grid.getCell(targetState.getPosition());
+		double tolerance = OUTCOME_TOLERANCE / grid.getGridSize();
+
+		MDPState bestChild = null;
+		double bestDistance = tolerance;
+		for (int link = 0; link < root.getNumLinks(); link++) {
+			MDPState child = root.getLinkedChild(link);
+			if (child == null || root.getLinkedAction(link) != previousAction
+					|| !targetCell.equals(grid.getCell(child.getTargetState()
+							.getPosition()))
+					|| child.getTrackerState().getCameraArmLength() != trackerState
+							.getCameraArmLength()) {
+				continue;
+			}
+			double distance = child.getTrackerState().getPosition()
+					.distance(trackerState.getPosition());
+			if (distance <= bestDistance) {
+				bestDistance = distance;
+				bestChild = child;
+			}
+		}
+		return bestChild;
+	}
+
+	/**
+	 * Shuts down the worker threads once they are idle; the planner can't
+	 * plan after this.
+	 */
+	@Override
+	public void close() {
+		pool.shutdown();
+	}
+
+	/**
+	 * Returns the System.nanoTime() value at which planning must stop.
+	 */
+	private static long getDeadline(long timeBudget) {
+		if (timeBudget == NO_TIME_LIMIT) {
+			return Long.MAX_VALUE;
+		}
+		return System.nanoTime() + timeBudget * 1000000L;
+	}
+
+	/**
+	 * Picks the best action over the given roots once the workers are done.
+	 */
+	private TrackerAction chooseAction(MDPState[] roots, TraceTask[] tasks,
+			AgentState trackerState) {
+		int traces = 0;
+		for (TraceTask task : tasks) {
+			traces += task.completed;
+		}
+		int action = bestAction(roots);
+		if (treeReuse) {
+			previousRoots = roots;
+			previousAction = action;
+		}
+		if (verbose) {
+			System.out.println("Action Code: " + action + " (" + traces
+					+ " traces" + getTranspositionSummary() + ")");
+		}
+		return ActionTable.forSetup(targetPolicy.getGrid(), trackerSense)
+				.getAction(trackerState, action);
+	}
+
+	/**
+	 * Returns the number of transposition table hits and replacements so far,
+	 * or an empty string if the tables are turned off.
+	 */
+	private String getTranspositionSummary() {
+		if (transpositions == null) {
+			return "";
+		}
+		long hits = 0;
+		long replacements = 0;
+		for (TranspositionTable table : transpositions) {
+			hits += table.getHits();
+			replacements += table.getReplacements();
+		}
+		return ", " + hits + " transpositions, " + replacements
+				+ " replaced";
+	}
+
+	/**
+	 * Merges the root statistics of the given trees and returns the action
+	 * with the highest visit-weighted value.
+	 *
+	 * @param roots
+	 *            the roots of the trees to merge.
+	 * @return the code of the best action.
+	 */
+	static int bestAction(MDPState[] roots) {
+		// Sorted by action code so that ties are always broken the same way.
+		TreeMap<Integer, Integer> visits = new TreeMap<Integer, Integer>();
+		TreeMap<Integer, Double> values = new TreeMap<Integer, Double>();
+		for (MDPState root : roots) {
+			for (int slot = 0; slot < ActionCodec.NUM_SLOTS; slot++) {
+				int key = ActionCodec.toCode(slot);
+				if (!root.hasValueAction(key)) {
+					continue;
+				}
+				int count = Math.max(1, root.getActionCount(key));
+				Integer total = visits.get(key);
+				Double value = values.get(key);
+				visits.put(key, (total == null ? 0 : total) + count);
+				values.put(key, (value == null ? 0 : value) + count
+						* root.getValueAction(key));
+			}
+		}
+
+		double maxValue = Double.NEGATIVE_INFINITY;
+		int action = 12;
+		for (Entry<Integer, Double> entry : values.entrySet()) {
+			double value = entry.getValue() / visits.get(entry.getKey());
+			if (value > maxValue) {
+				maxValue = value;
+				action = entry.getKey();
+			}
+		}
+		return action;
+	}
+
+	/**
+	 * Generates traces from a root, which may be shared with other workers,
+	 * until the iteration limit or the deadline is reached.
+	 */
+	private class TraceTask extends RecursiveTask<MDPState> {
+		private static final long serialVersionUID = 1L;
+		private MDPState root;
+		private int iterations;
+		private long deadline;
+		private long seed;
+		/** The number of traces generated so far. */
+		private volatile int completed = 0;
+
+		public TraceTask(MDPState root, int iterations, long deadline,
+				long seed) {
+			this.root = root;
+			this.iterations = iterations;
+			this.deadline = deadline;
+			this.seed = seed;
+		}
+
+		@Override
+		protected MDPState compute() {
+			Random random = new Random(seed);
+			// The root always holds the best action found so far, so stopping
+			// at any point still leaves an action to return.
+			while (completed < iterations && System.nanoTime() < deadline) {
+				TrackerTools.generateATrace(0, root, targetPolicy,
+						targetMotionHistory, trackerMotionHistory, targetSense,
+						trackerSense, obstacles, goalRegion, trackerSight,
+						targetSight, rolloutSteps, stealthPruning, random);
+				completed++;
+			}
+			return root;
+		}
+	}
+
+	/**
+	 * Runs all of the given tasks and collects their resulting roots in order.
+	 */
+	private static class MergeTask extends RecursiveTask<MDPState[]> {
+		private static final long serialVersionUID = 1L;
+		private RecursiveTask<MDPState>[] tasks;
+
+		public MergeTask(RecursiveTask<MDPState>[] tasks) {
+			this.tasks = tasks;
+		}
+
+		@Override
+		protected MDPState[] compute() {
+			ForkJoinTask.invokeAll(tasks);
+			MDPState[] roots = new MDPState[tasks.length];
+			for (int i = 0; i < tasks.length; i++) {
+				roots[i] = tasks[i].join();
+			}
+			return roots;
+		}
+	}
+}
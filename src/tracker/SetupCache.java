@@ -0,0 +1,126 @@
+package tracker;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Holds the value made for the last setup asked for, such as a table built
+ * for it, so that trackers of the same setup, even ones starting at once,
+ * only make it once.
+ *
+ * A setup is the objects it is made of, compared by identity. Asking for a
+ * different setup replaces the value held, so at most one is kept. Only
+ * callers asking for the same setup wait on each other; the lock is never
+ * held while a value is made.
+ *
+ * @param <V>
+ *            the type of the values, which may be null.
+ */
+final class SetupCache<V> {
+	/** The setup last asked for, or null if there has been none. */
+	private Object[] setup = null;
+	/** Makes, or has made, the value for that setup. */
+	private FutureTask<V> task = null;
+
+	/**
+	 * Returns the value for the given setup, making it with the given maker
+	 * unless it is the setup last asked for.
+	 *
+	 * @param maker
+	 *            makes the value.
+	 * @param setup
+	 *            the objects the setup is made of.
+	 * @return the value.
+	 */
+	public V get(Callable<V> maker, Object... setup) {
+		FutureTask<V> task;
+		boolean made = false;
+		synchronized (this) {
+			if (this.setup == null || !sameObjects(this.setup, setup)) {
+				this.setup = setup;
+				this.task = new FutureTask<V>(maker);
+				made = true;
+			}
+			task = this.task;
+		}
+		if (made) {
+			task.run();
+		}
+		try {
+			return getUninterruptibly(task);
+		} catch (ExecutionException e) {
+			synchronized (this) {
+				// Let the next caller try again.
+				if (this.task == task) {
+					this.setup = null;
+					this.task = null;
+				}
+			}
+			Throwable cause = e.getCause();
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	/**
+	 * Returns the value held, if it has been made, whatever its setup.
+	 *
+	 * @return the value, or null if there is none yet.
+	 */
+	public V getLast() {
+		FutureTask<V> task;
+		synchronized (this) {
+			task = this.task;
+		}
+		if (task == null || !task.isDone()) {
+			return null;
+		}
+		try {
+			return getUninterruptibly(task);
+		} catch (ExecutionException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Waits for the given task, keeping any interrupt for later.
+	 */
+	private static <V> V getUninterruptibly(FutureTask<V> task)
+			throws ExecutionException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return task.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Returns true iff the given arrays hold the very same objects.
+	 */
+	private static boolean sameObjects(Object[] a, Object[] b) {
+		if (a.length != b.length) {
+			return false;
+		}
+		for (int i = 0; i < a.length; i++) {
+			if (a[i] != b[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
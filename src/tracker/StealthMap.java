@@ -0,0 +1,349 @@
+package tracker;
+
+import game.AgentState;
+import game.RectRegion;
+import game.SensingParameters;
+import geom.GeomTools;
+import geom.GridCell;
+import geom.TargetGrid;
+
+import java.awt.geom.Point2D;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * For every target cell and heading, the points of the tracker's lattice the
+ * target can see, and the points from which the tracker can see the target
+ * without being seen.
+ *
+ * The target has no camera, always sits at a cell centre and faces one of the
+ * headings of {@link TargetGrid#getHeading}, so both rasters can be built at
+ * setup time. The lattice is that of the {@link VisibilityTable}. Whether the
+ * target sees the tracker's camera arm is judged from a few points along the
+ * arm, snapped to the lattice, by the same majority rule as
+ * {@link GeomTools#canSee}. Being approximate, the map only steers which
+ * movements the planner tries; rewards are still checked exactly.
+ */
+public class StealthMap {
+	/** The number of target action codes, each with its own heading. */
+	private static final int NUM_CODES = 9;
+	/** The code for staying still, which shares the heading of code 5. */
+	private static final int STAY_CODE = 4;
+	/** The number of points checked along the tracker's camera arm. */
+	private static final int NUM_ARM_SAMPLES = 10;
+	/** The allowed error in sight distance, as in the utility function. */
+	private static final double MAX_DISTANCE_ERROR = 1e-5;
+	/** The share of the maximum heap the rasters may use. */
+	private static final double MEMORY_SHARE = 0.25;
+
+	/** The map of the last setup built for, which most callers want again. */
+	private static final SetupCache<StealthMap> maps =
+			new SetupCache<StealthMap>();
+
+	/** The grid the target moves on. */
+	private final TargetGrid grid;
+	/** The sensing parameters of the target. */
+	private final SensingParameters targetSense;
+	/** The obstacles. */
+	private final List<RectRegion> obstacles;
+	/** The tracker's visibility table, which also sets the lattice. */
+	private final VisibilityTable visibility;
+	/** The number of lattice spacings along each side of the workspace. */
+	private final int latticeSize;
+	/** True iff the tracker has a camera arm. */
+	private final boolean trackerHasCamera;
+	/** The number of lattice points. */
+	private final int numPoints;
+	/** The number of 64-bit words in each raster. */
+	private final int wordsPerRaster;
+	/** The lattice points the target sees, per cell and heading code. */
+	private final long[] targetView;
+	/**
+	 * The lattice points from which the tracker, in some pose, sees the target
+	 * without the target seeing it, per cell and heading code.
+	 */
+	private final long[] stealth;
+
+	/**
+	 * The offset, in lattice rows and columns, of each point checked along the
+	 * camera arm, per arm length and heading.
+	 */
+	private final int[] armRows;
+	private final int[] armCols;
+
+	/**
+	 * Creates empty rasters for the given setup.
+	 */
+	private StealthMap(TargetGrid grid, SensingParameters targetSense,
+			List<RectRegion> obstacles, VisibilityTable visibility) {
+		this.grid = grid;
+		this.targetSense = targetSense;
+		this.obstacles = obstacles;
+		this.visibility = visibility;
+		this.latticeSize = visibility.getLatticeSize();
+		this.trackerHasCamera = visibility.getPoseState(0).hasCamera();
+		this.numPoints = (latticeSize + 1) * (latticeSize + 1);
+		this.wordsPerRaster = (numPoints + 63) / 64;
+		int numRasters = grid.getGridSize() * grid.getGridSize() * NUM_CODES;
+		this.targetView = new long[numRasters * wordsPerRaster];
+		this.stealth = new long[numRasters * wordsPerRaster];
+
+		int numArmPoses = visibility.getNumArms()
+				* VisibilityTable.NUM_HEADINGS;
+		armRows = new int[numArmPoses * NUM_ARM_SAMPLES];
+		armCols = new int[numArmPoses * NUM_ARM_SAMPLES];
+		for (int armPose = 0; armPose < numArmPoses; armPose++) {
+			AgentState poseState = visibility.getPoseState(armPose);
+			if (!poseState.hasCamera()) {
+				continue;
+			}
+			Point2D pos = poseState.getPosition();
+			Point2D viewPos = GeomTools.calculateViewPosition(poseState);
+			for (int i = 0; i < NUM_ARM_SAMPLES; i++) {
+				double t = (double) (i + 1) / NUM_ARM_SAMPLES;
+				armRows[armPose * NUM_ARM_SAMPLES + i] = (int) Math.round((pos
+						.getY() - viewPos.getY()) * t * latticeSize);
+				armCols[armPose * NUM_ARM_SAMPLES + i] = (int) Math
+						.round((viewPos.getX() - pos.getX()) * t * latticeSize);
+			}
+		}
+	}
+
+	/**
+	 * Returns the map for the given setup, which is the last one built if
+	 * that was for the same setup, and otherwise builds it; null is returned
+	 * if it would need more memory than it may use. The map becomes the one
+	 * returned by {@link #forSetup}.
+	 *
+	 * @param visibility
+	 *            the tracker's visibility table for the same setup.
+	 * @param numThreads
+	 *            the number of threads to build with.
+	 * @param verbose
+	 *            whether to print the size and build time of the map.
+	 * @return the map, or null if the setup is too large.
+	 */
+	public static StealthMap build(final TargetGrid grid,
+			final SensingParameters targetSense,
+			final List<RectRegion> obstacles,
+			final VisibilityTable visibility, final int numThreads,
+			final boolean verbose) {
+		return maps.get(new Callable<StealthMap>() {
+			@Override
+			public StealthMap call() {
+				return make(grid, targetSense, obstacles, visibility,
+						numThreads, verbose);
+			}
+		}, grid, targetSense, obstacles, visibility);
+	}
+
+	/**
+	 * Builds the map for the given setup, as for {@link #build}.
+	 */
+	private static StealthMap make(TargetGrid grid,
+			SensingParameters targetSense, List<RectRegion> obstacles,
+			VisibilityTable visibility, int numThreads, boolean verbose) {
+		long startTime = System.currentTimeMillis();
+		long numPoints = (visibility.getLatticeSize() + 1L)
+				* (visibility.getLatticeSize() + 1L);
+		long memory = 2L * grid.getGridSize() * grid.getGridSize() * NUM_CODES
+				* ((numPoints + 63) / 64) * 8;
+		long memoryLimit = (long) (Runtime.getRuntime().maxMemory() * MEMORY_SHARE);
+		if (memory > memoryLimit) {
+			if (verbose) {
+				System.out.println("Stealth map skipped: needs " + (memory >> 20)
+						+ "MB of " + (memoryLimit >> 20) + "MB");
+			}
+			return null;
+		}
+
+		StealthMap map = new StealthMap(grid, targetSense, obstacles,
+				visibility);
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		pool.invoke(map.new BuildTask(0, grid.getGridSize()
+				* grid.getGridSize()));
+		pool.shutdown();
+		if (verbose) {
+			System.out.println("Stealth map: " + (memory >> 10)
+					+ "KB, built in "
+					+ (System.currentTimeMillis() - startTime) + "ms");
+		}
+		return map;
+	}
+
+	/**
+	 * Returns the map last built for the given target and obstacles, or null
+	 * if there is none.
+	 *
+	 * @param targetSense
+	 *            the sensing parameters of the target.
+	 * @param obstacles
+	 *            the obstacles.
+	 * @return the map, or null if none has been built.
+	 */
+	public static StealthMap forSetup(SensingParameters targetSense,
+			List<RectRegion> obstacles) {
+		StealthMap map = maps.getLast();
+		if (map == null || map.targetSense != targetSense
+				|| map.obstacles != obstacles) {
+			return null;
+		}
+		return map;
+	}
+
+	/**
+	 * Fills in the rasters of a range of cells.
+	 */
+	private class BuildTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+		private final int to;
+
+		public BuildTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new BuildTask(from, mid), new BuildTask(mid, to));
+				return;
+			}
+			for (int code = 0; code < NUM_CODES; code++) {
+				if (code != STAY_CODE) {
+					fillRasters(from, code);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fills in both rasters for the target in the given cell, facing the
+	 * heading of the given code.
+	 */
+	private void fillRasters(int cell, int code) {
+		int gridSize = grid.getGridSize();
+		Point2D centre = grid.getCentre(new GridCell(cell / gridSize, cell
+				% gridSize));
+		for (RectRegion obstacle : obstacles) {
+			if (obstacle.getRect().contains(centre)) {
+				return;
+			}
+		}
+		AgentState targetState = new AgentState(centre, grid.getHeading(code));
+		int base = (cell * NUM_CODES + code) * wordsPerRaster;
+		for (int point = 0; point < numPoints; point++) {
+			Point2D pos = new Point2D.Double((double) (point % (latticeSize + 1))
+					/ latticeSize, 1 - (double) (point / (latticeSize + 1))
+					/ latticeSize);
+			if (GeomTools.canSee(targetState, pos, targetSense, obstacles,
+					MAX_DISTANCE_ERROR)) {
+				targetView[base + (point >>> 6)] |= 1L << point;
+			}
+		}
+
+		int numArms = visibility.getNumArms();
+		for (int point = 0; point < numPoints; point++) {
+			search: for (int arm = 0; arm < numArms; arm++) {
+				for (int heading = 0; heading < VisibilityTable.NUM_HEADINGS; heading++) {
+					if (visibility.canSee(
+							visibility.getPose(point, arm, heading), cell)
+							&& !targetSees(base, point, arm
+									* VisibilityTable.NUM_HEADINGS + heading)) {
+						stealth[base + (point >>> 6)] |= 1L << point;
+						break search;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns true iff the target, with the given view raster, sees the
+	 * tracker at the given lattice point with the given arm length and
+	 * heading.
+	 */
+	private boolean targetSees(int base, int point, int armPose) {
+		if (isSet(targetView, base, point)) {
+			return true;
+		}
+		if (!trackerHasCamera) {
+			return false;
+		}
+		int row = point / (latticeSize + 1);
+		int col = point % (latticeSize + 1);
+		int count = 0;
+		for (int i = 0; i < NUM_ARM_SAMPLES; i++) {
+			int sampleRow = row + armRows[armPose * NUM_ARM_SAMPLES + i];
+			int sampleCol = col + armCols[armPose * NUM_ARM_SAMPLES + i];
+			if (sampleRow >= 0 && sampleRow <= latticeSize && sampleCol >= 0
+					&& sampleCol <= latticeSize
+					&& isSet(targetView, base, sampleRow * (latticeSize + 1)
+							+ sampleCol)) {
+				count++;
+			} else {
+				count = 0;
+			}
+			if (count * 2 > NUM_ARM_SAMPLES + 1) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isSet(long[] raster, int base, int point) {
+		return (raster[base + (point >>> 6)] & (1L << point)) != 0;
+	}
+
+	/**
+	 * Returns true iff the map covers the given target state, i.e. the target
+	 * is at a cell centre, has no camera and faces one of the grid headings.
+	 *
+	 * @param targetState
+	 *            the state of the target.
+	 * @return true iff the map covers the state.
+	 */
+	public boolean covers(AgentState targetState) {
+		if (!visibility.covers(targetState)) {
+			return false;
+		}
+		double heading = targetState.getHeading();
+		return Math.abs(GeomTools.normaliseAngle(grid.getHeading(grid
+				.getCodeFromHeading(heading)) - heading)) < 1e-6;
+	}
+
+	/**
+	 * Returns the index of the raster for the given (covered) target state.
+	 */
+	private int getBase(AgentState targetState) {
+		GridCell cell = grid.getCell(targetState.getPosition());
+		int code = grid.getCodeFromHeading(targetState.getHeading());
+		return ((cell.getRow() * grid.getGridSize() + cell.getCol())
+				* NUM_CODES + code)
+				* wordsPerRaster;
+	}
+
+	/**
+	 * Returns true iff the tracker, at the given position, has a pose from
+	 * which it sees the target without being seen; the target state must be
+	 * covered by the map.
+	 *
+	 * @param targetState
+	 *            the state of the target.
+	 * @param trackerX
+	 *            the x-coordinate of the tracker.
+	 * @param trackerY
+	 *            the y-coordinate of the tracker.
+	 * @return true iff the position is a hiding place to watch from.
+	 */
+	public boolean canSeeUnseen(AgentState targetState, double trackerX,
+			double trackerY) {
+		int point = visibility.getLatticePoint(trackerX, trackerY);
+		return point >= 0 && isSet(stealth, getBase(targetState), point);
+	}
+}
@@ -0,0 +1,319 @@
+package tracker;
+
+import game.AgentState;
+import game.RectRegion;
+import geom.GridCell;
+import geom.TargetGrid;
+
+import java.awt.geom.Point2D;
+import java.util.List;
+
+import target.TargetPolicy;
+import divergence.MotionHistory;
+
+/**
+ * A belief over which grid cell the target is in, filtered forward exactly as
+ * a hidden Markov model.
+ *
+ * Each target move pushes the belief through a sparse transition matrix built
+ * once from the target's policy and divergence kernels. A sighting collapses
+ * the belief onto the cell the target was seen in, and not seeing the target
+ * rules out the cells the tracker could see. The cells the target may be in
+ * are kept in a list, so updates allocate nothing and take time proportional
+ * to the number of those cells and their transitions, not to the whole grid.
+ */
+public class TargetBelief {
+	/** The grid the target moves on. */
+	private final TargetGrid grid;
+	/** The number of cells in the grid. */
+	private final int numCells;
+
+	/**
+	 * The transitions out of each cell, stored from offsets[cell] up to
+	 * offsets[cell + 1].
+	 */
+	private final int[] offsets;
+	/** The cell each transition leads to. */
+	private final int[] successors;
+	/** The probability of each transition. */
+	private final double[] probabilities;
+	/** The heading the target has after leaving each cell by its policy. */
+	private final double[] headings;
+
+	/** The probability of the target being in each cell. */
+	private double[] belief;
+	/** Scratch space for the next belief; all zero between updates. */
+	private double[] nextBelief;
+	/** The cells with a nonzero probability, in no particular order. */
+	private int[] support;
+	/** The number of cells in the support. */
+	private int supportSize;
+	/** Scratch space for the next support. */
+	private int[] nextSupport;
+	/** True for each cell already in the next support. */
+	private final boolean[] inNextSupport;
+	/** The cell of the last most likely state returned, or -1. */
+	private int mostLikelyCell = -1;
+	/** The last most likely state returned for a cell. */
+	private AgentState mostLikelyState;
+	/** The state the target was last seen in, while it is still known. */
+	private AgentState knownState;
+
+	/**
+	 * Builds the transition matrix for the given setup, with the target
+	 * believed to be in the given state.
+	 *
+	 * @param targetPolicy
+	 *            the policy of the target.
+	 * @param targetMotionHistory
+	 *            the motion history of the target, or null if there is none.
+	 * @param obstacles
+	 *            the obstacles.
+	 * @param targetState
+	 *            the initial state of the target.
+	 */
+	public TargetBelief(TargetPolicy targetPolicy,
+			MotionHistory targetMotionHistory, List<RectRegion> obstacles,
+			AgentState targetState) {
+		this.grid = targetPolicy.getGrid();
+		int gridSize = grid.getGridSize();
+		this.numCells = gridSize * gridSize;
+		offsets = new int[numCells + 1];
+		successors = new int[numCells * 9];
+		probabilities = new double[numCells * 9];
+		headings = new double[numCells];
+		belief = new double[numCells];
+		nextBelief = new double[numCells];
+		support = new int[numCells];
+		nextSupport = new int[numCells];
+		inNextSupport = new boolean[numCells];
+
+		TargetDivergenceModel divergence = (targetMotionHistory == null) ? null
+				: TargetDivergenceModel.forHistory(targetMotionHistory, grid,
+						obstacles);
+		int numTransitions = 0;
+		for (int cell = 0; cell < numCells; cell++) {
+			offsets[cell] = numTransitions;
+			GridCell gridCell = new GridCell(cell / gridSize, cell % gridSize);
+			Point2D centre = grid.getCentre(gridCell);
+			if (isInObstacle(centre, obstacles)) {
+				continue;
+			}
+			int desired = grid.encodeAction(targetPolicy
+					.getAction(new AgentState(centre, 0)));
+			headings[cell] = grid.getHeading(desired);
+			double[] kernel = (divergence == null) ? null : divergence
+					.getProbabilities(desired, gridCell);
+			for (int code = 0; code < 9; code++) {
+				double probability;
+				if (kernel == null) {
+					probability = (code == desired) ? 1 : 0;
+				} else {
+					probability = kernel[code];
+				}
+				if (probability == 0) {
+					continue;
+				}
+				successors[numTransitions] = getCellIndex(grid
+						.decodeFromIndices(gridCell, code));
+				probabilities[numTransitions] = probability;
+				numTransitions++;
+			}
+		}
+		offsets[numCells] = numTransitions;
+		collapse(targetState);
+	}
+
+	private static boolean isInObstacle(Point2D point,
+			List<RectRegion> obstacles) {
+		for (RectRegion obstacle : obstacles) {
+			if (obstacle.getRect().contains(point)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the index of the given cell, clamped to the grid.
+	 */
+	private int getCellIndex(GridCell cell) {
+		int gridSize = grid.getGridSize();
+		int row = Math.max(0, Math.min(gridSize - 1, cell.getRow()));
+		int col = Math.max(0, Math.min(gridSize - 1, cell.getCol()));
+		return row * gridSize + col;
+	}
+
+	/**
+	 * Puts all of the belief on the cell containing the given state, as when
+	 * the target is seen there.
+	 *
+	 * @param targetState
+	 *            the state the target is known to be in.
+	 */
+	public void collapse(AgentState targetState) {
+		for (int i = 0; i < supportSize; i++) {
+			belief[support[i]] = 0;
+		}
+		int cell = getCellIndex(grid.getCell(targetState.getPosition()));
+		belief[cell] = 1;
+		support[0] = cell;
+		supportSize = 1;
+		knownState = targetState;
+	}
+
+	/**
+	 * Moves the belief forward by one move of the target.
+	 */
+	public void predict() {
+		int nextSize = 0;
+		for (int i = 0; i < supportSize; i++) {
+			int cell = support[i];
+			double p = belief[cell];
+			belief[cell] = 0;
+			int end = offsets[cell + 1];
+			if (offsets[cell] == end) {
+				// No transitions out of this cell; the target stays put.
+				nextBelief[cell] += p;
+				if (!inNextSupport[cell]) {
+					inNextSupport[cell] = true;
+					nextSupport[nextSize++] = cell;
+				}
+				continue;
+			}
+			for (int k = offsets[cell]; k < end; k++) {
+				int successor = successors[k];
+				nextBelief[successor] += p * probabilities[k];
+				if (!inNextSupport[successor]) {
+					inNextSupport[successor] = true;
+					nextSupport[nextSize++] = successor;
+				}
+			}
+		}
+		for (int i = 0; i < nextSize; i++) {
+			inNextSupport[nextSupport[i]] = false;
+		}
+		double[] swap = belief;
+		belief = nextBelief;
+		nextBelief = swap;
+		int[] swapSupport = support;
+		support = nextSupport;
+		nextSupport = swapSupport;
+		supportSize = nextSize;
+		knownState = null;
+	}
+
+	/**
+	 * Rules out the cells where the target would have been seen, given that
+	 * it was not, and renormalises. If that would rule out every cell, the
+	 * belief is left as it was.
+	 *
+	 * @param visible
+	 *            true for each cell (indexed by row * grid size + column) the
+	 *            tracker could see; only the cells in the support are read.
+	 * @return true iff the belief was updated.
+	 */
+	public boolean notSeen(boolean[] visible) {
+		double remaining = 0;
+		for (int i = 0; i < supportSize; i++) {
+			int cell = support[i];
+			if (!visible[cell]) {
+				remaining += belief[cell];
+			}
+		}
+		if (remaining <= 0) {
+			return false;
+		}
+		int size = 0;
+		for (int i = 0; i < supportSize; i++) {
+			int cell = support[i];
+			if (visible[cell]) {
+				belief[cell] = 0;
+			} else {
+				belief[cell] /= remaining;
+				support[size++] = cell;
+			}
+		}
+		supportSize = size;
+		return true;
+	}
+
+	/**
+	 * Returns the probability of the target being in the given cell.
+	 *
+	 * @param cell
+	 *            the cell index, row * grid size + column.
+	 * @return the probability of the target being in that cell.
+	 */
+	public double getProbability(int cell) {
+		return belief[cell];
+	}
+
+	/**
+	 * Returns the number of cells the target may be in.
+	 *
+	 * @return the size of the support.
+	 */
+	public int getSupportSize() {
+		return supportSize;
+	}
+
+	/**
+	 * Returns a cell the target may be in.
+	 *
+	 * @param i
+	 *            the position in the support, from 0 up to the support size.
+	 * @return the cell index, row * grid size + column.
+	 */
+	public int getSupportCell(int i) {
+		return support[i];
+	}
+
+	/**
+	 * Returns the number of cells the belief is over.
+	 *
+	 * @return the number of cells.
+	 */
+	public int getNumCells() {
+		return numCells;
+	}
+
+	/**
+	 * Returns the centre of the cell with the given index.
+	 *
+	 * @param cell
+	 *            the cell index, row * grid size + column.
+	 * @return the centre of the cell.
+	 */
+	public Point2D getCentre(int cell) {
+		int gridSize = grid.getGridSize();
+		return grid.getCentre(new GridCell(cell / gridSize, cell % gridSize));
+	}
+
+	/**
+	 * Returns the most likely state of the target: the state it was seen in if
+	 * it has not moved since, or else the centre of the most likely cell,
+	 * facing the way its policy moves it from there; ties go to the cell with
+	 * the lowest index. The state of a cell is only made once in a row.
+	 *
+	 * @return the most likely state of the target.
+	 */
+	public AgentState getMostLikelyState() {
+		if (knownState != null) {
+			return knownState;
+		}
+		int best = support[0];
+		for (int i = 1; i < supportSize; i++) {
+			int cell = support[i];
+			if (belief[cell] > belief[best]
+					|| (belief[cell] == belief[best] && cell < best)) {
+				best = cell;
+			}
+		}
+		if (best != mostLikelyCell) {
+			mostLikelyState = new AgentState(getCentre(best), headings[best]);
+			mostLikelyCell = best;
+		}
+		return mostLikelyState;
+	}
+}
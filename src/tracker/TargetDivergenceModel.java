@@ -0,0 +1,195 @@
+package tracker;
+
+import game.RectRegion;
+import geom.GeomTools;
+import geom.GridCell;
+import geom.TargetGrid;
+
+import java.awt.geom.Point2D;
+import java.util.List;
+
+import divergence.AliasSampler;
+import divergence.MotionHistory;
+import divergence.MotionHistory.HistoryEntry;
+
+/**
+ * The target's divergence distribution, compiled from its motion history into
+ * a kernel for every grid cell and desired action.
+ *
+ * Each kernel gives the probability of each of the 9 outcomes, with outcomes
+ * that would leave the workspace or hit an obstacle folded into staying still,
+ * so a lookup is a single array access; each kernel comes with an alias
+ * sampler, so drawing an outcome is constant time too. If entries are appended to the
+ * history, the kernels are rebuilt on the next lookup.
+ */
+public class TargetDivergenceModel {
+	/** The number of target action codes. */
+	private static final int NUM_CODES = 9;
+	/** The code for staying still. */
+	private static final int STAY_CODE = 4;
+
+	/** The most recently built model, which most callers will want again. */
+	private static volatile TargetDivergenceModel lastModel;
+
+	/** The history the model is built from. */
+	private final MotionHistory history;
+	/** The grid the target moves on. */
+	private final TargetGrid grid;
+	/** The obstacles. */
+	private final List<RectRegion> obstacles;
+
+	/** The number of times each outcome followed each desired action. */
+	private final int[][] counts = new int[NUM_CODES][NUM_CODES];
+	/** The number of history entries folded into the counts. */
+	private volatile int numEntries = 0;
+	/**
+	 * The sampler holding the kernel for each cell and desired action, indexed
+	 * by cell * 9 + desired action, or null if the action never appears in the
+	 * history.
+	 */
+	private volatile AliasSampler[] kernels;
+
+	/**
+	 * Compiles the model for the given history, grid and obstacles.
+	 *
+	 * @param history
+	 *            the motion history of the target.
+	 * @param grid
+	 *            the grid the target moves on.
+	 * @param obstacles
+	 *            the obstacles.
+	 */
+	public TargetDivergenceModel(MotionHistory history, TargetGrid grid,
+			List<RectRegion> obstacles) {
+		this.history = history;
+		this.grid = grid;
+		this.obstacles = obstacles;
+		refresh();
+	}
+
+	/**
+	 * Returns the model for the given history, grid and obstacles, reusing
+	 * the last model built if it matches.
+	 *
+	 * @return the model for the given setup.
+	 */
+	public static TargetDivergenceModel forHistory(MotionHistory history,
+			TargetGrid grid, List<RectRegion> obstacles) {
+		TargetDivergenceModel model = lastModel;
+		if (model == null || model.history != history
+				|| model.obstacles != obstacles
+				|| model.grid.getGridSize() != grid.getGridSize()) {
+			model = new TargetDivergenceModel(history, grid, obstacles);
+			lastModel = model;
+		}
+		return model;
+	}
+
+	/**
+	 * Returns the probability of each outcome when the target attempts the
+	 * given action from the given cell. The returned array is shared and must
+	 * not be modified.
+	 *
+	 * @param desiredAction
+	 *            the action the target attempts.
+	 * @param cell
+	 *            the cell the target is in.
+	 * @return the probability of each outcome, or null if the action never
+	 *         appears in the history.
+	 */
+	public double[] getProbabilities(int desiredAction, GridCell cell) {
+		AliasSampler sampler = getSampler(desiredAction, cell);
+		return (sampler == null) ? null : sampler.getProbabilities();
+	}
+
+	/**
+	 * Returns a sampler for the outcome when the target attempts the given
+	 * action from the given cell.
+	 *
+	 * @param desiredAction
+	 *            the action the target attempts.
+	 * @param cell
+	 *            the cell the target is in.
+	 * @return the sampler, or null if the action never appears in the history.
+	 */
+	public AliasSampler getSampler(int desiredAction, GridCell cell) {
+		if (history.getNumEntries() != numEntries) {
+			refresh();
+		}
+		int gridSize = grid.getGridSize();
+		return kernels[(cell.getRow() * gridSize + cell.getCol()) * NUM_CODES
+				+ desiredAction];
+	}
+
+	/**
+	 * Folds any new history entries into the outcome counts and rebuilds the
+	 * kernels.
+	 */
+	private synchronized void refresh() {
+		int total = history.getNumEntries();
+		if (kernels != null && total == numEntries) {
+			return;
+		}
+		for (int i = numEntries; i < total; i++) {
+			HistoryEntry entry = history.getEntry(i);
+			counts[entry.getDesiredActionCode()][entry.getResultCode()]++;
+		}
+		numEntries = total;
+
+		int gridSize = grid.getGridSize();
+		AliasSampler[] newKernels = new AliasSampler[gridSize * gridSize
+				* NUM_CODES];
+		for (int row = 0; row < gridSize; row++) {
+			for (int col = 0; col < gridSize; col++) {
+				GridCell cell = new GridCell(row, col);
+				boolean[] blocked = getBlockedOutcomes(cell);
+				for (int desired = 0; desired < NUM_CODES; desired++) {
+					newKernels[(row * gridSize + col) * NUM_CODES + desired] = buildKernel(
+							desired, blocked);
+				}
+			}
+		}
+		kernels = newKernels;
+	}
+
+	/**
+	 * Returns, for each outcome, whether moving there from the given cell
+	 * would leave the workspace or hit an obstacle.
+	 */
+	private boolean[] getBlockedOutcomes(GridCell cell) {
+		Point2D start = grid.getCentre(cell);
+		boolean[] blocked = new boolean[NUM_CODES];
+		for (int i = 0; i < NUM_CODES; i++) {
+			Point2D end = grid.getCentre(grid.decodeFromIndices(cell, i));
+			boolean outOfBounds = end.getX() < 0 || end.getY() < 0
+					|| end.getX() > 1 || end.getY() > 1;
+			blocked[i] = outOfBounds
+					|| !GeomTools.canMove(start, end, false, 0, obstacles);
+		}
+		return blocked;
+	}
+
+	/**
+	 * Returns the masked kernel for the given desired action, or null if the
+	 * action never appears in the history.
+	 */
+	private AliasSampler buildKernel(int desired, boolean[] blocked) {
+		int count = 0;
+		for (int i = 0; i < NUM_CODES; i++) {
+			count += counts[desired][i];
+		}
+		if (count == 0) {
+			return null;
+		}
+		double[] probabilities = new double[NUM_CODES];
+		for (int i = 0; i < NUM_CODES; i++) {
+			double probability = (double) counts[desired][i] / count;
+			if (blocked[i]) {
+				probabilities[STAY_CODE] += probability;
+			} else {
+				probabilities[i] += probability;
+			}
+		}
+		return new AliasSampler(probabilities);
+	}
+}
@@ -7,6 +7,7 @@ import game.Percept;
 import game.RectRegion;
 import game.SensingParameters;
 import game.TrackerAction;
+import geom.GeomTools;
 
 import java.util.List;
 
@@ -14,7 +15,102 @@ import divergence.MotionHistory;
 
 import target.TargetPolicy;
 
-public class Tracker implements Agent {
+public class Tracker implements Agent, AutoCloseable {
+	/**
+	 * The wall-clock planning budget per turn in milliseconds, set with
+	 * -Dtracker.budget. Without a budget, each turn is limited to a fixed
+	 * number of traces instead.
+	 */
+	private static final long TIME_BUDGET = Long.getLong("tracker.budget",
+			Planner.NO_TIME_LIMIT);
+	/** The number of traces generated in each search tree per turn. */
+	private static final int ITERATIONS_PER_TREE = (TIME_BUDGET == Planner.NO_TIME_LIMIT) ? 1200
+			: Integer.MAX_VALUE;
+	/**
+	 * The number of planning threads; set with -Dtracker.threads, and defaults
+	 * to the number of available cores.
+	 */
+	private static final int NUM_THREADS = Integer.getInteger(
+			"tracker.threads", Runtime.getRuntime().availableProcessors());
+	/**
+	 * The planning seed, set with -Dtracker.seed; a fixed seed gives
+	 * deterministic planning. Trackers given a seed of their own use that
+	 * instead.
+	 */
+	private static final Long SEED = Long.getLong("tracker.seed");
+	/**
+	 * True iff all planning threads should share one tree; set with
+	 * -Dtracker.mode=tree. By default every thread builds its own tree.
+	 */
+	private static final boolean TREE_PARALLEL = "tree".equals(System
+			.getProperty("tracker.mode"));
+	/**
+	 * True iff the search tree is kept between turns; disable with
+	 * -Dtracker.reuse=false.
+	 */
+	private static final boolean TREE_REUSE = !"false".equals(System
+			.getProperty("tracker.reuse"));
+	/**
+	 * True iff a policy is solved offline before the game starts; disable
+	 * with -Dtracker.offline=false.
+	 */
+	private static final boolean OFFLINE = !"false".equals(System
+			.getProperty("tracker.offline"));
+	/**
+	 * The time budget for solving the offline policy in milliseconds, set with
+	 * -Dtracker.offlineBudget.
+	 */
+	private static final long OFFLINE_BUDGET = Long.getLong(
+			"tracker.offlineBudget", 10000);
+	/**
+	 * The file the visibility table is loaded from and saved to, set with
+	 * -Dtracker.visibilityFile; by default it is always built afresh.
+	 */
+	private static final String VISIBILITY_FILE = System
+			.getProperty("tracker.visibilityFile");
+	/**
+	 * The number of entries kept by each visibility cache, set with
+	 * -Dtracker.cacheSize; 0 disables the caches.
+	 */
+	private static final int CACHE_SIZE = Integer.getInteger(
+			"tracker.cacheSize", 1 << 16);
+	/**
+	 * How full visibility caches evict entries, set with
+	 * -Dtracker.cacheEviction=lru or fifo.
+	 */
+	private static final CanSeeCache.EvictionPolicy CACHE_EVICTION = "fifo"
+			.equalsIgnoreCase(System.getProperty("tracker.cacheEviction")) ? CanSeeCache.EvictionPolicy.FIFO
+			: CanSeeCache.EvictionPolicy.LRU;
+
+	/**
+	 * The number of transposition table slots, 16 bytes each, shared by the
+	 * planner's trees; set with -Dtracker.transpositions, 0 turns them off.
+	 */
+	private static final int TRANSPOSITIONS = Integer.getInteger(
+			"tracker.transpositions", 1 << 16);
+
+	/**
+	 * The most planning tree nodes in use at once, including the subtrees kept
+	 * from earlier turns; set with -Dtracker.nodeBudget.
+	 */
+	private static final int NODE_BUDGET = Integer.getInteger(
+			"tracker.nodeBudget", Planner.DEFAULT_NODE_BUDGET);
+
+	/**
+	 * The number of greedy steps simulated from each leaf of the search tree,
+	 * set with -Dtracker.rolloutSteps; by default leaves get no rollout.
+	 */
+	private static final int ROLLOUT_STEPS = Integer.getInteger(
+			"tracker.rolloutSteps", 0);
+
+	/**
+	 * True iff the planner only considers movements to places from which the
+	 * tracker sees the target unseen, when there are any; disable with
+	 * -Dtracker.stealthPruning=false.
+	 */
+	private static final boolean STEALTH_PRUNING = !"false".equals(System
+			.getProperty("tracker.stealthPruning"));
+
 	/** The number of targets. */
 	private int numTargets;
 	/** The policy of the target(s). */
@@ -40,7 +136,31 @@ public class Tracker implements Agent {
 	/** The goal region. */
 	private RectRegion goalRegion;
 
-	private AgentState targetState;
+	/** The number of threads this tracker plans and builds its tables with. */
+	private int numThreads;
+	/** True iff each turn's action and planning time are printed. */
+	private boolean verbose;
+	/** The seed the planner is seeded with. */
+	private long seed;
+
+	/** The belief over where the target is. */
+	private TargetBelief targetBelief;
+	/** The turn the belief describes the target after. */
+	private int beliefTurn;
+	/** The cells the tracker can see, by cell index. */
+	private boolean[] visibleCells;
+	/**
+	 * What the tracker can see from each pose, or null if the setup is too
+	 * large for a table.
+	 */
+	private VisibilityTable visibility;
+	/** Plans the tracker's actions. */
+	private Planner planner;
+	/**
+	 * The policy solved offline, or null if there is none; states it does not
+	 * cover are planned online.
+	 */
+	private OfflinePolicy offlinePolicy;
 
 	/**
 	 * Constructs a tracker with the given parameters.
@@ -81,6 +201,37 @@ public class Tracker implements Agent {
 			AgentState trackerInitialState,
 
 			List<RectRegion> obstacles, RectRegion goalRegion) {
+		this(numTargets, targetPolicy, targetMotionHistory,
+				targetSensingParams, targetInitialStates,
+				trackerMotionHistory, trackerSensingParams,
+				trackerInitialState, obstacles, goalRegion,
+				Integer.MAX_VALUE, true, null);
+	}
+
+	/**
+	 * Constructs a tracker with the given parameters, as above, that plans on
+	 * no more than the given number of threads, for games played alongside
+	 * others.
+	 * 
+	 * @param maxThreads
+	 *            the most threads to plan with.
+	 * @param verbose
+	 *            true iff each turn's action should be printed.
+	 * @param seed
+	 *            the planning seed, or null to use the one set with
+	 *            -Dtracker.seed, if any.
+	 */
+	public Tracker(int numTargets, TargetPolicy targetPolicy,
+			MotionHistory targetMotionHistory,
+			SensingParameters targetSensingParams,
+			List<AgentState> targetInitialStates,
+
+			MotionHistory trackerMotionHistory,
+			SensingParameters trackerSensingParams,
+			AgentState trackerInitialState,
+
+			List<RectRegion> obstacles, RectRegion goalRegion,
+			int maxThreads, boolean verbose, Long seed) {
 		this.numTargets = numTargets;
 		this.targetPolicy = targetPolicy;
 		this.targetMotionHistory = targetMotionHistory;
@@ -93,6 +244,10 @@ public class Tracker implements Agent {
 
 		this.obstacles = obstacles;
 		this.goalRegion = goalRegion;
+		this.numThreads = Math.max(1, Math.min(NUM_THREADS, maxThreads));
+		this.verbose = verbose;
+		this.seed = seed != null ? seed : SEED != null ? SEED : System
+				.nanoTime();
 		initialise();
 	}
 
@@ -104,7 +259,42 @@ public class Tracker implements Agent {
 	 */
 	public void initialise() {
 
-		targetState = targetInitialStates.get(0);
+		if (targetMotionHistory != null) {
+			TargetDivergenceModel.forHistory(targetMotionHistory,
+					targetPolicy.getGrid(), obstacles);
+		}
+		CanSeeCache.configure(CACHE_SIZE, CACHE_EVICTION);
+		visibility = VisibilityTable.build(
+				targetPolicy.getGrid(), mySensingParams, obstacles,
+				VISIBILITY_FILE, numThreads);
+		if (visibility != null) {
+			StealthMap.build(targetPolicy.getGrid(), targetSensingParams,
+					obstacles, visibility, numThreads, verbose);
+		}
+		targetBelief = new TargetBelief(targetPolicy, targetMotionHistory,
+				obstacles, targetInitialStates.get(0));
+		beliefTurn = 0;
+		visibleCells = new boolean[targetBelief.getNumCells()];
+		if (myMotionHistory != null) {
+			TrackerDivergenceModel.forHistory(myMotionHistory,
+					targetPolicy.getGrid(), mySensingParams, obstacles);
+		}
+		planner = new Planner(targetPolicy, targetMotionHistory,
+				myMotionHistory, targetSensingParams, mySensingParams,
+				obstacles, goalRegion, numThreads,
+				seed);
+		planner.setVerbose(verbose);
+		planner.setTreeReuse(TREE_REUSE);
+		planner.setTranspositionCapacity(TRANSPOSITIONS);
+		planner.setNodeBudget(NODE_BUDGET);
+		planner.setRolloutSteps(ROLLOUT_STEPS);
+		planner.setStealthPruning(STEALTH_PRUNING);
+		if (OFFLINE) {
+			offlinePolicy = OfflinePolicy.forSetup(targetPolicy,
+					targetMotionHistory, myMotionHistory, targetSensingParams,
+					mySensingParams, obstacles, goalRegion, OFFLINE_BUDGET,
+					verbose);
+		}
 	}
 
 	@Override
@@ -156,16 +346,8 @@ public class Tracker implements Agent {
 		AgentState myState = previousResult.getResultingState();
 		long startTime = System.currentTimeMillis();
 
-		if (newPercepts.size() != 0) {
-			AgentState agentState = newPercepts.get(newPercepts.size() - 1)
-					.getAgentState();
-			// heading = TrackerTools.getAngleToTarget(myState, agentState);
-			// System.out.println("Heading angle: " + heading);
-			targetState = agentState;
-		}
-
-		AgentState currentTargetState = targetState;
-		targetState = targetPolicy.getAction(targetState).getResultingState();
+		updateBelief(turnNo, myState, newPercepts);
+		AgentState currentTargetState = targetBelief.getMostLikelyState();
 
 		// Grade 5
 		/*TrackerTools.maxUtility(2, targetPolicy, currentTargetState,
@@ -173,11 +355,22 @@ public class Tracker implements Agent {
 				mySensingParams, obstacles, goalRegion);*/
 		
 		// grade 6 & 7
-		TrackerAction ta = TrackerTools.rolloutPlanning(1200,
-				currentTargetState, myState, targetPolicy, targetMotionHistory,
-				myMotionHistory, targetSensingParams, mySensingParams, obstacles,
-				goalRegion);	
-		System.out.println("Action decided. Time elapsed: " + (System.currentTimeMillis() - startTime)/1000 + "seconds");
+		TrackerAction ta;
+		int code = (offlinePolicy == null) ? -1 : offlinePolicy.getActionCode(
+				currentTargetState, myState);
+		if (code != -1) {
+			ta = ActionTable.forSetup(targetPolicy.getGrid(), mySensingParams)
+					.getAction(myState, code);
+		} else if (TREE_PARALLEL) {
+			ta = planner.treeParallelPlanning(ITERATIONS_PER_TREE,
+					TIME_BUDGET, currentTargetState, myState);
+		} else {
+			ta = planner.rootParallelPlanning(ITERATIONS_PER_TREE,
+					TIME_BUDGET, currentTargetState, myState);
+		}
+		if (verbose) {
+			System.out.println("Action decided. Time elapsed: " + (System.currentTimeMillis() - startTime) + "ms");
+		}
 		
 		
 		// System.out.print(ta);
@@ -189,4 +382,73 @@ public class Tracker implements Agent {
 		//return TrackerTools.a;
 		return ta;
 	}
+
+	/**
+	 * Returns the hit and miss counts of the planner's visibility caches.
+	 * 
+	 * @return a summary of the caches' statistics, or an empty string if
+	 *         caching is off.
+	 */
+	public String getCacheStatistics() {
+		return planner.getCacheStatistics();
+	}
+
+	/**
+	 * Shuts down the tracker's planning threads; call this once the game is
+	 * over.
+	 */
+	@Override
+	public void close() {
+		planner.close();
+	}
+
+	/**
+	 * Brings the belief over the target up to date with the turns since the
+	 * last action: the target moves on odd turns, and after each of the last
+	 * two turns it was either seen or was not in view of the tracker.
+	 */
+	private void updateBelief(int turnNo, AgentState myState,
+			List<Percept> newPercepts) {
+		for (int turn = Math.max(0, turnNo - 2); turn < turnNo; turn++) {
+			while (beliefTurn < turn) {
+				beliefTurn++;
+				if (beliefTurn % 2 == 1) {
+					targetBelief.predict();
+				}
+			}
+			AgentState seenState = null;
+			for (Percept percept : newPercepts) {
+				if (percept.getTurnNo() == turn) {
+					seenState = percept.getAgentState();
+				}
+			}
+			if (seenState != null) {
+				targetBelief.collapse(seenState);
+			} else if (visibility == null
+					|| visibility.getVisibleProbability(myState, targetBelief) > 0) {
+				// Only worth ruling cells out if any are still possible.
+				targetBelief.notSeen(getVisibleCells(myState));
+			}
+		}
+	}
+
+	/**
+	 * Marks the cells the target could be in where the tracker would see it;
+	 * only the cells in the belief's support are marked. The table only knows
+	 * the nearest quantised pose, so each cell it marks is checked exactly;
+	 * cells it leaves out are never ruled out. Without a table every cell is
+	 * checked.
+	 */
+	private boolean[] getVisibleCells(AgentState myState) {
+		int pose = visibility == null ? -1 : visibility.getPose(myState);
+		for (int i = 0; i < targetBelief.getSupportSize(); i++) {
+			int cell = targetBelief.getSupportCell(i);
+			visibleCells[cell] = (visibility == null || (pose >= 0
+					&& visibility.canSee(pose, cell)))
+					&& targetBelief.getProbability(cell) > 0
+					&& GeomTools.canSee(myState, targetBelief.getCentre(cell),
+							mySensingParams, obstacles, 1e-5);
+		}
+		return visibleCells;
+	}
 }
@@ -0,0 +1,248 @@
+package tracker;
+
+import game.AgentState;
+import game.RectRegion;
+import game.SensingParameters;
+import geom.GeomTools;
+import geom.TargetGrid;
+
+import java.awt.geom.Point2D;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import divergence.AliasSampler;
+import divergence.MotionHistory;
+import divergence.MotionHistory.HistoryEntry;
+
+/**
+ * The tracker's divergence distribution, compiled from its motion history into
+ * a 25x25 confusion matrix of desired actions against outcomes.
+ *
+ * Which outcomes would leave the workspace or hit an obstacle depends on the
+ * tracker's pose, so the masked distributions are kept in a cache keyed by
+ * the quantised pose and the desired action, each with an alias sampler;
+ * poses that come up again during the search cost a single lookup. The cache
+ * is a fixed table of slots, each holding the last distribution whose key
+ * hashes to it, read and written without locks so that planner threads never
+ * wait on each other. If entries are appended to the history, the matrix is
+ * updated and the cache cleared on the next lookup.
+ */
+public class TrackerDivergenceModel {
+	/** The number of codes on the tracker's divergence grid. */
+	private static final int NUM_CODES = 25;
+	/** The code for staying still. */
+	private static final int STAY_CODE = 12;
+	/** The number of slots in the cache; a power of two. */
+	private static final int CACHE_CAPACITY = 1 << 14;
+	/** The resolution positions are quantised to, per unit length. */
+	private static final double POSITION_QUANTA = 1 << 20;
+	/** The resolution arm lengths are quantised to, per unit length. */
+	private static final double ARM_QUANTA = 1 << 14;
+
+	/** The most recently built model, which most callers will want again. */
+	private static volatile TrackerDivergenceModel lastModel;
+
+	/** The history the model is built from. */
+	private final MotionHistory history;
+	/** The action table used to apply outcomes. */
+	private final ActionTable actionTable;
+	/** The obstacles. */
+	private final List<RectRegion> obstacles;
+
+	/** The number of times each outcome followed each desired action. */
+	private final int[][] counts = new int[NUM_CODES][NUM_CODES];
+	/** The number of times each desired action appears in the history. */
+	private final int[] totals = new int[NUM_CODES];
+	/** The number of history entries folded into the counts. */
+	private volatile int numEntries = 0;
+
+	/** The masked distributions, by slot; replaced whole when cleared. */
+	private volatile AtomicReferenceArray<Entry> cache =
+			new AtomicReferenceArray<Entry>(CACHE_CAPACITY);
+
+	/**
+	 * A cached distribution and its key; entries are immutable, so they can be
+	 * shared between threads as soon as they are in the cache.
+	 */
+	private static final class Entry {
+		private final long key;
+		private final AliasSampler sampler;
+
+		public Entry(long key, AliasSampler sampler) {
+			this.key = key;
+			this.sampler = sampler;
+		}
+	}
+
+	/**
+	 * Compiles the model for the given history and setup.
+	 *
+	 * @param history
+	 *            the motion history of the tracker.
+	 * @param grid
+	 *            the grid that sets the tracker's step distance.
+	 * @param trackerSense
+	 *            the sensing parameters of the tracker.
+	 * @param obstacles
+	 *            the obstacles.
+	 */
+	public TrackerDivergenceModel(MotionHistory history, TargetGrid grid,
+			SensingParameters trackerSense, List<RectRegion> obstacles) {
+		this.history = history;
+		this.actionTable = ActionTable.forSetup(grid, trackerSense);
+		this.obstacles = obstacles;
+		refresh();
+	}
+
+	/**
+	 * Returns the model for the given history and setup, reusing the last
+	 * model built if it matches.
+	 *
+	 * @return the model for the given setup.
+	 */
+	public static TrackerDivergenceModel forHistory(MotionHistory history,
+			TargetGrid grid, SensingParameters trackerSense,
+			List<RectRegion> obstacles) {
+		TrackerDivergenceModel model = lastModel;
+		if (model == null || model.history != history
+				|| model.obstacles != obstacles
+				|| model.actionTable != ActionTable.forSetup(grid, trackerSense)) {
+			model = new TrackerDivergenceModel(history, grid, trackerSense,
+					obstacles);
+			lastModel = model;
+		}
+		return model;
+	}
+
+	/**
+	 * Returns the probability of each outcome when the tracker attempts the
+	 * given action from the given state. The returned array is shared and must
+	 * not be modified.
+	 *
+	 * @param desiredAction
+	 *            the action the tracker attempts.
+	 * @param trackerState
+	 *            the current state of the tracker.
+	 * @return the probability of each outcome, or null if the action never
+	 *         appears in the history.
+	 */
+	public double[] getProbabilities(int desiredAction,
+			AgentState trackerState) {
+		AliasSampler sampler = getSampler(desiredAction, trackerState);
+		return (sampler == null) ? null : sampler.getProbabilities();
+	}
+
+	/**
+	 * Returns a sampler for the outcome when the tracker attempts the given
+	 * action from the given state.
+	 *
+	 * @param desiredAction
+	 *            the action the tracker attempts.
+	 * @param trackerState
+	 *            the current state of the tracker.
+	 * @return the sampler, or null if the action never appears in the history.
+	 */
+	public AliasSampler getSampler(int desiredAction, AgentState trackerState) {
+		if (history.getNumEntries() != numEntries) {
+			refresh();
+		}
+		if (desiredAction < 0 || desiredAction >= NUM_CODES
+				|| totals[desiredAction] == 0) {
+			return null;
+		}
+		long key = getKey(desiredAction, trackerState);
+		AtomicReferenceArray<Entry> entries = cache;
+		int slot = getSlot(key);
+		Entry entry = entries.get(slot);
+		if (entry != null && entry.key == key) {
+			return entry.sampler;
+		}
+		AliasSampler sampler = new AliasSampler(buildDistribution(
+				desiredAction, trackerState));
+		entries.set(slot, new Entry(key, sampler));
+		return sampler;
+	}
+
+	/**
+	 * Folds any new history entries into the confusion matrix and clears the
+	 * cached distributions.
+	 */
+	private synchronized void refresh() {
+		int total = history.getNumEntries();
+		if (total == numEntries) {
+			return;
+		}
+		for (int i = numEntries; i < total; i++) {
+			HistoryEntry entry = history.getEntry(i);
+			counts[entry.getDesiredActionCode()][entry.getResultCode()]++;
+			totals[entry.getDesiredActionCode()]++;
+		}
+		cache = new AtomicReferenceArray<Entry>(CACHE_CAPACITY);
+		numEntries = total;
+	}
+
+	/**
+	 * Packs the quantised pose and the desired action into a single key. The
+	 * heading is left out, since no outcome depends on it.
+	 */
+	private static long getKey(int desiredAction, AgentState trackerState) {
+		Point2D pos = trackerState.getPosition();
+		long x = Math.round(pos.getX() * POSITION_QUANTA) & 0x1FFFFF;
+		long y = Math.round(pos.getY() * POSITION_QUANTA) & 0x1FFFFF;
+		long arm = 0;
+		if (trackerState.hasCamera()) {
+			arm = (Math.round(trackerState.getCameraArmLength() * ARM_QUANTA) & 0x7FFF) + 1;
+		}
+		return (((x << 21 | y) << 16 | arm) << 5) | desiredAction;
+	}
+
+	/**
+	 * Returns the cache slot of the given key.
+	 */
+	private static int getSlot(long key) {
+		key *= 0x9E3779B97F4A7C15L;
+		return (int) (key >>> 32) & (CACHE_CAPACITY - 1);
+	}
+
+	/**
+	 * Returns the distribution for the given desired action with the outcomes
+	 * that leave the workspace or hit an obstacle folded into staying still.
+	 */
+	private double[] buildDistribution(int desiredAction,
+			AgentState trackerState) {
+		int[] row;
+		int count;
+		synchronized (this) {
+			row = counts[desiredAction].clone();
+			count = totals[desiredAction];
+		}
+		double[] probabilities = new double[NUM_CODES];
+		for (int i = 0; i < NUM_CODES; i++) {
+			if (row[i] == 0) {
+				continue;
+			}
+			double probability = (double) row[i] / count;
+			if (i != STAY_CODE && isBlocked(trackerState, i)) {
+				probabilities[STAY_CODE] += probability;
+			} else {
+				probabilities[i] += probability;
+			}
+		}
+		return probabilities;
+	}
+
+	/**
+	 * Returns true iff the given outcome would leave the workspace or hit an
+	 * obstacle.
+	 */
+	private boolean isBlocked(AgentState trackerState, int outcome) {
+		Point2D end = actionTable.getResultingState(trackerState, outcome)
+				.getPosition();
+		boolean outOfBounds = end.getX() < 0 || end.getY() < 0
+				|| end.getX() > 1 || end.getY() > 1;
+		return outOfBounds
+				|| !GeomTools.canMove(trackerState.getPosition(), end,
+						trackerState.hasCamera(),
+						trackerState.getCameraArmLength(), obstacles);
+	}
+}
@@ -15,8 +15,8 @@ import java.util.Random;
 import java.util.Set;
 
 import target.TargetPolicy;
+import divergence.AliasSampler;
 import divergence.MotionHistory;
-import divergence.MotionHistory.HistoryEntry;
 
 public class TrackerTools {
 
@@ -26,6 +26,24 @@ public class TrackerTools {
 	final int[] keys = { 1, 2, 3, 5, 6, 8, 9, 10, 14, 15, 16, 18, 19, 21, 22,
 			23 };
 	private static int PLANNING_HORIZON = 1;
+	/**
+	 * The value penalty per worker currently descending through an action, so
+	 * that parallel workers spread out over the tree.
+	 */
+	private static final double VIRTUAL_LOSS = 1;
+	/**
+	 * Progressive widening of outcomes: an action taken n times may lead to
+	 * at most WIDENING_COEFFICIENT * n^WIDENING_EXPONENT distinct children,
+	 * after which outcomes are drawn from the children it already has.
+	 */
+	private static final double WIDENING_COEFFICIENT = 1;
+	private static final double WIDENING_EXPONENT = 0.5;
+	/** The discount applied to each step of a rollout, as in the tree. */
+	private static final double ROLLOUT_DISCOUNT = 0.7;
+	/** The number of points checked along camera arms in rollouts. */
+	private static final int ROLLOUT_ARM_STEPS = 10;
+	/** The number of points checked along camera arms by the planner. */
+	public static final int PLANNING_ARM_STEPS = 1000;
 
 	/**
 	 * Utility/reward function
@@ -41,15 +59,57 @@ public class TrackerTools {
 			AgentState targetState, SensingParameters targetSense,
 			SensingParameters trackerSense, List<RectRegion> obstacles,
 			RectRegion goalRegion) {
+		return utility(trackerState, targetState, targetSense, trackerSense,
+				obstacles, goalRegion, PLANNING_ARM_STEPS);
+	}
+
+	/**
+	 * Utility/reward function, checking the given number of points along
+	 * camera arms.
+	 */
+	public static double utility(AgentState trackerState,
+			AgentState targetState, SensingParameters targetSense,
+			SensingParameters trackerSense, List<RectRegion> obstacles,
+			RectRegion goalRegion, int numCameraArmSteps) {
+		return utility(trackerState, targetState, targetSense, trackerSense,
+				obstacles, goalRegion, numCameraArmSteps, null, null);
+	}
+
+	/**
+	 * Utility/reward function, checking the given number of points along
+	 * camera arms and remembering visibility tests in the given caches, which
+	 * must have been made for the same obstacles and number of points.
+	 * 
+	 * @param trackerSight
+	 *            the cache of what the tracker sees, or null for none.
+	 * @param targetSight
+	 *            the cache of what the target sees, or null for none.
+	 */
+	public static double utility(AgentState trackerState,
+			AgentState targetState, SensingParameters targetSense,
+			SensingParameters trackerSense, List<RectRegion> obstacles,
+			RectRegion goalRegion, int numCameraArmSteps,
+			CanSeeCache trackerSight, CanSeeCache targetSight) {
 		// System.out.println(trackerSense.getAngle());
 		double reward = 0;
-		if (GeomTools.canSee(trackerState, targetState, trackerSense,
-				obstacles, 1e-5, 1000)) {
+		VisibilityTable visibility = VisibilityTable.forSetup(trackerSense,
+				obstacles);
+		int pose = (visibility == null || !visibility.covers(targetState)) ? -1
+				: visibility.getExactPose(trackerState);
+		boolean trackerSees;
+		if (pose >= 0) {
+			// The table is exact for poses on its lattice.
+			trackerSees = visibility.canSee(pose, targetState);
+		} else {
+			trackerSees = canSee(trackerState, targetState, trackerSense,
+					obstacles, numCameraArmSteps, trackerSight);
+		}
+		if (trackerSees) {
 			reward += 1;
 		}
 
-		if (GeomTools.canSee(targetState, trackerState, targetSense, obstacles,
-				1e-5, 1000)) {
+		if (canSee(targetState, trackerState, targetSense, obstacles,
+				numCameraArmSteps, targetSight)) {
 			reward -= 1;
 		}
 
@@ -70,148 +130,190 @@ public class TrackerTools {
 		return reward;
 	}
 
+	/**
+	 * Returns true iff the observer can see the observee, going through the
+	 * given cache if there is one and it was made for the same sensing
+	 * parameters.
+	 */
+	private static boolean canSee(AgentState observerState,
+			AgentState observeeState, SensingParameters sense,
+			List<RectRegion> obstacles, int numCameraArmSteps,
+			CanSeeCache cache) {
+		if (cache == null || cache.getSensingParameters() != sense) {
+			return GeomTools.canSee(observerState, observeeState, sense,
+					obstacles, 1e-5, numCameraArmSteps);
+		}
+		return cache.canSee(observerState, observeeState);
+	}
+
 	public static TrackerAction rolloutPlanning(int numberOfTimes,
 			AgentState targetState, AgentState trackerState,
 			TargetPolicy targetPolicy, MotionHistory targetMotionHistory,
 			MotionHistory trackerMotionHistory, SensingParameters targetSense,
 			SensingParameters trackerSense, List<RectRegion> obstacles,
 			RectRegion goalRegion) {
+		MDPState root = buildTree(numberOfTimes, targetState, trackerState,
+				targetPolicy, targetMotionHistory, trackerMotionHistory,
+				targetSense, trackerSense, obstacles, goalRegion, new Random());
+		// System.out.println(root.children.get(0).children.get(0).getVisited());
+		// System.out.println("Action Code: " + root.getAction());
+		return ActionTable.forSetup(targetPolicy.getGrid(), trackerSense)
+				.getAction(root.getTrackerState(), root.getAction());
+	}
+
+	/**
+	 * Builds a search tree from the given states by generating the given
+	 * number of traces, drawing all randomness from the given source.
+	 * 
+	 * @return the root of the search tree.
+	 */
+	public static MDPState buildTree(int numberOfTimes,
+			AgentState targetState, AgentState trackerState,
+			TargetPolicy targetPolicy, MotionHistory targetMotionHistory,
+			MotionHistory trackerMotionHistory, SensingParameters targetSense,
+			SensingParameters trackerSense, List<RectRegion> obstacles,
+			RectRegion goalRegion, Random random) {
 		MDPState root = new MDPState(targetState, trackerState);
 
 		for (int i = 0; i < numberOfTimes; i++) {
 			generateATrace(0, root, targetPolicy, targetMotionHistory,
 					trackerMotionHistory, targetSense, trackerSense, obstacles,
-					goalRegion);
+					goalRegion, null, null, 0, false, random);
 		}
-		// System.out.println(root.children.get(0).children.get(0).getVisited());
-		System.out.println("Action Code: " + root.getAction());
-		return getAllPossibleActions(root.getTrackerState(),
-				targetPolicy.getGrid(), trackerSense).get(root.getAction());
+		return root;
 	}
 
+	/**
+	 * Generates one trace from the given state, checking visibility through
+	 * the given caches, which are made for {@link #PLANNING_ARM_STEPS} points
+	 * along camera arms and may be null.
+	 * 
+	 * @param rolloutSteps
+	 *            the number of greedy steps simulated from each new leaf, or 0
+	 *            to leave leaves unvalued.
+	 * @param stealthPruning
+	 *            true iff movements are pruned to those reaching a place to
+	 *            watch the target from unseen, whenever one is within reach.
+	 */
 	public static double generateATrace(int planningHorizon,
 			MDPState currentState, TargetPolicy targetPolicy,
 			MotionHistory targetMotionHistory,
 			MotionHistory trackerMotionHistory, SensingParameters targetSense,
 			SensingParameters trackerSense, List<RectRegion> obstacles,
-			RectRegion goalRegion) {
-		if (planningHorizon > PLANNING_HORIZON)
+			RectRegion goalRegion, CanSeeCache trackerSight,
+			CanSeeCache targetSight, int rolloutSteps, boolean stealthPruning,
+			Random random) {
+		if (planningHorizon > PLANNING_HORIZON) {
+			if (rolloutSteps > 0 && !currentState.hasRolloutValue()) {
+				currentState.setRolloutValue(rollout(rolloutSteps,
+						currentState.getTargetState(),
+						currentState.getTrackerState(), targetPolicy,
+						targetSense, trackerSense, obstacles, goalRegion));
+			}
 			return 0;
-		currentState.setVisited(currentState.getVisited() + 1);
+		}
+		int visited = currentState.incrementVisited();
 
 		TargetGrid grid = targetPolicy.getGrid();
+		ActionTable actionTable = ActionTable.forSetup(grid, trackerSense);
+		StealthMap stealth = stealthPruning ? getHidingPlaces(currentState,
+				actionTable, targetSense, obstacles) : null;
 		// select an action
-		HashMap<Integer, TrackerAction> actionmap = getAllPossibleActions(
-				currentState.getTrackerState(), grid, trackerSense);
-
-		Random r = new Random();
-		int random = r.nextInt(actionmap.keySet().size());
-		int count = 0;
-		double maxValue = Double.MIN_VALUE;
+		double maxValue = Double.NEGATIVE_INFINITY;
 		int action = 0;
-		for (Integer key : actionmap.keySet()) {
-			if (count == random) {
-				// select an action uniformly at random
-				// action = key;
+		for (int slot = 0; slot < ActionCodec.NUM_SLOTS; slot++) {
+			if (!actionTable.isAvailable(slot, currentState.getTrackerState())) {
+				continue;
 			}
-
-			if (!currentState.actionsPerformed.containsKey(key)) {
-				currentState.actionsPerformed.put(key, 1);
+			if (stealth != null && !actionTable.isCameraAdjustment(slot)
+					&& !leadsToHidingPlace(stealth, actionTable, slot,
+							currentState)) {
+				continue;
 			}
+			int key = ActionCodec.toCode(slot);
+			currentState.addAction(key);
 
 			// select an action via multiarm bandit if
-			if (!currentState.rewardActions.containsKey(key)) {
-				AgentState nextTrackerState = getNextTrackerState(
-						currentState.getTrackerState(), key, grid, trackerSense);
-
-				MDPState nextState = new MDPState(targetPolicy.getAction(
-						currentState.getTargetState()).getResultingState(),
-						nextTrackerState);
-
-				double r_sa = MDPUtility(targetMotionHistory, nextState,
-						targetPolicy, trackerSense, trackerSense, obstacles,
-						goalRegion);
+			if (!currentState.hasRewardAction(key)) {
+				AgentState nextTrackerState = actionTable.getResultingState(
+						currentState.getTrackerState(), key);
+
+				double r_sa = MDPUtility(targetMotionHistory,
+						targetPolicy.getAction(currentState.getTargetState())
+								.getResultingState(), nextTrackerState,
+						targetPolicy, targetSense, trackerSense, obstacles,
+						goalRegion, trackerSight, targetSight);
 				currentState.setRewardAction(key, r_sa);
 			}
 			currentState.updateValue(key);
 
-			double traceValue = Math.sqrt(((2 * Math.log(currentState
-					.getVisited())) / currentState.actionsPerformed.get(key)))
-					+ currentState.valueActions.get(key);
+			int virtualLoss = currentState.getVirtualLoss(key);
+			double traceValue = Math.sqrt(((2 * Math.log(visited)) / (currentState
+					.getActionCount(key) + virtualLoss)))
+					+ currentState.getValueAction(key)
+					- VIRTUAL_LOSS * virtualLoss;
 
 			if (maxValue < traceValue) {
 				maxValue = traceValue;
 				action = key;
 			}
-
-			count++;
 		}
 
 		// update actions performed.
-		currentState.actionsPerformed.put(action,
-				currentState.actionsPerformed.get(action) + 1);
+		currentState.incrementActionCount(action);
+		currentState.addVirtualLoss(action);
 
 		// System.out.println(currentState.actionsPerformed.entrySet());
-		AgentState nextTrackerState = getNextTrackerState(
-				currentState.getTrackerState(), action, grid, trackerSense);
-		MDPState nextState = new MDPState(currentState.getTargetState(),
-				nextTrackerState);
+		AgentState nextTrackerState = actionTable.getResultingState(
+				currentState.getTrackerState(), action);
 
-		double r_sa = MDPUtility(targetMotionHistory, nextState, targetPolicy,
-				trackerSense, trackerSense, obstacles, goalRegion);
+		double r_sa = MDPUtility(targetMotionHistory,
+				currentState.getTargetState(), nextTrackerState, targetPolicy,
+				targetSense, trackerSense, obstacles, goalRegion,
+				trackerSight, targetSight);
 		currentState.setRewardAction(action, r_sa);
 
 		// sample a next state according to T(s,a,s')
-		double[] probabilities = null;
-		
+		AliasSampler sampler = null;
 		if (trackerMotionHistory != null) {
-			probabilities = getTrackerDivergenceProbability(
-		 trackerMotionHistory, action, currentState.getTrackerState(),
-		 targetPolicy.getGrid(), obstacles, trackerSense);
+			sampler = TrackerDivergenceModel.forHistory(trackerMotionHistory,
+					grid, trackerSense, obstacles).getSampler(action,
+					currentState.getTrackerState());
 		}
-		 
 
 		// simulate diverging tracker state
 		int divergedAction = action;
-		double divergedActionProbability = 0;
-		if (probabilities != null) {
-			divergedAction = simulateStateByProbability(probabilities);
-			if (divergedAction == -1) {
-				// no divergence
-				divergedAction = action;
-				divergedActionProbability = 1;
-				probabilities = null;
-			} else {
-				divergedActionProbability = probabilities[divergedAction];
+		double divergedActionProbability = 1;
+		if (sampler != null) {
+			int sampledAction = sampler.sample(random);
+			if (sampledAction != -1) {
+				divergedAction = sampledAction;
+				divergedActionProbability = sampler
+						.getProbability(divergedAction);
 			}
-		} else {
-			divergedActionProbability = 1;
 		}
-		AgentState divergedTrackerState = getNextTrackerState(
-				currentState.getTrackerState(), divergedAction, grid, trackerSense);
+		AgentState divergedTrackerState = actionTable.getResultingState(
+				currentState.getTrackerState(), divergedAction);
 
 		// simulate diverging target state
 
-		double divergedTargetProbability = 0;
+		double divergedTargetProbability = 1;
 		int divergedTargetAction = grid.encodeAction(targetPolicy
 				.getAction(currentState.getTargetState()));
-		double[] targetProbabilities = getTargetDivergenceProbability(
-				targetMotionHistory, divergedTargetAction, grid,
-				currentState.getTargetState(), obstacles);
-
-		if (targetProbabilities != null) {
-			divergedTargetAction = simulateStateByProbability(targetProbabilities);
-			if (divergedAction == -1) {
-				// no divergence
-				divergedTargetAction = targetPolicy.getGrid().encodeAction(
-						targetPolicy.getAction(currentState.getTargetState()));
-				divergedTargetProbability = 1;
-				targetProbabilities = null;
-			} else {
-				divergedTargetProbability = targetProbabilities[divergedTargetAction];
+		AliasSampler targetSampler = null;
+		if (targetMotionHistory != null) {
+			targetSampler = TargetDivergenceModel.forHistory(
+					targetMotionHistory, grid, obstacles).getSampler(
+					divergedTargetAction,
+					grid.getCell(currentState.getTargetState().getPosition()));
+		}
+		if (targetSampler != null) {
+			int sampledTargetAction = targetSampler.sample(random);
+			if (sampledTargetAction != -1) {
+				divergedTargetAction = sampledTargetAction;
+				divergedTargetProbability = targetSampler
+						.getProbability(divergedTargetAction);
 			}
-		} else {
-			divergedTargetProbability = 1;
 		}
 
 		GridCell nextCell = grid.decodeFromIndices(
@@ -221,29 +323,36 @@ public class TrackerTools {
 				grid.getCentre(nextCell), grid.getHeading(divergedTargetAction));
 		// AgentState divergedTargetState =
 		// targetPolicy.getAction(currentState.getTargetState()).getResultingState();
-		MDPState divergedState = new MDPState(divergedTargetState,
-				divergedTrackerState);
-
-		divergedState.setParentActionCode(action);
-		divergedState.setDepth(planningHorizon);
-		// add s' as a child
-		if (!currentState.childExists(divergedState)) {
-			currentState.addChild(divergedState);
-			divergedState.setProbability(divergedActionProbability
-					* divergedTargetProbability);
-			// System.out.print("PROB: " + divergedActionProbability *
-			// divergedTargetProbability);
-			// divergedState.setTargetProbability(divergedTargetProbability);
-
-		} else {
-			divergedState = currentState.getChild(divergedState);
+		// add s' as a child, unless the action already has as many children
+		// as its visits allow
+		MDPState divergedState = currentState.getChild(action,
+				divergedAction, divergedTargetAction);
+		if (divergedState == null
+				&& currentState.getNumChildren(action) >= WIDENING_COEFFICIENT
+						* Math.pow(currentState.getActionCount(action),
+								WIDENING_EXPONENT)) {
+			divergedState = currentState.sampleChild(action, random);
+		}
+		if (divergedState == null) {
+			divergedState = currentState.findOrAddChild(action,
+					divergedAction, divergedTargetAction, divergedTargetState,
+					divergedTrackerState, divergedActionProbability
+							* divergedTargetProbability, planningHorizon);
+			if (divergedState == null) {
+				// The node pool is used up, so stay within the existing tree.
+				divergedState = currentState.sampleChild(action, random);
+			}
 		}
 
-		generateATrace(planningHorizon + 1, divergedState, targetPolicy,
-				targetMotionHistory, trackerMotionHistory, targetSense,
-				trackerSense, obstacles, goalRegion);
+		if (divergedState != null) {
+			generateATrace(planningHorizon + 1, divergedState, targetPolicy,
+					targetMotionHistory, trackerMotionHistory, targetSense,
+					trackerSense, obstacles, goalRegion, trackerSight,
+					targetSight, rolloutSteps, stealthPruning, random);
+		}
 
 		currentState.updateValue(action);
+		currentState.removeVirtualLoss(action);
 		/*
 		 * System.out.println("horizon" + planningHorizon + " " +
 		 * currentState.getMaxValue() + "size: " + currentState.children.size()
@@ -252,41 +361,172 @@ public class TrackerTools {
 		return 0;
 	}
 
+	/**
+	 * Returns the stealth map if movements from the given state should be
+	 * pruned, i.e. some movement reaches a place from which the tracker sees
+	 * the target without being seen; otherwise null.
+	 */
+	private static StealthMap getHidingPlaces(MDPState state,
+			ActionTable actionTable, SensingParameters targetSense,
+			List<RectRegion> obstacles) {
+		StealthMap stealth = StealthMap.forSetup(targetSense, obstacles);
+		if (stealth == null || !stealth.covers(state.getTargetState())) {
+			return null;
+		}
+		for (int slot = 0; slot < ActionCodec.NUM_SLOTS; slot++) {
+			if (!actionTable.isCameraAdjustment(slot)
+					&& leadsToHidingPlace(stealth, actionTable, slot, state)) {
+				return stealth;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns true iff the movement in the given slot takes the tracker to a
+	 * place from which it sees the target without being seen.
+	 */
+	private static boolean leadsToHidingPlace(StealthMap stealth,
+			ActionTable actionTable, int slot, MDPState state) {
+		Point2D pos = state.getTrackerState().getPosition();
+		return stealth.canSeeUnseen(state.getTargetState(), pos.getX()
+				+ actionTable.getDx(slot), pos.getY() + actionTable.getDy(slot));
+	}
+
+	/**
+	 * Estimates the value of a leaf by simulating a few steps in which the
+	 * target follows its policy and the tracker greedily takes the movement
+	 * or turn with the best utility, i.e. the one that keeps the target in
+	 * view, unseen and close. Steps are simulated by the
+	 * {@link ForwardModel}, so collisions are respected and nothing is
+	 * allocated per step. Divergence is ignored, so a rollout is the same
+	 * every time for the same leaf and is only computed once.
+	 * 
+	 * @param rolloutSteps
+	 *            the number of steps to simulate.
+	 * @return the discounted sum of the utilities along the rollout.
+	 */
+	public static double rollout(int rolloutSteps, AgentState targetState,
+			AgentState trackerState, TargetPolicy targetPolicy,
+			SensingParameters targetSense, SensingParameters trackerSense,
+			List<RectRegion> obstacles, RectRegion goalRegion) {
+		ActionTable actionTable = ActionTable.forSetup(targetPolicy.getGrid(),
+				trackerSense);
+		ForwardModel model = ForwardModel.forSetup(targetPolicy, targetSense,
+				trackerSense, obstacles, goalRegion, ROLLOUT_ARM_STEPS);
+		ForwardModel.AgentBuffer target = new ForwardModel.AgentBuffer();
+		ForwardModel.AgentBuffer tracker = new ForwardModel.AgentBuffer();
+		ForwardModel.AgentBuffer candidate = new ForwardModel.AgentBuffer();
+		ForwardModel.AgentBuffer best = new ForwardModel.AgentBuffer();
+		target.set(targetState);
+		tracker.set(trackerState);
+		double value = 0;
+		double discount = 1;
+		for (int step = 0; step < rolloutSteps; step++) {
+			model.simulateTargetPolicy(target);
+			best.set(tracker);
+			double bestScore = rolloutUtility(model, tracker, target);
+			for (int slot = 0; slot < ActionCodec.NUM_SLOTS; slot++) {
+				if (actionTable.isCameraAdjustment(slot)
+						|| ActionCodec.toCode(slot) == 12) {
+					continue;
+				}
+				candidate.set(tracker);
+				if (!model.simulateMovement(candidate,
+						ActionTable.getHeading(slot),
+						actionTable.getDistance(slot))) {
+					continue;
+				}
+				double score = rolloutUtility(model, candidate, target);
+				if (score > bestScore) {
+					bestScore = score;
+					best.set(candidate);
+				}
+			}
+			tracker.set(best);
+			value += discount * bestScore;
+			discount *= ROLLOUT_DISCOUNT;
+		}
+		return value;
+	}
+
+	/**
+	 * The utility function on the forward model's states.
+	 */
+	private static double rolloutUtility(ForwardModel model,
+			ForwardModel.AgentBuffer tracker, ForwardModel.AgentBuffer target) {
+		// What each agent would score this turn, as in the game.
+		double reward = model.getTrackerReward(tracker, target, false)
+				- model.getTargetReward(target, tracker);
+		double dx = tracker.x - target.x;
+		double dy = tracker.y - target.y;
+		reward += 1 - Math.sqrt(dx * dx + dy * dy);
+		if (model.isWithinGoal(tracker) && reward < 1) {
+			reward -= 0.7;
+		}
+		return reward;
+	}
+
 	public static double MDPUtility(MotionHistory targetMotionHistory,
 			MDPState state, TargetPolicy targetPolicy,
 			SensingParameters targetSense, SensingParameters trackerSense,
 			List<RectRegion> obstacles, RectRegion goalRegion) {
+		return MDPUtility(targetMotionHistory, state.getTargetState(),
+				state.getTrackerState(), targetPolicy, targetSense,
+				trackerSense, obstacles, goalRegion);
+	}
+
+	public static double MDPUtility(MotionHistory targetMotionHistory,
+			AgentState targetState, AgentState trackerState,
+			TargetPolicy targetPolicy, SensingParameters targetSense,
+			SensingParameters trackerSense, List<RectRegion> obstacles,
+			RectRegion goalRegion) {
+		return MDPUtility(targetMotionHistory, targetState, trackerState,
+				targetPolicy, targetSense, trackerSense, obstacles,
+				goalRegion, null, null);
+	}
+
+	/**
+	 * The expected utility over the target's next move, checking visibility
+	 * through the given caches, which may be null.
+	 */
+	public static double MDPUtility(MotionHistory targetMotionHistory,
+			AgentState targetState, AgentState trackerState,
+			TargetPolicy targetPolicy, SensingParameters targetSense,
+			SensingParameters trackerSense, List<RectRegion> obstacles,
+			RectRegion goalRegion, CanSeeCache trackerSight,
+			CanSeeCache targetSight) {
 
 		double sum = 0;
 
-		sum += utility(state.getTrackerState(), state.getTargetState(),
-				targetSense, trackerSense, obstacles, goalRegion);
+		sum += utility(trackerState, targetState, targetSense, trackerSense,
+				obstacles, goalRegion, PLANNING_ARM_STEPS, trackerSight,
+				targetSight);
 
-		game.Action expectedAction = targetPolicy.getAction(state
-				.getTargetState());
+		game.Action expectedAction = targetPolicy.getAction(targetState);
 		TargetGrid grid = targetPolicy.getGrid();
 		double[] probs = getTargetDivergenceProbability(targetMotionHistory,
-				grid.encodeAction(expectedAction), grid,
-				state.getTargetState(), obstacles);
+				grid.encodeAction(expectedAction), grid, targetState,
+				obstacles);
 		if (probs == null) {
 			probs = new double[9];
-			probs[grid.encodeAction(targetPolicy.getAction(state
-					.getTargetState()))] = 1;
+			probs[grid.encodeAction(expectedAction)] = 1;
 		}
 		for (int i = 0; i < 9; i++) {
 			if (probs[i] != 0) {
 				GridCell nextCell = grid.decodeFromIndices(
-						grid.getCell(state.getTargetState().getPosition()), i);
+						grid.getCell(targetState.getPosition()), i);
 				AgentState resultTargetState = new AgentState(
-						grid.getCentre(nextCell), i);
+						grid.getCentre(nextCell), grid.getHeading(i));
 
 				// Calculate the utility of the resulting tracker state
 				// and
 				// resulting target state
 				double utility = probs[i]
-						* utility(state.getTrackerState(), resultTargetState,
+						* utility(trackerState, resultTargetState,
 								targetSense, trackerSense, obstacles,
-								goalRegion);
+								goalRegion, PLANNING_ARM_STEPS, trackerSight,
+								targetSight);
 				sum += utility;
 			}
 		}
@@ -294,10 +534,18 @@ public class TrackerTools {
 		return sum;
 	}
 
-	public static int simulateStateByProbability(double[] probabilities) {
+	/**
+	 * Draws an outcome from a one-off distribution by walking its CDF. For
+	 * distributions that are drawn from repeatedly, build an
+	 * {@link AliasSampler} once instead.
+	 * 
+	 * @return the index of the outcome drawn, or -1 if the probabilities sum
+	 *         to less than the number drawn.
+	 */
+	public static int simulateStateByProbability(double[] probabilities,
+			Random r) {
 		int action = -1;
 		double sum = 0;
-		Random r = new Random();
 		double random = r.nextDouble();
 
 		for (int i = 0; i < probabilities.length; i++) {
@@ -438,7 +686,8 @@ public class TrackerTools {
 
 	/**
 	 * Provide an array of probability given the desired action of the target
-	 * and its motion history
+	 * and its motion history. The array is shared by all callers and must not
+	 * be modified.
 	 * 
 	 * @param mh
 	 * @param desiredAction
@@ -449,157 +698,30 @@ public class TrackerTools {
 	public static double[] getTargetDivergenceProbability(MotionHistory mh,
 			int desiredAction, TargetGrid grid, AgentState targetState,
 			List<RectRegion> obstacles) {
-		List<HistoryEntry> history = mh.getHistory();
-		double[] resultActionCount = new double[9];
-
-		int count = 0;
-		for (HistoryEntry entry : history) {
-			if (entry.getDesiredActionCode() == desiredAction) {
-				int resultAction = entry.getResultCode();
-				resultActionCount[resultAction]++;
-				count++;
-			}
-		}
-
-		double[] probabilities = new double[9];
-		if (count != 0) {
-			for (int i = 0; i < resultActionCount.length; i++) {
-				probabilities[i] += resultActionCount[i] / count;
-
-				if (probabilities[i] > 0) {
-					GridCell nextCell = grid.decodeFromIndices(
-							grid.getCell(targetState.getPosition()), i);
-					AgentState resultTargetState = new AgentState(
-							grid.getCentre(nextCell), grid.getHeading(i));
-
-					boolean hitObstacles = !GeomTools.canMove(
-							targetState.getPosition(),
-							resultTargetState.getPosition(),
-							targetState.hasCamera(),
-							targetState.getCameraArmLength(), obstacles);
-
-					boolean outOfBounds = 	resultTargetState.getPosition().getX() < 0
-											|| resultTargetState.getPosition().getY() < 0 
-											|| resultTargetState.getPosition().getX() > 1
-											|| resultTargetState.getPosition().getY() > 1;
-
-					if (outOfBounds || hitObstacles) {
-						probabilities[4] += probabilities[i];
-						probabilities[i] = 0;
-					}
-				}
-			}
-		} else {
+		if (mh == null) {
 			return null;
 		}
-		return probabilities;
+		return TargetDivergenceModel.forHistory(mh, grid, obstacles)
+				.getProbabilities(desiredAction,
+						grid.getCell(targetState.getPosition()));
 	}
 
+	/**
+	 * Provide an array of probability given the desired action of the tracker
+	 * and its motion history. The array is shared by all callers and must not
+	 * be modified.
+	 */
 	public static double[] getTrackerDivergenceProbability(MotionHistory mh,
 			int desiredAction, AgentState trackerState, TargetGrid grid,
 			List<RectRegion> obstacles, SensingParameters trackerSense) {
-		List<HistoryEntry> history = mh.getHistory();
-
-		double[] actionCount = new double[25];
-
-		int count = 0;
-		for (HistoryEntry entry : history) {
-			if (entry.getDesiredActionCode() == desiredAction) {
-				int resultAction = entry.getResultCode();
-				actionCount[resultAction]++;
-				count++;
-			}
-		}
-
-		double[] probabilities = new double[25];
-		if (count != 0) {
-			for (int i = 0; i < actionCount.length; i++) {
-				probabilities[i] += actionCount[i] / count;
-
-				if (probabilities[i] > 0) {
-					AgentState nextTrackerState = getNextTrackerState(
-							trackerState, i, grid, trackerSense);
-
-					boolean hitObstacles = !GeomTools.canMove(
-							trackerState.getPosition(),
-							nextTrackerState.getPosition(),
-							trackerState.hasCamera(),
-							trackerState.getCameraArmLength(), obstacles);
-
-					boolean outOfBounds =  nextTrackerState.getPosition().getX() < 0
-										|| nextTrackerState.getPosition().getY() < 0 
-										|| nextTrackerState.getPosition().getX() > 1
-										|| nextTrackerState.getPosition().getY() > 1;
-					
-					if (outOfBounds || hitObstacles) {
-
-						probabilities[12] += probabilities[i];
-						probabilities[i] = 0;
-					}
-				}
-			}
-		} else {
-			return null;
-		}
-		return probabilities;
+		return TrackerDivergenceModel.forHistory(mh, grid, trackerSense,
+				obstacles).getProbabilities(desiredAction, trackerState);
 	}
 
 	public static AgentState getNextTrackerState(
 			AgentState currentTrackerState, int actionKey, TargetGrid grid, SensingParameters trackerSense) {
-		double distance = 1.0 / grid.getGridSize();
-		HashMap<Integer, TrackerAction> actionsList = getAllPossibleActions(
-				currentTrackerState, grid, trackerSense);
-
-		TrackerAction selectedAction = actionsList.get(actionKey);
-
-		if (selectedAction == null) {
-			TrackerAction similarAction;
-
-			switch (actionKey) {
-			case 0:
-				similarAction = actionsList.get(6);
-				selectedAction = new TrackerAction(currentTrackerState,
-						similarAction.getHeading(), (2 * distance));
-				break;
-			case 4:
-				similarAction = actionsList.get(8);
-				selectedAction = new TrackerAction(currentTrackerState,
-						similarAction.getHeading(), (2 * distance));
-				break;
-			case 7:
-				similarAction = actionsList.get(2);
-				selectedAction = new TrackerAction(currentTrackerState,
-						similarAction.getHeading(), (distance / 2));
-				break;
-			case 11:
-				similarAction = actionsList.get(10);
-				selectedAction = new TrackerAction(currentTrackerState,
-						similarAction.getHeading(), (distance / 2));
-				break;
-			case 13:
-				similarAction = actionsList.get(14);
-				selectedAction = new TrackerAction(currentTrackerState,
-						similarAction.getHeading(), (distance / 2));
-				break;
-			case 17:
-				similarAction = actionsList.get(22);
-				selectedAction = new TrackerAction(currentTrackerState,
-						similarAction.getHeading(), (distance / 2));
-				break;
-			case 20:
-				similarAction = actionsList.get(16);
-				selectedAction = new TrackerAction(currentTrackerState,
-						similarAction.getHeading(), (2 * distance));
-				break;
-			case 24:
-				similarAction = actionsList.get(18);
-				selectedAction = new TrackerAction(currentTrackerState,
-						similarAction.getHeading(), (2 * distance));
-				break;		
-			}
-		}
-
-		return selectedAction.getResultingState();
+		return ActionTable.forSetup(grid, trackerSense).getResultingState(
+				currentTrackerState, actionKey);
 	}
 
 	public static HashMap<Integer, TrackerAction> getAllFeasibleActions(
@@ -657,91 +779,17 @@ public class TrackerTools {
 		HashMap<Integer, TrackerAction> possibleActions = new HashMap<Integer, TrackerAction>();
 		double distance = 1.0 / grid.getGridSize();
 
-		possibleActions.put(
-				1,
-				new TrackerAction(currentTrackerState, GeomTools
-						.normaliseAngle(Math.toRadians(112.5)), distance));
-		possibleActions.put(
-				2,
-				new TrackerAction(currentTrackerState, GeomTools
-						.normaliseAngle(Math.toRadians(90)), distance));
-		possibleActions.put(
-				3,
-				new TrackerAction(currentTrackerState, GeomTools
-						.normaliseAngle(Math.toRadians(67.5)), distance));
-		possibleActions.put(
-				5,
-				new TrackerAction(currentTrackerState, GeomTools
-						.normaliseAngle(Math.toRadians(157.5)), distance));
-		possibleActions.put(
-				6,
-				new TrackerAction(currentTrackerState, GeomTools
-						.normaliseAngle(Math.toRadians(135)), distance));
-		possibleActions.put(
-				8,
-				new TrackerAction(currentTrackerState, GeomTools
-						.normaliseAngle(Math.toRadians(45)), distance));
-		possibleActions.put(
-				9,
-				new TrackerAction(currentTrackerState, GeomTools
-						.normaliseAngle(Math.toRadians(22.5)), distance));
-		possibleActions.put(10, new TrackerAction(currentTrackerState,
-				GeomTools.normaliseAngle(Math.toRadians(180)), distance));
-		possibleActions.put(12, new TrackerAction(currentTrackerState,
-				currentTrackerState.getHeading(), 0));
-		possibleActions.put(14, new TrackerAction(currentTrackerState,
-				GeomTools.normaliseAngle(Math.toRadians(0)), distance));
-		possibleActions.put(15, new TrackerAction(currentTrackerState,
-				GeomTools.normaliseAngle(Math.toRadians(202.5)), distance));
-		possibleActions.put(16, new TrackerAction(currentTrackerState,
-				GeomTools.normaliseAngle(Math.toRadians(225)), distance));
-		possibleActions.put(18, new TrackerAction(currentTrackerState,
-				GeomTools.normaliseAngle(Math.toRadians(315)), distance));
-		possibleActions.put(19, new TrackerAction(currentTrackerState,
-				GeomTools.normaliseAngle(Math.toRadians(337.5)), distance));
-		possibleActions.put(21, new TrackerAction(currentTrackerState,
-				GeomTools.normaliseAngle(Math.toRadians(247.5)), distance));
-		possibleActions.put(22, new TrackerAction(currentTrackerState,
-				GeomTools.normaliseAngle(Math.toRadians(270)), distance));
-		possibleActions.put(23, new TrackerAction(currentTrackerState,
-				GeomTools.normaliseAngle(Math.toRadians(292.5)), distance));
-
-		possibleActions.put(121, new TrackerAction(currentTrackerState,
-				GeomTools.normaliseAngle(Math.toRadians(112.5)), 0));
-		possibleActions.put(122, new TrackerAction(currentTrackerState,
-				GeomTools.normaliseAngle(Math.toRadians(90)), 0));
-		possibleActions.put(123, new TrackerAction(currentTrackerState,
-				GeomTools.normaliseAngle(Math.toRadians(67.5)), 0));
-		possibleActions.put(125, new TrackerAction(currentTrackerState,
-				GeomTools.normaliseAngle(Math.toRadians(157.5)), 0));
-		possibleActions.put(126, new TrackerAction(currentTrackerState,
-				GeomTools.normaliseAngle(Math.toRadians(135)), 0));
-		possibleActions.put(128, new TrackerAction(currentTrackerState,
-				GeomTools.normaliseAngle(Math.toRadians(45)), 0));
-		possibleActions.put(129, new TrackerAction(currentTrackerState,
-				GeomTools.normaliseAngle(Math.toRadians(22.5)), 0));
-		possibleActions.put(1210, new TrackerAction(currentTrackerState,
-				GeomTools.normaliseAngle(Math.toRadians(180)), 0));
-		possibleActions.put(1214, new TrackerAction(currentTrackerState,
-				GeomTools.normaliseAngle(Math.toRadians(0)), 0));
-		possibleActions.put(1215, new TrackerAction(currentTrackerState,
-				GeomTools.normaliseAngle(Math.toRadians(202.5)), 0));
-		possibleActions.put(1216, new TrackerAction(currentTrackerState,
-				GeomTools.normaliseAngle(Math.toRadians(225)), 0));
-		possibleActions.put(1218, new TrackerAction(currentTrackerState,
-				GeomTools.normaliseAngle(Math.toRadians(315)), 0));
-
-		possibleActions.put(1219, new TrackerAction(currentTrackerState,
-				GeomTools.normaliseAngle(Math.toRadians(337.5)), 0));
-		possibleActions.put(1221, new TrackerAction(currentTrackerState,
-				GeomTools.normaliseAngle(Math.toRadians(247.5)), 0));
-
-		possibleActions.put(1222, new TrackerAction(currentTrackerState,
-				GeomTools.normaliseAngle(Math.toRadians(270)), 0));
-
-		possibleActions.put(1223, new TrackerAction(currentTrackerState,
-				GeomTools.normaliseAngle(Math.toRadians(292.5)), 0));
-		
+		for (int slot = 0; slot < ActionCodec.NUM_SLOTS; slot++) {
+			int code = ActionCodec.toCode(slot);
+			if (code == 12) {
+				possibleActions.put(12, new TrackerAction(currentTrackerState,
+						currentTrackerState.getHeading(), 0));
+			} else if (code < 30 || ActionTable.isTurn(slot)) {
+				possibleActions.put(code, new TrackerAction(
+						currentTrackerState, ActionTable.getHeading(slot),
+						ActionTable.isTurn(slot) ? 0 : distance));
+			}
+		}
 		return possibleActions;
 	}
 	
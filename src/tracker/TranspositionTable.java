@@ -0,0 +1,281 @@
+package tracker;
+
+import game.AgentState;
+import game.SensingParameters;
+import geom.GeomTools;
+import geom.GridCell;
+import geom.TargetGrid;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Finds the node already searched for a state, so that a state reached by
+ * different sequences of actions is searched once and the planning tree
+ * becomes a DAG.
+ *
+ * States are packed into 64-bit keys, together with their depth in the tree,
+ * and stored by open addressing in fixed-size arrays. Writers claim slots with
+ * compare-and-set, so the table can be shared by every worker of a tree
+ * without locking. Only a short run of slots is probed for each key; when the
+ * run is full, the node in it with the fewest visits is replaced.
+ *
+ * The table is only ever a hint: a lookup racing with an insert may miss, in
+ * which case the state is simply searched twice.
+ */
+public class TranspositionTable {
+	/** The key of an empty slot; every real key has its top bit set. */
+	private static final long EMPTY = 0;
+	/** The number of slots probed for each key. */
+	private static final int PROBE_LIMIT = 8;
+	/** The number of bits for each tracker coordinate. */
+	private static final int POSITION_BITS = 13;
+	/** The number of bits for the tracker's heading. */
+	private static final int HEADING_BITS = 10;
+	/** The number of bits for the index of the tracker's camera arm length. */
+	private static final int ARM_BITS = 4;
+	/** The number of bits for the index of the target's cell. */
+	private static final int CELL_BITS = 14;
+	/** The number of bits for the target's heading code. */
+	private static final int CODE_BITS = 4;
+	/** The number of bits for the depth. */
+	private static final int DEPTH_BITS = 4;
+	/** The number of camera arm length steps, as in the action table. */
+	private static final int NUM_ARM_STEPS = 10;
+
+	/** The grid the target moves on. */
+	private final TargetGrid grid;
+	/** The shortest camera arm length. */
+	private final double minArmLength;
+	/** The difference between successive camera arm lengths. */
+	private final double armStep;
+	/** The key in each slot. */
+	private final AtomicLongArray keys;
+	/** The node in each slot. */
+	private final AtomicReferenceArray<MDPState> nodes;
+	/** The number of lookups that found a node. */
+	private final AtomicLong hits = new AtomicLong();
+	/** The number of nodes replaced by newer ones. */
+	private final AtomicLong replacements = new AtomicLong();
+
+	/**
+	 * Constructs an empty table.
+	 *
+	 * @param grid
+	 *            the grid the target moves on.
+	 * @param trackerSense
+	 *            the sensing parameters of the tracker.
+	 * @param capacity
+	 *            the number of slots, rounded up to a power of two.
+	 */
+	public TranspositionTable(TargetGrid grid, SensingParameters trackerSense,
+			int capacity) {
+		this.grid = grid;
+		this.minArmLength = trackerSense.getMinLength();
+		this.armStep = (trackerSense.getMaxLength() - minArmLength)
+				/ NUM_ARM_STEPS;
+		int size = Integer.highestOneBit(Math.max(PROBE_LIMIT, capacity - 1)) << 1;
+		keys = new AtomicLongArray(size);
+		nodes = new AtomicReferenceArray<MDPState>(size);
+	}
+
+	/**
+	 * Returns true iff states on the given grid fit in a key.
+	 *
+	 * @param grid
+	 *            the grid the target moves on.
+	 * @return true iff the grid is small enough.
+	 */
+	public static boolean fits(TargetGrid grid) {
+		return grid.getGridSize() * grid.getGridSize() <= 1 << CELL_BITS;
+	}
+
+	/**
+	 * Returns the number of bytes a table with the given capacity uses for its
+	 * slots.
+	 *
+	 * @param capacity
+	 *            the number of slots.
+	 * @return the number of bytes used.
+	 */
+	public static long getMemory(int capacity) {
+		return 16L * capacity;
+	}
+
+	/**
+	 * Packs the given states and depth into a key. Tracker positions and
+	 * headings are quantised, and camera arm lengths are rounded to the
+	 * nearest length an action can set.
+	 *
+	 * @param depth
+	 *            the depth of the node.
+	 * @param targetState
+	 *            the state of the target.
+	 * @param trackerState
+	 *            the state of the tracker.
+	 * @return the key.
+	 */
+	public long getKey(int depth, AgentState targetState,
+			AgentState trackerState) {
+		GridCell cell = grid.getCell(targetState.getPosition());
+		long key = Math.min(depth, (1 << DEPTH_BITS) - 1);
+		key = key << CELL_BITS
+				| (cell.getRow() * grid.getGridSize() + cell.getCol());
+		key = key << CODE_BITS
+				| grid.getCodeFromHeading(targetState.getHeading());
+		key = key << POSITION_BITS
+				| quantise(trackerState.getPosition().getX(), POSITION_BITS);
+		key = key << POSITION_BITS
+				| quantise(trackerState.getPosition().getY(), POSITION_BITS);
+		key = key << HEADING_BITS
+				| quantise(GeomTools.normaliseAngle(trackerState.getHeading())
+						/ (2 * Math.PI) + 0.5, HEADING_BITS);
+		long arm = (1 << ARM_BITS) - 1;
+		if (trackerState.hasCamera()) {
+			arm = Math.max(0, Math.min(NUM_ARM_STEPS, Math.round((trackerState
+					.getCameraArmLength() - minArmLength) / armStep)));
+		}
+		return (key << ARM_BITS | arm) | Long.MIN_VALUE;
+	}
+
+	/**
+	 * Returns the given fraction of the unit interval as an integer with the
+	 * given number of bits.
+	 */
+	private static long quantise(double value, int bits) {
+		long max = (1L << bits) - 1;
+		return Math.max(0, Math.min(max, Math.round(value * max)));
+	}
+
+	/**
+	 * Returns the index of the first slot probed for the given key.
+	 */
+	private int getStart(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key & (keys.length() - 1);
+	}
+
+	/**
+	 * Returns the node stored under the given key, or null if there is none.
+	 *
+	 * @param key
+	 *            the key, from {@link #getKey}.
+	 * @return the node, or null.
+	 */
+	public MDPState get(long key) {
+		int mask = keys.length() - 1;
+		int start = getStart(key);
+		for (int probe = 0; probe < PROBE_LIMIT; probe++) {
+			int slot = (start + probe) & mask;
+			long slotKey = keys.get(slot);
+			if (slotKey == EMPTY) {
+				return null;
+			}
+			if (slotKey == key) {
+				MDPState node = nodes.get(slot);
+				// The slot may be mid-replacement, so the node must agree.
+				if (node != null && node.getTranspositionKey() == key) {
+					hits.incrementAndGet();
+					return node;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Stores the given node under its key, unless a node is already stored
+	 * there, in which case that node is returned instead. If every slot
+	 * probed for the key is taken, the least visited node among them is
+	 * replaced.
+	 *
+	 * @param node
+	 *            the node, with its key set.
+	 * @return the node already stored under the key, or null if the given
+	 *         node was stored.
+	 */
+	public MDPState putIfAbsent(MDPState node) {
+		long key = node.getTranspositionKey();
+		int mask = keys.length() - 1;
+		int start = getStart(key);
+		int victim = -1;
+		int victimVisits = Integer.MAX_VALUE;
+		for (int probe = 0; probe < PROBE_LIMIT; probe++) {
+			int slot = (start + probe) & mask;
+			long slotKey = keys.get(slot);
+			if (slotKey == EMPTY) {
+				if (keys.compareAndSet(slot, EMPTY, key)) {
+					nodes.set(slot, node);
+					return null;
+				}
+				// Another writer claimed the slot first; look at it again.
+				probe--;
+				continue;
+			}
+			MDPState existing = nodes.get(slot);
+			if (existing == null) {
+				// Being written or replaced by another writer.
+				continue;
+			}
+			if (slotKey == key && existing.getTranspositionKey() == key) {
+				hits.incrementAndGet();
+				return existing;
+			}
+			if (existing.getVisited() < victimVisits) {
+				victim = slot;
+				victimVisits = existing.getVisited();
+			}
+		}
+		if (victim >= 0) {
+			MDPState old = nodes.get(victim);
+			// Emptying the slot first keeps other writers out of it, and
+			// readers check the node's own key.
+			if (old != null && nodes.compareAndSet(victim, old, null)) {
+				keys.set(victim, key);
+				nodes.set(victim, node);
+				replacements.incrementAndGet();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Empties the table. Must not be called while the table is in use.
+	 */
+	public void clear() {
+		for (int slot = 0; slot < keys.length(); slot++) {
+			keys.set(slot, EMPTY);
+			nodes.set(slot, null);
+		}
+	}
+
+	/**
+	 * Returns the number of lookups that found a node.
+	 *
+	 * @return the number of hits.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of nodes replaced by newer ones.
+	 *
+	 * @return the number of replacements.
+	 */
+	public long getReplacements() {
+		return replacements.get();
+	}
+
+	/**
+	 * Returns the number of slots.
+	 *
+	 * @return the number of slots.
+	 */
+	public int getCapacity() {
+		return keys.length();
+	}
+}
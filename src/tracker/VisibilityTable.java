@@ -0,0 +1,573 @@
+package tracker;
+
+import game.AgentState;
+import game.RectRegion;
+import game.SensingParameters;
+import geom.GeomTools;
+import geom.GridCell;
+import geom.TargetGrid;
+
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * For every quantised tracker pose, the set of target grid cells the tracker
+ * can see from it, so that "does the tracker see the target" is a bit test.
+ *
+ * Tracker positions are rounded to the nearest point of a lattice with half
+ * the spacing of the target grid (the spacing of the tracker's divergence
+ * grid), which includes every cell centre and corner; headings are rounded to one
+ * of 16 and camera arm lengths to the 11 lengths of the camera adjustment
+ * actions. The target has no camera and always sits at a cell centre, so which
+ * cells are visible does not depend on its heading.
+ *
+ * The table is built in parallel, and can be saved to and loaded from a file.
+ * It is only exact for poses on the lattice, and is not built at all for
+ * setups too large for it to fit in its share of the heap.
+ */
+public class VisibilityTable {
+	/** The number of lattice positions along each side of a grid cell. */
+	public static final int SUBDIVISIONS = 2;
+	/** The number of discretised headings. */
+	public static final int NUM_HEADINGS = 16;
+	/** The number of discretised camera arm lengths. */
+	private static final int NUM_ARM_LENGTHS = 11;
+	/** The allowed error in sight distance, as in the utility function. */
+	private static final double MAX_DISTANCE_ERROR = 1e-5;
+	/** The number of poses handled by one task when building in parallel. */
+	private static final int POSES_PER_TASK = 1024;
+	/** Identifies a saved table. */
+	private static final int FILE_MAGIC = 0x56495331;
+	/** The share of the maximum heap the table may use. */
+	private static final double MEMORY_SHARE = 0.25;
+	/** How far off the lattice a pose may be and still count as on it. */
+	private static final double LATTICE_TOLERANCE = 1e-9;
+
+	/** The table of the last setup built for, which most callers want again. */
+	private static final SetupCache<VisibilityTable> tables =
+			new SetupCache<VisibilityTable>();
+
+	/** The grid the target moves on. */
+	private final TargetGrid grid;
+	/** The sensing parameters of the tracker. */
+	private final SensingParameters trackerSense;
+	/** The obstacles. */
+	private final List<RectRegion> obstacles;
+	/** The number of lattice spacings along each side of the workspace. */
+	private final int latticeSize;
+	/** The number of arm lengths the tracker can have. */
+	private final int numArms;
+	/** The number of quantised tracker poses. */
+	private final int numPoses;
+	/** The number of 64-bit words in each pose's set of cells. */
+	private final int wordsPerPose;
+	/** The visible cells of each pose, wordsPerPose words at a time. */
+	private final long[] visible;
+
+	/**
+	 * Creates an empty table for the given setup.
+	 */
+	private VisibilityTable(TargetGrid grid, SensingParameters trackerSense,
+			List<RectRegion> obstacles) {
+		this.grid = grid;
+		this.trackerSense = trackerSense;
+		this.obstacles = obstacles;
+		int gridSize = grid.getGridSize();
+		this.latticeSize = gridSize * SUBDIVISIONS;
+		this.numArms = trackerSense.hasCamera() ? NUM_ARM_LENGTHS : 1;
+		this.numPoses = (latticeSize + 1) * (latticeSize + 1) * numArms
+				* NUM_HEADINGS;
+		this.wordsPerPose = (gridSize * gridSize + 63) / 64;
+		this.visible = new long[numPoses * wordsPerPose];
+	}
+
+	/**
+	 * Returns the number of bytes the table for the given setup takes up.
+	 *
+	 * @param grid
+	 *            the grid the target moves on.
+	 * @param trackerSense
+	 *            the sensing parameters of the tracker.
+	 * @return the size of the table, in bytes.
+	 */
+	public static long estimateMemory(TargetGrid grid,
+			SensingParameters trackerSense) {
+		long latticeSize = (long) grid.getGridSize() * SUBDIVISIONS;
+		long numPoses = (latticeSize + 1) * (latticeSize + 1)
+				* (trackerSense.hasCamera() ? NUM_ARM_LENGTHS : 1)
+				* NUM_HEADINGS;
+		long wordsPerPose = ((long) grid.getGridSize() * grid.getGridSize() + 63) / 64;
+		return numPoses * wordsPerPose * 8;
+	}
+
+	/**
+	 * Returns the table for the given setup, which is the last one built if
+	 * that was for the same grid, tracker and obstacles. Otherwise it is loaded
+	 * from the given file if that holds a table for the same setup, or else
+	 * built and saved to the file. The table becomes the one returned by
+	 * {@link #forSetup}.
+	 *
+	 * @param file
+	 *            the file to load from and save to, or null to always build.
+	 * @param numThreads
+	 *            the number of threads to build with.
+	 * @return the table, or null if the setup needs more memory than the
+	 *         table may use.
+	 */
+	public static VisibilityTable build(final TargetGrid grid,
+			final SensingParameters trackerSense,
+			final List<RectRegion> obstacles, final String file,
+			final int numThreads) {
+		return tables.get(new Callable<VisibilityTable>() {
+			@Override
+			public VisibilityTable call() {
+				return make(grid, trackerSense, obstacles, file, numThreads);
+			}
+		}, grid, trackerSense, obstacles);
+	}
+
+	/**
+	 * Loads or builds the table for the given setup, as for {@link #build}.
+	 */
+	private static VisibilityTable make(TargetGrid grid,
+			SensingParameters trackerSense, List<RectRegion> obstacles,
+			String file, int numThreads) {
+		long memoryLimit = (long) (Runtime.getRuntime().maxMemory() * MEMORY_SHARE);
+		if (estimateMemory(grid, trackerSense) > Math.min(memoryLimit,
+				(long) Integer.MAX_VALUE * 8)) {
+			return null;
+		}
+		VisibilityTable table = new VisibilityTable(grid, trackerSense,
+				obstacles);
+		boolean loaded = false;
+		if (file != null && new File(file).exists()) {
+			try {
+				loaded = table.load(file);
+			} catch (IOException e) {
+				// An unreadable file is no worse than a missing one.
+				loaded = false;
+			}
+		}
+		if (!loaded) {
+			Arrays.fill(table.visible, 0);
+			ForkJoinPool pool = new ForkJoinPool(numThreads);
+			pool.invoke(table.new BuildTask(0, table.numPoses));
+			pool.shutdown();
+			if (file != null) {
+				try {
+					table.save(file);
+				} catch (IOException e) {
+					// The table is still usable; it is just built again
+					// next time.
+				}
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Returns the table last built for the given tracker and obstacles, or
+	 * null if there is none.
+	 *
+	 * @param trackerSense
+	 *            the sensing parameters of the tracker.
+	 * @param obstacles
+	 *            the obstacles.
+	 * @return the table, or null if none has been built.
+	 */
+	public static VisibilityTable forSetup(SensingParameters trackerSense,
+			List<RectRegion> obstacles) {
+		VisibilityTable table = tables.getLast();
+		if (table == null || table.trackerSense != trackerSense
+				|| table.obstacles != obstacles) {
+			return null;
+		}
+		return table;
+	}
+
+	/**
+	 * Fills in the visible cells of a range of poses.
+	 */
+	private class BuildTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+		private final int to;
+
+		public BuildTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > POSES_PER_TASK) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new BuildTask(from, mid), new BuildTask(mid, to));
+				return;
+			}
+			for (int pose = from; pose < to; pose++) {
+				fillPose(pose);
+			}
+		}
+	}
+
+	/**
+	 * Marks the cells visible from the given pose, checking only the cells
+	 * within sight range.
+	 */
+	private void fillPose(int pose) {
+		AgentState trackerState = getPoseState(pose);
+		Point2D viewPos = GeomTools.calculateViewPosition(trackerState);
+		int gridSize = grid.getGridSize();
+		double reach = trackerSense.getRange() + MAX_DISTANCE_ERROR;
+		int minRow = Math.max(0, (int) ((1 - viewPos.getY() - reach) * gridSize));
+		int maxRow = Math.min(gridSize - 1,
+				(int) ((1 - viewPos.getY() + reach) * gridSize));
+		int minCol = Math.max(0, (int) ((viewPos.getX() - reach) * gridSize));
+		int maxCol = Math.min(gridSize - 1,
+				(int) ((viewPos.getX() + reach) * gridSize));
+		int base = pose * wordsPerPose;
+		for (int row = minRow; row <= maxRow; row++) {
+			for (int col = minCol; col <= maxCol; col++) {
+				Point2D centre = grid.getCentre(new GridCell(row, col));
+				if (GeomTools.canSee(trackerState, centre, trackerSense,
+						obstacles, MAX_DISTANCE_ERROR)) {
+					int cell = row * gridSize + col;
+					visible[base + (cell >>> 6)] |= 1L << cell;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the representative state of the given pose: its lattice point,
+	 * with its heading and arm length.
+	 *
+	 * @param pose
+	 *            the index of the pose.
+	 * @return the state of the tracker in that pose.
+	 */
+	public AgentState getPoseState(int pose) {
+		int heading = pose % NUM_HEADINGS;
+		pose /= NUM_HEADINGS;
+		int arm = pose % numArms;
+		int point = pose / numArms;
+		double x = (double) (point % (latticeSize + 1)) / latticeSize;
+		double y = 1 - (double) (point / (latticeSize + 1)) / latticeSize;
+		double minLength = trackerSense.getMinLength();
+		double armLength = minLength;
+		if (numArms > 1) {
+			armLength += ((trackerSense.getMaxLength() - minLength) / (numArms - 1))
+					* arm;
+		}
+		return new AgentState(new Point2D.Double(x, y),
+				GeomTools.normaliseAngle(heading * 2 * Math.PI / NUM_HEADINGS),
+				trackerSense.hasCamera(), armLength);
+	}
+
+	/**
+	 * Returns the pose nearest the given tracker state, or -1 if the state is
+	 * outside the workspace.
+	 *
+	 * @param trackerState
+	 *            the state of the tracker.
+	 * @return the index of the pose.
+	 */
+	public int getPose(AgentState trackerState) {
+		int point = getLatticePoint(trackerState.getPosition());
+		if (point < 0) {
+			return -1;
+		}
+		int heading = (int) Math.round(trackerState.getHeading()
+				* NUM_HEADINGS / (2 * Math.PI));
+		heading = ((heading % NUM_HEADINGS) + NUM_HEADINGS) % NUM_HEADINGS;
+		int arm = 0;
+		if (numArms > 1) {
+			double minLength = trackerSense.getMinLength();
+			double range = trackerSense.getMaxLength() - minLength;
+			arm = (range <= 0) ? 0 : (int) Math.round((trackerState
+					.getCameraArmLength() - minLength) * (numArms - 1) / range);
+			arm = Math.max(0, Math.min(numArms - 1, arm));
+		}
+		return getPose(point, arm, heading);
+	}
+
+	/**
+	 * Returns the pose the given tracker state is exactly in, or -1 if it is
+	 * not on the lattice, or its heading or arm length are not among the
+	 * table's.
+	 *
+	 * @param trackerState
+	 *            the state of the tracker.
+	 * @return the index of the pose, or -1.
+	 */
+	public int getExactPose(AgentState trackerState) {
+		int pose = getPose(trackerState);
+		if (pose < 0) {
+			return -1;
+		}
+		AgentState poseState = getPoseState(pose);
+		Point2D pos = trackerState.getPosition();
+		Point2D posePos = poseState.getPosition();
+		if (Math.abs(pos.getX() - posePos.getX()) > LATTICE_TOLERANCE
+				|| Math.abs(pos.getY() - posePos.getY()) > LATTICE_TOLERANCE
+				|| Math.abs(GeomTools.normaliseAngle(trackerState.getHeading()
+						- poseState.getHeading())) > LATTICE_TOLERANCE) {
+			return -1;
+		}
+		if (trackerState.hasCamera()
+				&& Math.abs(trackerState.getCameraArmLength()
+						- poseState.getCameraArmLength()) > LATTICE_TOLERANCE) {
+			return -1;
+		}
+		return pose;
+	}
+
+	/**
+	 * Returns the pose with the given lattice point, arm length and heading.
+	 *
+	 * @param point
+	 *            the index of the lattice point.
+	 * @param arm
+	 *            the index of the arm length.
+	 * @param heading
+	 *            the index of the heading.
+	 * @return the index of the pose.
+	 */
+	public int getPose(int point, int arm, int heading) {
+		return (point * numArms + arm) * NUM_HEADINGS + heading;
+	}
+
+	/**
+	 * Returns the lattice point nearest the given position, or -1 if it is
+	 * outside the workspace.
+	 *
+	 * @param pos
+	 *            the position.
+	 * @return the index of the lattice point, row * (lattice size + 1) +
+	 *         column.
+	 */
+	public int getLatticePoint(Point2D pos) {
+		return getLatticePoint(pos.getX(), pos.getY());
+	}
+
+	/**
+	 * Returns the lattice point nearest the given position, or -1 if it is
+	 * outside the workspace.
+	 *
+	 * @param x
+	 *            the x-coordinate of the position.
+	 * @param y
+	 *            the y-coordinate of the position.
+	 * @return the index of the lattice point, row * (lattice size + 1) +
+	 *         column.
+	 */
+	public int getLatticePoint(double x, double y) {
+		if (x < 0 || y < 0 || x > 1 || y > 1) {
+			return -1;
+		}
+		int row = (int) Math.round((1 - y) * latticeSize);
+		int col = (int) Math.round(x * latticeSize);
+		return row * (latticeSize + 1) + col;
+	}
+
+	/**
+	 * Returns the number of lattice spacings along each side of the workspace.
+	 *
+	 * @return the lattice size.
+	 */
+	public int getLatticeSize() {
+		return latticeSize;
+	}
+
+	/**
+	 * Returns the number of arm lengths the tracker can have.
+	 *
+	 * @return the number of arm lengths.
+	 */
+	public int getNumArms() {
+		return numArms;
+	}
+
+	/**
+	 * Returns true iff the table covers the given target state, i.e. the
+	 * target is at a cell centre and has no camera.
+	 *
+	 * @param targetState
+	 *            the state of the target.
+	 * @return true iff the table can say whether the target is seen.
+	 */
+	public boolean covers(AgentState targetState) {
+		if (targetState.hasCamera()) {
+			return false;
+		}
+		Point2D pos = targetState.getPosition();
+		if (pos.getX() < 0 || pos.getY() < 0 || pos.getX() > 1
+				|| pos.getY() > 1) {
+			return false;
+		}
+		return grid.getCentre(grid.getCell(pos)).distance(pos) < MAX_DISTANCE_ERROR;
+	}
+
+	/**
+	 * Returns true iff the tracker can see the given cell from the given pose.
+	 *
+	 * @param pose
+	 *            the index of the tracker's pose.
+	 * @param cell
+	 *            the cell index, row * grid size + column.
+	 * @return true iff the cell is visible.
+	 */
+	public boolean canSee(int pose, int cell) {
+		return (visible[pose * wordsPerPose + (cell >>> 6)] & (1L << cell)) != 0;
+	}
+
+	/**
+	 * Returns true iff the tracker can see the target from the given pose;
+	 * the target must be covered by the table.
+	 *
+	 * @param pose
+	 *            the index of the tracker's pose.
+	 * @param targetState
+	 *            the state of the target.
+	 * @return true iff the tracker can see the target.
+	 */
+	public boolean canSee(int pose, AgentState targetState) {
+		GridCell cell = grid.getCell(targetState.getPosition());
+		return canSee(pose,
+				cell.getRow() * grid.getGridSize() + cell.getCol());
+	}
+
+	/**
+	 * Marks the cells the tracker can see from the pose nearest the given
+	 * state; no cells are marked if the state is outside the workspace.
+	 *
+	 * @param trackerState
+	 *            the state of the tracker.
+	 * @param cells
+	 *            the array to fill in, indexed by row * grid size + column.
+	 * @return the given array.
+	 */
+	public boolean[] getVisibleCells(AgentState trackerState, boolean[] cells) {
+		Arrays.fill(cells, false);
+		int pose = getPose(trackerState);
+		if (pose < 0) {
+			return cells;
+		}
+		int base = pose * wordsPerPose;
+		for (int word = 0; word < wordsPerPose; word++) {
+			long bits = visible[base + word];
+			while (bits != 0) {
+				cells[(word << 6) + Long.numberOfTrailingZeros(bits)] = true;
+				bits &= bits - 1;
+			}
+		}
+		return cells;
+	}
+
+	/**
+	 * Returns the probability that the tracker sees the target, given a belief
+	 * over where the target is.
+	 *
+	 * @param trackerState
+	 *            the state of the tracker.
+	 * @param belief
+	 *            the belief over the target's cell.
+	 * @return the probability mass of the visible cells.
+	 */
+	public double getVisibleProbability(AgentState trackerState,
+			TargetBelief belief) {
+		int pose = getPose(trackerState);
+		if (pose < 0) {
+			return 0;
+		}
+		double probability = 0;
+		int base = pose * wordsPerPose;
+		for (int word = 0; word < wordsPerPose; word++) {
+			long bits = visible[base + word];
+			while (bits != 0) {
+				int cell = (word << 6) + Long.numberOfTrailingZeros(bits);
+				probability += belief.getProbability(cell);
+				bits &= bits - 1;
+			}
+		}
+		return probability;
+	}
+
+	/**
+	 * Returns a number identifying the setup the table was built for, so that
+	 * a saved table is only loaded for the same setup.
+	 */
+	private long getSetupHash() {
+		long hash = grid.getGridSize();
+		hash = hash * 31 + SUBDIVISIONS;
+		hash = hash * 31 + numArms;
+		hash = hash * 31 + Double.doubleToLongBits(trackerSense.getRange());
+		hash = hash * 31 + Double.doubleToLongBits(trackerSense.getAngle());
+		hash = hash * 31 + Double.doubleToLongBits(trackerSense.getMinLength());
+		hash = hash * 31 + Double.doubleToLongBits(trackerSense.getMaxLength());
+		for (RectRegion obstacle : obstacles) {
+			Rectangle2D rect = obstacle.getRect();
+			hash = hash * 31 + Double.doubleToLongBits(rect.getX());
+			hash = hash * 31 + Double.doubleToLongBits(rect.getY());
+			hash = hash * 31 + Double.doubleToLongBits(rect.getWidth());
+			hash = hash * 31 + Double.doubleToLongBits(rect.getHeight());
+		}
+		return hash;
+	}
+
+	/**
+	 * Saves the table to the given file.
+	 */
+	private void save(String file) throws IOException {
+		DataOutputStream output = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			output.writeInt(FILE_MAGIC);
+			output.writeLong(getSetupHash());
+			output.writeInt(visible.length);
+			for (long word : visible) {
+				output.writeLong(word);
+			}
+		} finally {
+			output.close();
+		}
+	}
+
+	/**
+	 * Loads the table from the given file.
+	 *
+	 * @return true iff the file held a table for this setup.
+	 */
+	private boolean load(String file) throws IOException {
+		DataInputStream input = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			if (input.readInt() != FILE_MAGIC
+					|| input.readLong() != getSetupHash()
+					|| input.readInt() != visible.length) {
+				return false;
+			}
+			for (int i = 0; i < visible.length; i++) {
+				visible[i] = input.readLong();
+			}
+			return true;
+		} finally {
+			input.close();
+		}
+	}
+}
@@ -108,7 +108,7 @@ public class VisualisationPanel extends JComponent {
 		}
 		this.frameNumber = frameNumber;
 		visualiser.setFrameNumber(frameNumber);
-		currentState = gameRunner.getStateSequence().get(frameNumber);
+		currentState = gameRunner.getState(frameNumber);
 		visualiser.updateInfoText();
 		visualiser.updateTable();
 		repaint();